@@ -0,0 +1,574 @@
+/*
+ * Classes
+ * 	LoadGenerator - Many concurrent sessions running a mix of commands against one server
+ * 	LoadClient - One session, looping over operations until the run ends
+ * 	Latencies - Every latency of one kind, for exact percentiles
+ */
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Opens a number of sessions over loopback, each on a thread of its own,
+ * and has every session pick operations from a weighted mix until the run
+ * is over: log in again on a new connection, NOOP, or RETR a file picked
+ * from a weighted size distribution through PASV. Nothing is recorded
+ * during the warmup. At the end the operations per second, the bytes per
+ * second and the p50/p99/p999 latency of the greeting, the login, NOOP,
+ * the first byte of a RETR and the whole RETR are printed, and written as
+ * JSON so runs can be compared.
+ *
+ * Without -server an FTPServer is started in this process, serving the
+ * -root directory (a temporary one by default) from disk, or from a copy
+ * in memory with -store memory. Files named load-<size>.bin are created
+ * in the root for every size that is missing.
+ *
+ * Usage: LoadGenerator [-server host:port] [-root dir] [-store disk|memory] [-engine thread|nio]
+ * 		[-clients n] [-duration s] [-warmup s] [-mix login:1,retr:8,noop:1]
+ * 		[-sizes 4K:60,1M:30,16M:10] [-json file|-]
+ */
+public class LoadGenerator {
+	public static final int LOGIN = 0;
+	public static final int RETR = 1;
+	public static final int NOOP = 2;
+	static final String[] OPERATIONS = {"login", "retr", "noop"};
+
+	// Latencies kept for each session
+	public static final int GREETING = 0;
+	public static final int LOGGED_IN = 1;
+	public static final int NOOP_REPLY = 2;
+	public static final int FIRST_BYTE = 3;
+	public static final int RETR_DONE = 4;
+	static final String[] LATENCIES = {"greeting", "login", "noop", "ttfb", "retr"};
+
+	public static void main(String[] args) throws Exception {
+		String server = null;
+		String rootPath = null;
+		String engine = "thread";
+		String store = "disk";
+		int clients = 16;
+		double duration = 10;
+		double warmup = 2;
+		String mix = "login:1,retr:8,noop:1";
+		String sizes = "4K:60,1M:30,16M:10";
+		String json = null;
+		for (int i = 0; i < args.length; i++) {
+			if (i + 1 >= args.length) {
+				usage();
+			} else if (args[i].equals("-server")) {
+				server = args[++i];
+			} else if (args[i].equals("-root")) {
+				rootPath = args[++i];
+			} else if (args[i].equals("-store")) {
+				store = args[++i];
+			} else if (args[i].equals("-engine")) {
+				engine = args[++i];
+			} else if (args[i].equals("-clients")) {
+				clients = Math.max(1, Integer.parseInt(args[++i]));
+			} else if (args[i].equals("-duration")) {
+				duration = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-warmup")) {
+				warmup = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-mix")) {
+				mix = args[++i];
+			} else if (args[i].equals("-sizes")) {
+				sizes = args[++i];
+			} else if (args[i].equals("-json")) {
+				json = args[++i];
+			} else {
+				usage();
+			}
+		}
+
+		// Weights of each operation, and the files with their weights
+		Map<String, Long> mixWeights = parseWeights(mix);
+		int[] operationWeights = new int[OPERATIONS.length];
+		for (Map.Entry<String, Long> entry : mixWeights.entrySet()) {
+			int operation = Arrays.asList(OPERATIONS).indexOf(entry.getKey());
+			if (operation < 0) {
+				throw new IllegalArgumentException("Unknown operation " + entry.getKey());
+			}
+			operationWeights[operation] = entry.getValue().intValue();
+		}
+		Map<String, Long> sizeWeights = parseWeights(sizes);
+		String[] files = new String[sizeWeights.size()];
+		int[] fileWeights = new int[files.length];
+		long[] fileSizes = new long[files.length];
+		int f = 0;
+		for (Map.Entry<String, Long> entry : sizeWeights.entrySet()) {
+			files[f] = "load-" + entry.getKey() + ".bin";
+			fileSizes[f] = parseSize(entry.getKey());
+			fileWeights[f] = entry.getValue().intValue();
+			f++;
+		}
+
+		File root = rootPath != null ? new File(rootPath) : Files.createTempDirectory("ftp-load").toFile();
+		for (int i = 0; i < files.length; i++) {
+			createFile(new File(root, files[i]), fileSizes[i]);
+		}
+
+		// The server prints every command, keep that out of the results
+		PrintStream results = System.out;
+		String host = "127.0.0.1";
+		int port;
+		if (server == null) {
+			System.setOut(new PrintStream(new ByteArrayOutputStream() {
+				public void write(byte[] bytes, int offset, int length) {
+
+				}
+			}));
+			System.setProperty("user.dir", root.getPath());
+			port = startServer(engine, store, clients);
+		} else {
+			int colon = server.lastIndexOf(':');
+			host = server.substring(0, colon);
+			port = Integer.parseInt(server.substring(colon + 1));
+		}
+
+		// Run every client until the end, recording once the warmup is over
+		long start = System.nanoTime();
+		long recordFrom = start + (long) (warmup * 1e9);
+		long end = recordFrom + (long) (duration * 1e9);
+		LoadClient[] loadClients = new LoadClient[clients];
+		Thread[] threads = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			loadClients[i] = new LoadClient(host, port, operationWeights, files, fileWeights, recordFrom, end);
+			threads[i] = new Thread(loadClients[i], "load-client-" + i);
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// Add the clients up
+		long[] operations = new long[OPERATIONS.length];
+		long bytes = 0;
+		long errors = 0;
+		Latencies[] latencies = new Latencies[LATENCIES.length];
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new Latencies();
+		}
+		for (LoadClient client : loadClients) {
+			for (int i = 0; i < operations.length; i++) {
+				operations[i] += client.operations[i];
+			}
+			bytes += client.bytes;
+			errors += client.errors;
+			for (int i = 0; i < latencies.length; i++) {
+				latencies[i].addAll(client.latencies[i]);
+			}
+		}
+		long total = 0;
+		for (long count : operations) {
+			total += count;
+		}
+		for (Latencies latency : latencies) {
+			latency.sort();
+		}
+
+		results.println("clients " + clients + ", duration " + duration + " s, warmup " + warmup + " s, mix " + mix
+				+ ", sizes " + sizes + (server == null ? ", engine " + engine : ", server " + server));
+		results.printf(Locale.ROOT, "ops %d  %.1f ops/s  %.1f MB/s  errors %d%n",
+				total, total / duration, bytes / 1048576.0 / duration, errors);
+		for (int i = 0; i < operations.length; i++) {
+			results.printf(Locale.ROOT, "  %-6s %10d  %10.1f ops/s%n", OPERATIONS[i], operations[i], operations[i] / duration);
+		}
+		results.printf(Locale.ROOT, "%-9s %10s %10s %10s %10s %10s%n", "latency", "count", "p50 us", "p99 us", "p999 us", "max us");
+		for (int i = 0; i < latencies.length; i++) {
+			Latencies latency = latencies[i];
+			results.printf(Locale.ROOT, "%-9s %10d %10.1f %10.1f %10.1f %10.1f%n", LATENCIES[i], latency.count,
+					latency.percentile(0.5) / 1e3, latency.percentile(0.99) / 1e3,
+					latency.percentile(0.999) / 1e3, latency.max() / 1e3);
+		}
+
+		if (json != null) {
+			String text = toJson(clients, duration, warmup, mix, sizes, server == null ? engine : server,
+					operations, total, bytes, errors, latencies);
+			if (json.equals("-")) {
+				results.println(text);
+			} else {
+				FileOutputStream out = new FileOutputStream(json);
+				out.write(text.getBytes(StandardCharsets.UTF_8));
+				out.close();
+			}
+		}
+
+		// Files in a root of our own go with it
+		if (rootPath == null) {
+			for (String file : files) {
+				new File(root, file).delete();
+			}
+			root.delete();
+		}
+		System.exit(errors > 0 && total == 0 ? 1 : 0);
+	}
+
+	private static void usage() {
+		System.err.println("Usage: LoadGenerator [-server host:port] [-root dir] [-store disk|memory] [-engine thread|nio] [-clients n]"
+				+ " [-duration s] [-warmup s] [-mix login:1,retr:8,noop:1] [-sizes 4K:60,1M:30,16M:10] [-json file|-]");
+		System.exit(2);
+	}
+
+	// "a:1,b:2" in the order given
+	static Map<String, Long> parseWeights(String list) {
+		Map<String, Long> weights = new LinkedHashMap<String, Long>();
+		for (String item : list.split(",")) {
+			int colon = item.indexOf(':');
+			String name = (colon < 0 ? item : item.substring(0, colon)).trim();
+			long weight = colon < 0 ? 1 : Long.parseLong(item.substring(colon + 1).trim());
+			if (name.length() > 0 && weight > 0) {
+				weights.put(name, weight);
+			}
+		}
+		if (weights.isEmpty()) {
+			throw new IllegalArgumentException("Nothing to pick from in " + list);
+		}
+		return weights;
+	}
+
+	// Bytes in 512, 4K, 1M or 2G
+	static long parseSize(String size) {
+		String upper = size.toUpperCase(Locale.ROOT);
+		long unit = 1;
+		if (upper.endsWith("K")) unit = 1024;
+		if (upper.endsWith("M")) unit = 1024 * 1024;
+		if (upper.endsWith("G")) unit = 1024 * 1024 * 1024;
+		String digits = unit == 1 ? upper : upper.substring(0, upper.length() - 1);
+		return Long.parseLong(digits) * unit;
+	}
+
+	// Fill the file with random bytes unless it has the size already
+	private static void createFile(File file, long size) throws IOException {
+		if (file.length() == size) return;
+		byte[] block = new byte[(int) Math.min(size, 1024 * 1024)];
+		new Random(431).nextBytes(block);
+		FileOutputStream out = new FileOutputStream(file);
+		for (long left = size; left > 0; left -= block.length) {
+			out.write(block, 0, (int) Math.min(left, block.length));
+		}
+		out.close();
+	}
+
+	// Run FTPServer on any free port and wait for it to listen
+	private static int startServer(String engine, String store, int clients) throws InterruptedException {
+		final String[] args = {"0", "-engine", engine, "-store", store, "-threads", Integer.toString(Math.max(256, clients)),
+				"-pasv", Integer.toString(Math.max(64, clients * 2))};
+		Thread server = new Thread(new Runnable() {
+			public void run() {
+				try {
+					FTPServer.main(args);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}, "ftp-server");
+		server.setDaemon(true);
+		server.start();
+		while (FTPServer.welcomeSocket == null || FTPServer.dataPorts == null) {
+			Thread.sleep(10);
+		}
+		return FTPServer.welcomeSocket.getLocalPort();
+	}
+
+	private static String toJson(int clients, double duration, double warmup, String mix, String sizes, String target,
+			long[] operations, long total, long bytes, long errors, Latencies[] latencies) {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"clients\":").append(clients)
+				.append(",\"duration\":").append(duration)
+				.append(",\"warmup\":").append(warmup)
+				.append(",\"mix\":\"").append(mix)
+				.append("\",\"sizes\":\"").append(sizes)
+				.append("\",\"target\":\"").append(target)
+				.append("\",\"ops\":").append(total)
+				.append(",\"opsPerSecond\":").append(String.format(Locale.ROOT, "%.1f", total / duration))
+				.append(",\"bytes\":").append(bytes)
+				.append(",\"megabytesPerSecond\":").append(String.format(Locale.ROOT, "%.1f", bytes / 1048576.0 / duration))
+				.append(",\"errors\":").append(errors)
+				.append(",\"operations\":{");
+		for (int i = 0; i < operations.length; i++) {
+			if (i > 0) json.append(',');
+			json.append('"').append(OPERATIONS[i]).append("\":").append(operations[i]);
+		}
+		json.append("},\"latencyNanos\":{");
+		for (int i = 0; i < latencies.length; i++) {
+			Latencies latency = latencies[i];
+			if (i > 0) json.append(',');
+			json.append('"').append(LATENCIES[i]).append("\":{\"count\":").append(latency.count)
+					.append(",\"p50\":").append(latency.percentile(0.5))
+					.append(",\"p99\":").append(latency.percentile(0.99))
+					.append(",\"p999\":").append(latency.percentile(0.999))
+					.append(",\"max\":").append(latency.max())
+					.append('}');
+		}
+		json.append("}}");
+		return json.toString();
+	}
+}
+
+/*
+ * A session that keeps one control connection open and opens a passive
+ * data connection for every RETR. Any failure counts as one error, and the
+ * session carries on with a new connection.
+ */
+class LoadClient implements Runnable {
+	public static final int BUFFER_SIZE = 256 * 1024;
+
+	private static final Pattern PASSIVE_ADDRESS = Pattern.compile("\\((\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)\\)");
+
+	final long[] operations = new long[LoadGenerator.OPERATIONS.length];
+	final Latencies[] latencies = new Latencies[LoadGenerator.LATENCIES.length];
+	long bytes = 0;
+	long errors = 0;
+
+	private final String host;
+	private final int port;
+	private final int[] operationWeights;
+	private final String[] files;
+	private final int[] fileWeights;
+	private final long recordFrom;
+	private final long end;
+
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final ServerResponse response = new ServerResponse();
+	private Socket control;
+	private InputStream in;
+	private OutputStream out;
+
+	LoadClient(String host, int port, int[] operationWeights, String[] files, int[] fileWeights, long recordFrom, long end) {
+		this.host = host;
+		this.port = port;
+		this.operationWeights = operationWeights;
+		this.files = files;
+		this.fileWeights = fileWeights;
+		this.recordFrom = recordFrom;
+		this.end = end;
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new Latencies();
+		}
+	}
+
+	public void run() {
+		while (System.nanoTime() < end) {
+			try {
+				if (control == null) {
+					login();
+				}
+				int operation = pick(operationWeights);
+				if (operation == LoadGenerator.LOGIN) {
+					quit();
+					login();
+				} else if (operation == LoadGenerator.NOOP) {
+					noop();
+				} else {
+					retrieve(files[pick(fileWeights)]);
+				}
+				if (recording()) {
+					operations[operation]++;
+				}
+			} catch (IOException e) {
+				if (recording()) {
+					errors++;
+				}
+				close();
+			}
+		}
+		try {
+			if (control != null) {
+				quit();
+			}
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	private boolean recording() {
+		long now = System.nanoTime();
+		return now >= recordFrom && now < end;
+	}
+
+	private void record(int latency, long start) {
+		long now = System.nanoTime();
+		if (start >= recordFrom && now < end) {
+			latencies[latency].add(now - start);
+		}
+	}
+
+	// Connect, wait for the greeting and log in
+	private void login() throws IOException {
+		long start = System.nanoTime();
+		control = new Socket();
+		control.setTcpNoDelay(true);
+		control.connect(new InetSocketAddress(host, port));
+		in = new BufferedInputStream(control.getInputStream());
+		out = control.getOutputStream();
+		expect(220);
+		record(LoadGenerator.GREETING, start);
+
+		// Sent in one write, like the client does
+		long loginStart = System.nanoTime();
+		send(FTPCommands.USER + FTPCommands.PASS + FTPCommands.TYPE);
+		expect(331);
+		expect(230);
+		expect(200);
+		record(LoadGenerator.LOGGED_IN, loginStart);
+	}
+
+	private void quit() throws IOException {
+		send(FTPCommands.QUIT);
+		expect(221);
+		close();
+	}
+
+	private void noop() throws IOException {
+		long start = System.nanoTime();
+		send(FTPCommands.NOOP);
+		expect(200);
+		record(LoadGenerator.NOOP_REPLY, start);
+	}
+
+	// Fetch a file through a passive data connection and throw the bytes away
+	private void retrieve(String file) throws IOException {
+		long start = System.nanoTime();
+		send(FTPCommands.PASV);
+		Matcher address = PASSIVE_ADDRESS.matcher(expect(227));
+		if (!address.find()) {
+			throw new IOException("Bad passive address");
+		}
+		String dataHost = address.group(1) + "." + address.group(2) + "." + address.group(3) + "." + address.group(4);
+		int dataPort = Integer.parseInt(address.group(5)) * 256 + Integer.parseInt(address.group(6));
+		SocketChannel data = SocketChannel.open(new InetSocketAddress(dataHost, dataPort));
+		try {
+			long requested = System.nanoTime();
+			send(FTPCommands.RETR.replace("%s", file));
+			long received = 0;
+			boolean first = true;
+			while (true) {
+				buffer.clear();
+				int read = data.read(buffer);
+				if (read < 0) break;
+				if (first && read > 0) {
+					record(LoadGenerator.FIRST_BYTE, requested);
+					first = false;
+				}
+				received += read;
+			}
+			expect(150);
+			expect(250);
+			if (recording()) {
+				bytes += received;
+			}
+		} finally {
+			data.close();
+		}
+		record(LoadGenerator.RETR_DONE, start);
+	}
+
+	private void send(String requests) throws IOException {
+		out.write(requests.getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+	}
+
+	// Read one reply line and check its code, the way the client does
+	private String expect(int code) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			line.append((char) c);
+			if (c == '\n') break;
+		}
+		String reply = line.toString();
+
+		// parseReplyCode only needs the tokens to show text after the code.
+		// splitRequest costs tens of microseconds a reply, which would end up
+		// in every latency measured here.
+		int space = reply.indexOf(' ');
+		String[] tokens = space < 0 ? new String[] {reply} : new String[] {reply.substring(0, space), " ", reply.substring(space + 1)};
+		if (!ParseResponse.parseReplyCode(reply, tokens, response) || response.getReplyCode() != code) {
+			throw new IOException("Expected " + code + " but got " + reply.trim());
+		}
+		return reply;
+	}
+
+	private void close() {
+		if (control == null) return;
+		try {
+			control.close();
+		} catch (IOException e) {
+
+		}
+		control = null;
+	}
+
+	// Index picked at random by weight
+	private static int pick(int[] weights) {
+		int total = 0;
+		for (int weight : weights) {
+			total += weight;
+		}
+		int value = ThreadLocalRandom.current().nextInt(total);
+		for (int i = 0; i < weights.length; i++) {
+			value -= weights[i];
+			if (value < 0) return i;
+		}
+		return weights.length - 1;
+	}
+}
+
+/*
+ * Keeps every value rather than buckets, so the p999 of a few thousand
+ * samples is the real one. One list per session, merged at the end.
+ */
+class Latencies {
+	long[] values = new long[1024];
+	int count = 0;
+
+	void add(long value) {
+		if (count == values.length) {
+			values = Arrays.copyOf(values, count * 2);
+		}
+		values[count++] = value;
+	}
+
+	void addAll(Latencies other) {
+		if (count + other.count > values.length) {
+			values = Arrays.copyOf(values, Math.max(values.length * 2, count + other.count));
+		}
+		System.arraycopy(other.values, 0, values, count, other.count);
+		count += other.count;
+	}
+
+	void sort() {
+		Arrays.sort(values, 0, count);
+	}
+
+	// Nearest rank of a sorted list
+	long percentile(double q) {
+		if (count == 0) return 0;
+		int rank = (int) Math.ceil(q * count);
+		return values[Math.max(0, Math.min(count, rank) - 1)];
+	}
+
+	long max() {
+		return count == 0 ? 0 : values[count - 1];
+	}
+}
@@ -0,0 +1,25 @@
+/*
+ * Classes
+ * 	NullSession - Session that throws its replies away, for benchmarks
+ */
+
+import java.io.IOException;
+
+import javax.net.ssl.SSLEngine;
+
+/*
+ * Lets benchmarks drive FileManager without a control connection.
+ */
+class NullSession extends ServerSession {
+	public void write(byte[] bytes, int offset, int length) {
+
+	}
+
+	public void flush() {
+
+	}
+
+	public void startTls(SSLEngine engine) throws IOException {
+		throw new IOException("No control connection");
+	}
+}
@@ -0,0 +1,293 @@
+/*
+ * Classes
+ * 	SegmentedDownloadBenchmark - Compare 1 and N segment downloads over a slow link
+ * 	DelayProxy - TCP proxy that adds latency and caps the bytes in flight
+ * 	DelayPipe - One direction of a proxied connection
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Serves a generated file from an in-process FTPServer through a proxy
+ * that delays every byte by half the round trip and lets only one window
+ * of bytes be in flight per direction, like a TCP stream on a long fat
+ * pipe. The same file is then fetched with 1 and with N segments.
+ *
+ * Usage: SegmentedDownloadBenchmark [rtt-ms] [segments] [size-MB] [window-KB] [runs]
+ */
+public class SegmentedDownloadBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int rtt = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int segments = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int sizeMB = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+		int windowKB = args.length > 3 ? Integer.parseInt(args[3]) : 256;
+		int runs = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+
+		// The server prints every command, keep that out of the results
+		PrintStream results = System.out;
+		System.setOut(new PrintStream(new ByteArrayOutputStream() {
+			public void write(byte[] bytes, int offset, int length) {
+
+			}
+		}));
+
+		// Serve a directory with one file of random bytes
+		File root = Files.createTempDirectory("ftp-bench").toFile();
+		File source = new File(root, "segmented.bin");
+		byte[] block = new byte[1024 * 1024];
+		new Random(431).nextBytes(block);
+		FileOutputStream out = new FileOutputStream(source);
+		for (int i = 0; i < sizeMB; i++) {
+			out.write(block);
+		}
+		out.close();
+		System.setProperty("user.dir", root.getPath());
+		final int serverPort = startServer();
+
+		DelayProxy proxy = new DelayProxy(serverPort, rtt / 2, windowKB * 1024);
+		new Thread(proxy, "delay-proxy").start();
+
+		long size = source.length();
+		results.println("rtt " + rtt + " ms, window " + windowKB + " KB, file " + sizeMB + " MB");
+		int[] counts = segments > 1 ? new int[] {1, segments} : new int[] {1};
+		for (int count : counts) {
+			long[] times = new long[runs];
+			for (int run = 0; run < runs; run++) {
+				File target = new File(root, "download.bin");
+				long start = System.nanoTime();
+				SegmentedDownload.download("127.0.0.1", proxy.port, source.getName(), size, count, target);
+				times[run] = System.nanoTime() - start;
+				if (!Arrays.equals(Files.readAllBytes(source.toPath()), Files.readAllBytes(target.toPath()))) {
+					throw new IllegalStateException("Download with " + count + " segments differs");
+				}
+				target.delete();
+			}
+			Arrays.sort(times);
+			double seconds = times[runs / 2] / 1e9;
+			results.printf("%2d segments: %8.1f ms  %8.1f MB/s%n", count, seconds * 1000, sizeMB / seconds);
+		}
+
+		source.delete();
+		root.delete();
+		System.exit(0);
+	}
+
+	// Run FTPServer on any free port and wait for it to listen
+	private static int startServer() throws InterruptedException {
+		Thread server = new Thread(new Runnable() {
+			public void run() {
+				try {
+					FTPServer.main(new String[] {"0", "-pasv", "64"});
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}, "ftp-server");
+		server.setDaemon(true);
+		server.start();
+		while (FTPServer.welcomeSocket == null || FTPServer.dataPorts == null) {
+			Thread.sleep(10);
+		}
+		return FTPServer.welcomeSocket.getLocalPort();
+	}
+}
+
+/*
+ * Proxy for the control connection. Passive replies are rewritten to point
+ * at a proxy of their own, so data connections get the same delay.
+ */
+class DelayProxy implements Runnable {
+	private static final Pattern PASSIVE_REPLY = Pattern.compile("^227 .*\\((\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)\\)");
+
+	final int port;
+	private final int serverPort;
+	private final int delay;
+	private final int window;
+	private final ServerSocket listener;
+
+	DelayProxy(int serverPort, int delay, int window) throws IOException {
+		this.serverPort = serverPort;
+		this.delay = delay;
+		this.window = window;
+		this.listener = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+		this.port = listener.getLocalPort();
+	}
+
+	public void run() {
+		try {
+			while (true) {
+				Socket client = listener.accept();
+				Socket server = new Socket(InetAddress.getLoopbackAddress(), serverPort);
+				new DelayPipe(client, server, delay, window, null).start();
+				new DelayPipe(server, client, delay, window, this).start();
+			}
+		} catch (IOException e) {
+
+		}
+	}
+
+	// Point a 227 reply at a new single-use proxy in front of the data port
+	String rewrite(String line) throws IOException {
+		Matcher matcher = PASSIVE_REPLY.matcher(line);
+		if (!matcher.find()) return line;
+		int dataPort = Integer.parseInt(matcher.group(5)) * 256 + Integer.parseInt(matcher.group(6));
+		final ServerSocket dataListener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		final InetSocketAddress server = new InetSocketAddress(InetAddress.getLoopbackAddress(), dataPort);
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					Socket client = dataListener.accept();
+					dataListener.close();
+					Socket data = new Socket();
+					data.connect(server);
+					new DelayPipe(client, data, delay, window, null).start();
+					new DelayPipe(data, client, delay, window, null).start();
+				} catch (IOException e) {
+
+				}
+			}
+		}, "delay-proxy-data").start();
+		int port = dataListener.getLocalPort();
+		return "227 Entering Passive Mode (127,0,0,1," + port / 256 + "," + port % 256 + ")." + "\r\n";
+	}
+}
+
+/*
+ * Copies one direction of a connection. Every chunk is held for the delay,
+ * and the reader stops once a window of bytes is waiting, so a single pipe
+ * moves at most window bytes per delay.
+ */
+class DelayPipe {
+	private static final int CHUNK = 16 * 1024;
+
+	private final Socket from;
+	private final Socket to;
+	private final long delay;
+	private final int window;
+	private final DelayProxy control;	// Rewrites passive replies, null for plain pipes
+	private final Semaphore inFlight;
+	private final LinkedBlockingQueue<Chunk> queue = new LinkedBlockingQueue<Chunk>();
+
+	DelayPipe(Socket from, Socket to, int delay, int window, DelayProxy control) {
+		this.from = from;
+		this.to = to;
+		this.delay = delay * 1000000L;
+		this.window = window;
+		this.control = control;
+		this.inFlight = new Semaphore(window);
+	}
+
+	void start() {
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				read();
+			}
+		}, "delay-pipe-read");
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "delay-pipe-write");
+		reader.setDaemon(true);
+		writer.setDaemon(true);
+		reader.start();
+		writer.start();
+	}
+
+	private void read() {
+		try {
+			InputStream in = from.getInputStream();
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			byte[] bytes = new byte[CHUNK];
+			while (true) {
+				int size = Math.min(CHUNK, window);
+				inFlight.acquire(size);
+				int read = in.read(bytes, 0, size);
+				inFlight.release(size - Math.max(read, 0));
+				if (read < 0) break;
+
+				if (control == null) {
+					queue.add(new Chunk(Arrays.copyOf(bytes, read), read));
+					continue;
+				}
+
+				// Control replies go through a line at a time so 227 can be rewritten
+				for (int i = 0; i < read; i++) {
+					line.write(bytes[i]);
+					if (bytes[i] == '\n') {
+						String text = control.rewrite(new String(line.toByteArray(), StandardCharsets.ISO_8859_1));
+						queue.add(new Chunk(text.getBytes(StandardCharsets.ISO_8859_1), 0));
+						line.reset();
+					}
+				}
+				inFlight.release(read);
+			}
+		} catch (IOException e) {
+
+		} catch (InterruptedException e) {
+
+		}
+		queue.add(new Chunk(null, 0));
+	}
+
+	private void write() {
+		try {
+			OutputStream out = to.getOutputStream();
+			while (true) {
+				Chunk chunk = queue.take();
+				long wait = chunk.arrival + delay - System.nanoTime();
+				if (wait > 0) {
+					Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+				}
+				if (chunk.bytes == null) break;
+				out.write(chunk.bytes);
+				inFlight.release(chunk.permits);
+			}
+			to.shutdownOutput();
+		} catch (IOException e) {
+			closeQuietly();
+		} catch (InterruptedException e) {
+			closeQuietly();
+		}
+	}
+
+	private void closeQuietly() {
+		inFlight.release(window);	// Wake the reader so it sees the closed socket
+		try {
+			from.close();
+			to.close();
+		} catch (IOException e) {
+
+		}
+	}
+
+	private static class Chunk {
+		final byte[] bytes;	// null marks the end of the stream
+		final int permits;	// Window bytes given back once written
+		final long arrival = System.nanoTime();
+
+		Chunk(byte[] bytes, int permits) {
+			this.bytes = bytes;
+			this.permits = permits;
+		}
+	}
+}
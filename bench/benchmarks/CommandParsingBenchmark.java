@@ -0,0 +1,75 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Server side command parsing: cutting a line, finding the verb and
+ * building the parameter. CommandLine replaced FTPServer.buildParameter
+ * and gives the same parameters, so this is the path every command takes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParsingBenchmark {
+	private static final MethodHandle NEW = DefaultPackage.constructor("CommandLine")
+			.asType(MethodType.methodType(Object.class));
+	private static final MethodHandle SET = DefaultPackage.method("CommandLine", "set", String.class)
+			.asType(MethodType.methodType(Object.class, Object.class, String.class));
+	private static final MethodHandle VERB = DefaultPackage.method("CommandLine", "verb")
+			.asType(MethodType.methodType(int.class, Object.class));
+	private static final MethodHandle PARAMETER = DefaultPackage.method("CommandLine", "parameter")
+			.asType(MethodType.methodType(String.class, Object.class));
+
+	// Typical lines, and one with the odd spacing the parser has to keep
+	@Param({"user", "port", "retr", "spaces"})
+	public String kind;
+
+	private String line;
+	private Object command;
+
+	@Setup
+	public void setup() throws Throwable {
+		if (kind.equals("user")) {
+			line = "USER anonymous\r\n";
+		} else if (kind.equals("port")) {
+			line = "PORT 127,0,0,1,35,40\r\n";
+		} else if (kind.equals("retr")) {
+			line = "RETR retr_files/file4\r\n";
+		} else {
+			line = "retr  a  b\tc \r\n";
+		}
+		command = (Object) NEW.invokeExact();
+	}
+
+	@Benchmark
+	public void parse(Blackhole blackhole) throws Throwable {
+		Object parsed = (Object) SET.invokeExact(command, line);
+		blackhole.consume((int) VERB.invokeExact(parsed));
+		blackhole.consume((String) PARAMETER.invokeExact(parsed));
+	}
+
+	// The verb alone, as for commands without a parameter
+	@Benchmark
+	public int verb() throws Throwable {
+		Object parsed = (Object) SET.invokeExact(command, line);
+		return (int) VERB.invokeExact(parsed);
+	}
+}
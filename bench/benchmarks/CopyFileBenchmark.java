@@ -0,0 +1,143 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * A whole RETR on the data side: FileManager.copyFile connects to a PORT
+ * address on loopback and sends the file, which a thread here reads and
+ * throws away. Replies go to a session that discards them. The file comes
+ * from disk, or from a MemoryFileStore to leave out the disk and the
+ * page cache and measure only the network and protocol.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CopyFileBenchmark {
+	private static final MethodHandle NEW_SESSION = DefaultPackage.constructor("NullSession")
+			.asType(MethodType.methodType(Object.class));
+	private static final MethodHandle NEW_REPLY = DefaultPackage.constructor("ServerReply")
+			.asType(MethodType.methodType(Object.class));
+	private static final MethodHandle LOOKUP_FILE = DefaultPackage.method("FTPServer", "lookupFile", String.class)
+			.asType(MethodType.methodType(Object.class, String.class));
+	private static final MethodHandle COPY_FILE = DefaultPackage.method("FileManager", "copyFile",
+			DefaultPackage.type("ServerSession"), String.class, DefaultPackage.type("FileIndex$Entry"), long.class, DefaultPackage.type("ServerReply"))
+			.asType(MethodType.methodType(boolean.class, Object.class, String.class, Object.class, long.class, Object.class));
+	private static final MethodHandle NEW_DISK_STORE = DefaultPackage.constructor("LocalFileStore", File.class)
+			.asType(MethodType.methodType(Object.class, File.class));
+	private static final MethodHandle NEW_MEMORY_STORE = DefaultPackage.constructor("MemoryFileStore")
+			.asType(MethodType.methodType(Object.class));
+	private static final MethodHandle PUT = DefaultPackage.method("MemoryFileStore", "put", String.class, byte[].class, long.class)
+			.asType(MethodType.methodType(void.class, Object.class, String.class, byte[].class, long.class));
+
+	@Param({"4096", "1048576", "67108864"})
+	public int size;
+
+	@Param({"disk", "memory"})
+	public String store;
+
+	private File directory;
+	private ServerSocketChannel sink;
+	private Thread drain;
+	private Object session;
+	private Object reply;
+
+	@Setup(Level.Trial)
+	public void setup() throws Throwable {
+		directory = Files.createTempDirectory("ftp-jmh").toFile();
+		byte[] bytes = new byte[size];
+		new Random(431).nextBytes(bytes);
+		FileOutputStream out = new FileOutputStream(new File(directory, "file"));
+		out.write(bytes);
+		out.close();
+		Object files;
+		if (store.equals("memory")) {
+			files = (Object) NEW_MEMORY_STORE.invokeExact();
+			PUT.invokeExact(files, "file", bytes, System.currentTimeMillis());
+		} else {
+			files = (Object) NEW_DISK_STORE.invokeExact(directory);
+		}
+		DefaultPackage.setStatic("FTPServer", "fileStore", files);
+
+		sink = ServerSocketChannel.open();
+		sink.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		drain = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "copy-file-sink");
+		drain.setDaemon(true);
+		drain.start();
+
+		session = (Object) NEW_SESSION.invokeExact();
+		reply = (Object) NEW_REPLY.invokeExact();
+		int port = ((InetSocketAddress) sink.getLocalAddress()).getPort();
+		DefaultPackage.set(session, "hostAddress", new String[] {"127.0.0.1", Integer.toString(port)});
+		DefaultPackage.set(session, "portSet", true);
+	}
+
+	// Read every data connection to the end
+	private void drain() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+		try {
+			while (true) {
+				SocketChannel data = sink.accept();
+				try {
+					while (data.read(buffer) >= 0) {
+						buffer.clear();
+					}
+				} finally {
+					data.close();
+				}
+			}
+		} catch (IOException e) {
+			// The sink was closed
+		}
+	}
+
+	@Benchmark
+	public boolean copyFile() throws Throwable {
+		// Looked up as RETR does before it calls copyFile
+		Object entry = (Object) LOOKUP_FILE.invokeExact("file");
+		boolean copied = (boolean) COPY_FILE.invokeExact(session, "file", entry, 0L, reply);
+		if (!copied) {
+			throw new IllegalStateException("copyFile failed");
+		}
+		return copied;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		sink.close();
+		new File(directory, "file").delete();
+		directory.delete();
+	}
+}
@@ -0,0 +1,76 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/*
+ * The server and client live in the default package, which no named
+ * package can import, and JMH won't generate code for benchmarks in the
+ * default package. Benchmarks reach the classes through method handles
+ * kept in static final fields, which the JIT inlines like direct calls.
+ */
+final class DefaultPackage {
+
+	private DefaultPackage() {
+
+	}
+
+	static Class<?> type(String name) {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Handle for a static or instance method, any access
+	static MethodHandle method(String className, String name, Class<?>... parameters) {
+		try {
+			Method method = type(className).getDeclaredMethod(name, parameters);
+			method.setAccessible(true);
+			return MethodHandles.lookup().unreflect(method);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static MethodHandle constructor(String className, Class<?>... parameters) {
+		try {
+			Constructor<?> constructor = type(className).getDeclaredConstructor(parameters);
+			constructor.setAccessible(true);
+			return MethodHandles.lookup().unreflectConstructor(constructor);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Set a field, looking through the superclasses
+	static void set(Object target, String name, Object value) {
+		for (Class<?> type = target.getClass(); type != null; type = type.getSuperclass()) {
+			try {
+				Field field = type.getDeclaredField(name);
+				field.setAccessible(true);
+				field.set(target, value);
+				return;
+			} catch (NoSuchFieldException e) {
+				// Try the superclass
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		throw new IllegalStateException("No field " + name);
+	}
+
+	static void setStatic(String className, String name, Object value) {
+		try {
+			Field field = type(className).getDeclaredField(name);
+			field.setAccessible(true);
+			field.set(null, value);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
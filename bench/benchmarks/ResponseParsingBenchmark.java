@@ -0,0 +1,52 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Client side splitting of a server reply into code, spaces and text.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseParsingBenchmark {
+	private static final MethodHandle SPLIT_REQUEST = DefaultPackage.method("ParseResponse", "splitRequest", String.class)
+			.asType(MethodType.methodType(String[].class, String.class));
+
+	@Param({"200", "227", "550"})
+	public String code;
+
+	private String response;
+
+	@Setup
+	public void setup() {
+		if (code.equals("200")) {
+			response = "200 Command OK.\r\n";
+		} else if (code.equals("227")) {
+			response = "227 Entering Passive Mode (127,0,0,1,148,137).\r\n";
+		} else {
+			response = "550 File not found or access denied.\r\n";
+		}
+	}
+
+	@Benchmark
+	public String[] splitRequest() throws Throwable {
+		return (String[]) SPLIT_REQUEST.invokeExact(response);
+	}
+}
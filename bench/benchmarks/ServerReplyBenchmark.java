@@ -0,0 +1,64 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Building a reply and turning it into text. Fixed replies come from the
+ * pre-encoded table, built ones are appended into the reply's buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerReplyBenchmark {
+	private static final MethodHandle NEW = DefaultPackage.constructor("ServerReply")
+			.asType(MethodType.methodType(Object.class));
+	private static final MethodHandle SET_REPLY_BY_CODE = DefaultPackage.method("ServerReply", "setReplyByCode", int.class)
+			.asType(MethodType.methodType(Object.class, Object.class, int.class));
+	private static final MethodHandle GET_MESSAGE = DefaultPackage.method("ServerReply", "getMessage")
+			.asType(MethodType.methodType(String.class, Object.class));
+	private static final MethodHandle START = DefaultPackage.method("ServerReply", "start", int.class)
+			.asType(MethodType.methodType(Object.class, Object.class, int.class));
+	private static final MethodHandle APPEND = DefaultPackage.method("ServerReply", "append", String.class)
+			.asType(MethodType.methodType(Object.class, Object.class, String.class));
+
+	@Param({"150", "250", "530", "550"})
+	public int code;
+
+	private Object reply;
+
+	@Setup
+	public void setup() throws Throwable {
+		reply = (Object) NEW.invokeExact();
+	}
+
+	@Benchmark
+	public String setReplyByCode() throws Throwable {
+		Object set = (Object) SET_REPLY_BY_CODE.invokeExact(reply, code);
+		return (String) GET_MESSAGE.invokeExact(set);
+	}
+
+	// A reply with changing text, like TYPE and PORT send
+	@Benchmark
+	public String built() throws Throwable {
+		Object started = (Object) START.invokeExact(reply, code);
+		Object appended = (Object) APPEND.invokeExact(started, "Type set to I");
+		return (String) GET_MESSAGE.invokeExact(appended);
+	}
+}
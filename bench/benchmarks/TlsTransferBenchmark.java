@@ -0,0 +1,182 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * CopyFileBenchmark with PROT P: FileManager.copyFile sends the file over
+ * TLS to a thread here that decrypts it and throws it away. "plain" is the
+ * same transfer without TLS, "full" gives the reading side a new session
+ * cache for every connection so each one does the whole key exchange, and
+ * "resumed" keeps one cache, the way a client's data connections resume
+ * its control session. The keystore is made with keytool in setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsTransferBenchmark {
+	private static final String PASSWORD = "benchmark";
+
+	private static final MethodHandle NEW_SESSION = DefaultPackage.constructor("NullSession")
+			.asType(MethodType.methodType(Object.class));
+	private static final MethodHandle NEW_DISK_STORE = DefaultPackage.constructor("LocalFileStore", File.class)
+			.asType(MethodType.methodType(Object.class, File.class));
+	private static final MethodHandle NEW_REPLY = DefaultPackage.constructor("ServerReply")
+			.asType(MethodType.methodType(Object.class));
+	private static final MethodHandle LOOKUP_FILE = DefaultPackage.method("FTPServer", "lookupFile", String.class)
+			.asType(MethodType.methodType(Object.class, String.class));
+	private static final MethodHandle COPY_FILE = DefaultPackage.method("FileManager", "copyFile",
+			DefaultPackage.type("ServerSession"), String.class, DefaultPackage.type("FileIndex$Entry"), long.class, DefaultPackage.type("ServerReply"))
+			.asType(MethodType.methodType(boolean.class, Object.class, String.class, Object.class, long.class, Object.class));
+	private static final MethodHandle SERVER_CONTEXT = DefaultPackage.method("TlsContext", "server", String.class, String.class)
+			.asType(MethodType.methodType(Object.class, String.class, String.class));
+	private static final MethodHandle CLIENT_CONTEXT = DefaultPackage.method("TlsContext", "client", String.class, String.class)
+			.asType(MethodType.methodType(Object.class, String.class, String.class));
+	private static final MethodHandle CLIENT_ENGINE = DefaultPackage.method("TlsContext", "clientEngine", String.class, int.class)
+			.asType(MethodType.methodType(SSLEngine.class, Object.class, String.class, int.class));
+	private static final MethodHandle OPEN = DefaultPackage.method("TlsChannel", "open",
+			DefaultPackage.type("TlsContext"), SSLEngine.class, SocketChannel.class, boolean.class)
+			.asType(MethodType.methodType(ByteChannel.class, Object.class, SSLEngine.class, SocketChannel.class, boolean.class));
+
+	@Param({"plain", "full", "resumed"})
+	public String mode;
+
+	@Param({"4096", "1048576", "67108864"})
+	public int size;
+
+	private File directory;
+	private File keyStore;
+	private ServerSocketChannel sink;
+	private Thread drain;
+	private Object session;
+	private Object reply;
+	private Object clientContext;	// Shared by every connection when resuming
+
+	@Setup(Level.Trial)
+	public void setup() throws Throwable {
+		directory = Files.createTempDirectory("ftp-jmh").toFile();
+		byte[] bytes = new byte[size];
+		new Random(431).nextBytes(bytes);
+		FileOutputStream out = new FileOutputStream(new File(directory, "file"));
+		out.write(bytes);
+		out.close();
+		DefaultPackage.setStatic("FTPServer", "fileStore", (Object) NEW_DISK_STORE.invokeExact(directory));
+
+		session = (Object) NEW_SESSION.invokeExact();
+		reply = (Object) NEW_REPLY.invokeExact();
+		if (!mode.equals("plain")) {
+			keyStore = new File(directory, "keystore.p12");
+			generateKeyStore(keyStore);
+			DefaultPackage.setStatic("FTPServer", "tls", (Object) SERVER_CONTEXT.invokeExact(keyStore.getPath(), PASSWORD));
+			DefaultPackage.set(session, "protectData", true);
+			clientContext = (Object) CLIENT_CONTEXT.invokeExact(keyStore.getPath(), PASSWORD);
+		}
+
+		sink = ServerSocketChannel.open();
+		sink.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		drain = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "tls-transfer-sink");
+		drain.setDaemon(true);
+		drain.start();
+
+		int port = ((InetSocketAddress) sink.getLocalAddress()).getPort();
+		DefaultPackage.set(session, "hostAddress", new String[] {"127.0.0.1", Integer.toString(port)});
+		DefaultPackage.set(session, "portSet", true);
+	}
+
+	// A self-signed EC key for localhost, valid for a day
+	private static void generateKeyStore(File file) throws IOException, InterruptedException {
+		String keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool").getPath();
+		Process process = new ProcessBuilder(keytool, "-genkeypair", "-keyalg", "EC", "-groupname", "secp256r1",
+				"-alias", "ftp", "-keystore", file.getPath(), "-storetype", "PKCS12", "-storepass", PASSWORD,
+				"-dname", "CN=localhost", "-ext", "SAN=dns:localhost", "-validity", "1")
+				.redirectErrorStream(true).start();
+		process.getInputStream().close();
+		if (process.waitFor() != 0) {
+			throw new IOException("keytool failed");
+		}
+	}
+
+	// Read every data connection to the end, decrypting it unless plain
+	private void drain() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+		try {
+			while (true) {
+				SocketChannel socket = sink.accept();
+				ByteChannel data = socket;
+				try {
+					if (!mode.equals("plain")) {
+						Object context = mode.equals("resumed") ? clientContext
+								: (Object) CLIENT_CONTEXT.invokeExact(keyStore.getPath(), PASSWORD);
+						SSLEngine engine = (SSLEngine) CLIENT_ENGINE.invokeExact(context, "localhost", 21);
+						data = (ByteChannel) OPEN.invokeExact(context, engine, socket, true);
+					}
+					while (data.read(buffer) >= 0) {
+						buffer.clear();
+					}
+				} catch (IOException e) {
+					// The sender went away, wait for the next one
+				} finally {
+					data.close();
+				}
+			}
+		} catch (Throwable e) {
+			// The sink was closed
+		}
+	}
+
+	@Benchmark
+	public boolean copyFile() throws Throwable {
+		// Looked up as RETR does before it calls copyFile
+		Object entry = (Object) LOOKUP_FILE.invokeExact("file");
+		boolean copied = (boolean) COPY_FILE.invokeExact(session, "file", entry, 0L, reply);
+		if (!copied) {
+			throw new IllegalStateException("copyFile failed");
+		}
+		return copied;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		sink.close();
+		new File(directory, "file").delete();
+		if (keyStore != null) {
+			keyStore.delete();
+		}
+		directory.delete();
+	}
+}
@@ -0,0 +1,126 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * The client side of a download: ClientFileManager.copy reads a data
+ * connection on loopback to the end with a buffer of the given size, while
+ * a thread here sends the transfer and closes. One operation is one
+ * transfer, so bytes per second is ops/s times the transfer size. Run over
+ * the buffer sizes it gives the throughput curve TransferTuning sizes
+ * buffers from.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBufferBenchmark {
+	private static final MethodHandle COPY = DefaultPackage.method("ClientFileManager", "copy",
+			InputStream.class, OutputStream.class, int.class)
+			.asType(MethodType.methodType(long.class, InputStream.class, OutputStream.class, int.class));
+
+	@Param({"1024", "8192", "65536", "262144", "1048576"})
+	public int bufferSize;
+
+	@Param({"16777216"})
+	public int transferSize;
+
+	private ServerSocketChannel source;
+	private Thread sender;
+	private InetSocketAddress address;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		source = ServerSocketChannel.open();
+		source.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		address = (InetSocketAddress) source.getLocalAddress();
+		sender = new Thread(new Runnable() {
+			public void run() {
+				send();
+			}
+		}, "transfer-source");
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	// Send transferSize bytes down every connection and close it
+	private void send() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+		try {
+			while (true) {
+				SocketChannel data = source.accept();
+				try {
+					long remaining = transferSize;
+					while (remaining > 0) {
+						buffer.clear();
+						buffer.limit((int) Math.min(buffer.capacity(), remaining));
+						remaining -= data.write(buffer);
+					}
+				} catch (IOException e) {
+					// The reader went away, wait for the next one
+				} finally {
+					data.close();
+				}
+			}
+		} catch (IOException e) {
+			// The source was closed
+		}
+	}
+
+	@Benchmark
+	public long copy(final Blackhole blackhole) throws Throwable {
+		Socket data = new Socket();
+		try {
+			data.connect(address);
+			OutputStream sink = new OutputStream() {
+				public void write(int b) {
+					blackhole.consume(b);
+				}
+
+				public void write(byte[] b, int offset, int length) {
+					blackhole.consume(b);
+				}
+			};
+			long copied = (long) COPY.invokeExact(data.getInputStream(), sink, bufferSize);
+			if (copied != transferSize) {
+				throw new IllegalStateException("Copied " + copied + " of " + transferSize);
+			}
+			return copied;
+		} finally {
+			data.close();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		source.close();
+	}
+}
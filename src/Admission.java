@@ -0,0 +1,120 @@
+/*
+ * Classes
+ * 	Admission - Caps on sessions, sessions per address and data transfers running at once
+ */
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Connections past a cap are turned away with a 421 as soon as they are
+ * accepted, instead of waiting in a queue for a worker that may take
+ * minutes to free up. Transfers past their cap wait in line for a permit
+ * for a bounded time and then get a 450, so under overload a transfer is
+ * either started within that time or refused, and the sessions already
+ * served keep their pace. A cap of 0 is no cap.
+ */
+class Admission {
+	public final int maxSessions;
+	public final int maxSessionsPerAddress;
+	public final int maxTransfers;
+	public final long transferWaitNanos;	// Longest a transfer waits for a permit
+
+	public final LongAdder rejectedSessions = new LongAdder();
+	public final LongAdder rejectedTransfers = new LongAdder();
+	public final LongAdder queuedTransfers = new LongAdder();	// Transfers that had to wait
+
+	private final AtomicInteger sessions = new AtomicInteger();
+	private final ConcurrentHashMap<InetAddress, AtomicInteger> addresses = new ConcurrentHashMap<InetAddress, AtomicInteger>();
+	private final Semaphore transfers;
+
+	public Admission(int maxSessions, int maxSessionsPerAddress, int maxTransfers, long transferWaitMillis) {
+		this.maxSessions = Math.max(0, maxSessions);
+		this.maxSessionsPerAddress = Math.max(0, maxSessionsPerAddress);
+		this.maxTransfers = Math.max(0, maxTransfers);
+		this.transferWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, transferWaitMillis));
+		this.transfers = this.maxTransfers == 0 ? null : new Semaphore(this.maxTransfers, true);
+	}
+
+	// Count a new connection from the address, or false if it is over a cap
+	public boolean admitSession(InetAddress address) {
+		if (sessions.incrementAndGet() > maxSessions && maxSessions > 0) {
+			sessions.decrementAndGet();
+			rejectedSessions.increment();
+			return false;
+		}
+		if (maxSessionsPerAddress > 0 && address != null) {
+			AtomicInteger count = addresses.get(address);
+			while (true) {
+				if (count == null) {
+					count = addresses.putIfAbsent(address, new AtomicInteger(1));
+					if (count == null) break;
+				}
+				int current = count.get();
+				if (current == 0) {
+					// Removed by releaseSession, start over with a new counter
+					addresses.remove(address, count);
+					count = null;
+					continue;
+				}
+				if (current >= maxSessionsPerAddress) {
+					sessions.decrementAndGet();
+					rejectedSessions.increment();
+					return false;
+				}
+				if (count.compareAndSet(current, current + 1)) break;
+			}
+		}
+		return true;
+	}
+
+	public void releaseSession(InetAddress address) {
+		sessions.decrementAndGet();
+		if (maxSessionsPerAddress > 0 && address != null) {
+			AtomicInteger count = addresses.get(address);
+			if (count != null && count.decrementAndGet() == 0) {
+				addresses.remove(address, count);
+			}
+		}
+	}
+
+	// Wait for a transfer permit until the deadline, in System.nanoTime() terms.
+	// False if none came free in time, or the deadline passed before the call.
+	public boolean acquireTransfer(long deadline) {
+		long remaining = deadline - System.nanoTime();
+		if (remaining < 0) {
+			// Already waited that long for a worker
+			queuedTransfers.increment();
+			rejectedTransfers.increment();
+			return false;
+		}
+		if (transfers == null) return true;
+		if (transfers.tryAcquire()) return true;
+		queuedTransfers.increment();
+		try {
+			if (transfers.tryAcquire(remaining, TimeUnit.NANOSECONDS)) return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		rejectedTransfers.increment();
+		return false;
+	}
+
+	public void releaseTransfer() {
+		if (transfers != null) {
+			transfers.release();
+		}
+	}
+
+	public int sessions() {
+		return sessions.get();
+	}
+
+	public int transfers() {
+		return transfers == null ? 0 : maxTransfers - transfers.availablePermits();
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Classes
+ * 	Bandwidth - Global and per-session limits on the rate files are sent at
+ */
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Downloads take tokens from the bucket of their session first and from
+ * the global bucket after that. A transfer held back by its own cap
+ * doesn't hold global tokens while it waits, so whatever it leaves unused
+ * goes to the others, and the global rate ends up split evenly between
+ * the transfers that can use it. Transfers take a slice at a time, about
+ * a fiftieth of a second of the lower limit, so they take turns often.
+ */
+class Bandwidth implements BandwidthMBean {
+	public static final long MIN_SLICE = 4 * 1024;	// Bytes sent per token request
+	public static final long MAX_SLICE = 256 * 1024;
+
+	private volatile long globalLimit;
+	private volatile long sessionLimit;
+	private final TokenBucket global = new TokenBucket();
+	private final LongAdder activeTransfers = new LongAdder();
+	private final LongAdder throttledNanos = new LongAdder();
+
+	public Bandwidth(long globalLimit, long sessionLimit) {
+		this.globalLimit = Math.max(0, globalLimit);
+		this.sessionLimit = Math.max(0, sessionLimit);
+	}
+
+	// The data connection of a download, throttled for the session
+	public ThrottledChannel open(ServerSession session, WritableByteChannel channel) {
+		activeTransfers.increment();
+		return new ThrottledChannel(this, session.bandwidth, channel);
+	}
+
+	void closed() {
+		activeTransfers.decrement();
+	}
+
+	// Bytes to send before asking again, unlimited when there are no limits
+	long slice(long wanted) {
+		long limit = lowerLimit();
+		if (limit == 0) return wanted;
+		return Math.min(wanted, Math.max(MIN_SLICE, Math.min(MAX_SLICE, limit / 50)));
+	}
+
+	// Wait until the session and then the server may send the bytes
+	void acquire(TokenBucket session, long bytes) throws IOException {
+		long waited = session.take(bytes, sessionLimit) + global.take(bytes, globalLimit);
+		if (waited > 0) {
+			throttledNanos.add(waited);
+		}
+	}
+
+	// Give back tokens for bytes that were not sent after all
+	void refund(TokenBucket session, long bytes) {
+		session.refund(bytes, sessionLimit);
+		global.refund(bytes, globalLimit);
+	}
+
+	private long lowerLimit() {
+		long global = globalLimit;
+		long session = sessionLimit;
+		if (global == 0) return session;
+		if (session == 0) return global;
+		return Math.min(global, session);
+	}
+
+	public long getGlobalLimit() {
+		return globalLimit;
+	}
+
+	public void setGlobalLimit(long bytesPerSecond) {
+		globalLimit = Math.max(0, bytesPerSecond);
+	}
+
+	public long getSessionLimit() {
+		return sessionLimit;
+	}
+
+	public void setSessionLimit(long bytesPerSecond) {
+		sessionLimit = Math.max(0, bytesPerSecond);
+	}
+
+	public long getActiveTransfers() {
+		return activeTransfers.sum();
+	}
+
+	public long getThrottledMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(throttledNanos.sum());
+	}
+}
@@ -0,0 +1,17 @@
+/*
+ * Classes
+ * 	BandwidthMBean - JMX view of the download rate limits
+ */
+
+/*
+ * Attributes registered as FTPServer:type=Bandwidth. The limits are in
+ * bytes per second, 0 for none, and take effect on transfers in progress.
+ */
+public interface BandwidthMBean {
+	long getGlobalLimit();
+	void setGlobalLimit(long bytesPerSecond);
+	long getSessionLimit();
+	void setSessionLimit(long bytesPerSecond);
+	long getActiveTransfers();
+	long getThrottledMillis();	// Time transfers spent waiting for tokens
+}
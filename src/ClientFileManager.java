@@ -0,0 +1,134 @@
+/*
+ * Classes
+ * 	ClientFileManager - Copy a file from the data connection into retr_files
+ */
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.util.zip.InflaterInputStream;
+
+/*
+ * Helper file manager class that copies a file from a socket. Data is
+ * written to a partial file named after the remote path, which only
+ * becomes retr_files/fileN once the server confirms the transfer.
+ */
+class ClientFileManager {
+	private static String directory = "retr_files";
+	private static String filePrefix = "file";
+	private static String partialSuffix = ".part";
+	private static String manifestName = ".manifest";
+	public static int fileCount = 1;
+	public static String[] hostAddress;
+	
+	// Where the download of a remote path is kept until it completes
+	public static File partialFile(String filePath) {
+		return new File(directory, filePath.replaceAll("[^A-Za-z0-9._-]", "_") + partialSuffix);
+	}
+	
+	// Copy the file, appending to the partial file when resuming from offset.
+	// Expected is the number of bytes coming, -1 if it isn't known.
+	public static boolean copyFile(String filePath, long offset, long expected, ClientReply reply) {
+		// Copy the file
+		try {
+			Socket connectionSocket = FTPClient.fileSocket.accept();
+			TransferTuning.configureData(connectionSocket);
+			FileOutputStream file = new FileOutputStream(partialFile(filePath), offset > 0);
+			
+			// Copy the file, inflating it in MODE Z
+			try {
+				InputStream in = openData(connectionSocket);
+				if (FTPClient.compressedMode) {
+					in = new InflaterInputStream(in);
+				}
+				long start = System.nanoTime();
+				long copied = copy(in, file, TransferTuning.bufferSize(expected));
+				TransferTuning.recordTransfer(copied, System.nanoTime() - start);
+			} finally {
+				file.close();
+				connectionSocket.close();
+			}
+		} catch (FileNotFoundException e) {
+			return false;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				FTPClient.fileSocket.close();
+			} catch (IOException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	// Copy a listing from the data connection to the console
+	public static boolean printListing(ClientReply reply) {
+		try {
+			Socket connectionSocket = FTPClient.fileSocket.accept();
+			TransferTuning.configureData(connectionSocket);
+			try {
+				InputStream in = openData(connectionSocket);
+				if (FTPClient.compressedMode) {
+					in = new InflaterInputStream(in);
+				}
+				copy(in, System.out, TransferTuning.MIN_BUFFER_SIZE);	// Listings are short
+				System.out.flush();
+			} finally {
+				connectionSocket.close();
+			}
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				FTPClient.fileSocket.close();
+			} catch (IOException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	// The data connection, decrypted after PROT P. The handshake resumes the
+	// control connection's session, since both go to the same host and port.
+	public static InputStream openData(Socket connectionSocket) throws IOException {
+		if (!FTPClient.dataProtected) {
+			return connectionSocket.getInputStream();
+		}
+		TlsContext tls = FTPClient.tlsContext;
+		return Channels.newInputStream(TlsChannel.open(tls, tls.clientEngine(FTPClient.host, FTPClient.port), connectionSocket, true));
+	}
+	
+	// Copy until the stream ends, returns the bytes copied
+	public static long copy(InputStream in, OutputStream out, int bufferSize) throws IOException {
+		byte[] bytes = new byte[bufferSize];
+		long copied = 0;
+		int read = 0;
+		while ((read = in.read(bytes)) != -1) {
+			out.write(bytes, 0, read);
+			copied += read;
+		}
+		return copied;
+	}
+	
+	// Where the download manifest is kept
+	public static File manifestFile() {
+		return new File(directory, manifestName);
+	}
+	
+	// Move a finished download to the next retr_files/fileN. Returns null if that fails.
+	public static File completeFile(String filePath) {
+		File target = new File(directory, filePrefix + fileCount);
+		target.delete();
+		if (!partialFile(filePath).renameTo(target)) {
+			return null;
+		}
+		fileCount++;
+		return target;
+	}
+}
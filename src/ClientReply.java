@@ -0,0 +1,61 @@
+/*
+ * Classes
+ * 	ClientReply - Reply to a client request
+ */
+
+/*
+ * The reply class is used for ease of creating a response to any
+ * client requests.
+ */
+class ClientReply {
+
+	private String message;
+	public boolean errorFlag;
+
+	public ClientReply() {
+		this.message = "";
+		this.errorFlag = false;
+	}
+
+	// Manually set a reply message
+	public ClientReply setMessage(String message) {
+		this.message = message;
+		return this;
+	}
+
+	// Set the reply message with a code
+	public ClientReply setReplyByCode(int code) {
+		String reply;
+		switch (code) {
+		case 0: reply = "ERROR -- expecting CONNECT";
+		errorFlag = true;
+		break;
+		case 1: reply = "ERROR -- request";
+		errorFlag = true;
+		break;
+		case 2: reply = "ERROR -- server-host";
+		errorFlag = true;
+		break;
+		case 3: reply = "ERROR -- server-port";
+		errorFlag = true;
+		break;
+		case 4: reply = "ERROR -- pathname";
+		errorFlag = true;
+		break;
+		case 5: reply = "QUIT accepted, terminating FTP client";
+		break;
+		default: reply = "Invalid code";
+		break;
+		}
+		message = reply + "\n";
+		return this;
+	}
+
+	public void printMessage() {
+		System.out.print(message);
+	}
+
+	public void printLineMessage() {
+		System.out.println(message);
+	}
+}
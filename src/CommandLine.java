@@ -0,0 +1,334 @@
+/*
+ * Classes
+ * 	CommandLine - A command line from the control connection, parsed in place
+ */
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/*
+ * Reusable holder for one command line. Lines are cut out of a byte
+ * buffer on \r\n, \n or a lone \r, and the verb and parameter are found
+ * without regular expressions or temporary strings. The tokens are the
+ * ones command.split("(?<=\\s)|(\\s)") used to produce, so every odd input
+ * gets the same parameter, and the same reply, as before.
+ */
+class CommandLine {
+	public static final int MAX_LENGTH = 8 * 1024;	// Longer lines are rejected
+
+	// Verbs packed as uppercase ASCII into an int, for the dispatch switch
+	public static final int USER = ('U' << 24) | ('S' << 16) | ('E' << 8) | 'R';
+	public static final int PASS = ('P' << 24) | ('A' << 16) | ('S' << 8) | 'S';
+	public static final int TYPE = ('T' << 24) | ('Y' << 16) | ('P' << 8) | 'E';
+	public static final int PORT = ('P' << 24) | ('O' << 16) | ('R' << 8) | 'T';
+	public static final int RETR = ('R' << 24) | ('E' << 16) | ('T' << 8) | 'R';
+	public static final int SYST = ('S' << 24) | ('Y' << 16) | ('S' << 8) | 'T';
+	public static final int NOOP = ('N' << 24) | ('O' << 16) | ('O' << 8) | 'P';
+	public static final int QUIT = ('Q' << 24) | ('U' << 16) | ('I' << 8) | 'T';
+	public static final int PASV = ('P' << 24) | ('A' << 16) | ('S' << 8) | 'V';
+	public static final int EPSV = ('E' << 24) | ('P' << 16) | ('S' << 8) | 'V';
+	public static final int REST = ('R' << 24) | ('E' << 16) | ('S' << 8) | 'T';
+	public static final int MODE = ('M' << 24) | ('O' << 16) | ('D' << 8) | 'E';
+	public static final int STOR = ('S' << 24) | ('T' << 16) | ('O' << 8) | 'R';
+	public static final int APPE = ('A' << 24) | ('P' << 16) | ('P' << 8) | 'E';
+	public static final int ALLO = ('A' << 24) | ('L' << 16) | ('L' << 8) | 'O';
+	public static final int SIZE = ('S' << 24) | ('I' << 16) | ('Z' << 8) | 'E';
+	public static final int STAT = ('S' << 24) | ('T' << 16) | ('A' << 8) | 'T';
+	public static final int SITE = ('S' << 24) | ('I' << 16) | ('T' << 8) | 'E';
+	public static final int LIST = ('L' << 24) | ('I' << 16) | ('S' << 8) | 'T';
+	public static final int NLST = ('N' << 24) | ('L' << 16) | ('S' << 8) | 'T';
+	public static final int MLSD = ('M' << 24) | ('L' << 16) | ('S' << 8) | 'D';
+	public static final int MDTM = ('M' << 24) | ('D' << 16) | ('T' << 8) | 'M';
+	public static final int HASH = ('H' << 24) | ('A' << 16) | ('S' << 8) | 'H';
+	public static final int XCRC = ('X' << 24) | ('C' << 16) | ('R' << 8) | 'C';
+	public static final int XMD5 = ('X' << 24) | ('M' << 16) | ('D' << 8) | '5';
+	public static final int OPTS = ('O' << 24) | ('P' << 16) | ('T' << 8) | 'S';
+	public static final int RANG = ('R' << 24) | ('A' << 16) | ('N' << 8) | 'G';
+	public static final int AUTH = ('A' << 24) | ('U' << 16) | ('T' << 8) | 'H';
+	public static final int PBSZ = ('P' << 24) | ('B' << 16) | ('S' << 8) | 'Z';
+	public static final int PROT = ('P' << 24) | ('R' << 16) | ('O' << 8) | 'T';
+
+	private byte[] bytes = new byte[128];	// The raw line, for echoing
+	private int byteLength = 0;
+	private char[] chars = new char[128];	// The decoded line
+	private int length = 0;
+
+	private int[] tokens = new int[32];	// Start and end of each token
+	private int tokenCount = 0;
+
+	private int verb = 0;	// Packed verb, 0 when it can't be one
+	private int verbLength = 0;	// Length of the verb once uppercased
+
+	private char[] scratch = new char[128];	// Parameter under construction
+
+	// Take the next line out of the input and parse it. Returns false if
+	// there is no complete line yet; at the end of input whatever is left
+	// counts as a line.
+	public boolean read(ByteBuffer input, boolean endOfInput) {
+		int start = input.position();
+		int limit = input.limit();
+		int end = -1;
+		for (int i = start; i < limit; i++) {
+			byte b = input.get(i);
+			if (b == '\n') {
+				end = i + 1;
+				break;
+			} else if (b == '\r') {
+				// A \r at the end of the buffer may still be followed by \n
+				if (i + 1 < limit) {
+					end = input.get(i + 1) == '\n' ? i + 2 : i + 1;
+				} else if (endOfInput) {
+					end = i + 1;
+				}
+				break;
+			}
+		}
+		if (end < 0) {
+			if (!endOfInput || start == limit) return false;
+			end = limit;
+		}
+
+		byteLength = end - start;
+		if (bytes.length < byteLength) {
+			bytes = new byte[Math.max(byteLength, bytes.length * 2)];
+		}
+		input.get(bytes, 0, byteLength);
+		decode();
+		parse();
+		return true;
+	}
+
+	// Parse a line given as a string
+	public CommandLine set(String line) {
+		byte[] encoded = line.getBytes(Charset.defaultCharset());
+		return read(ByteBuffer.wrap(encoded), true) ? this : null;
+	}
+
+	private void decode() {
+		length = byteLength;
+		boolean ascii = true;
+		for (int i = 0; i < length; i++) {
+			if (bytes[i] < 0) {
+				ascii = false;
+				break;
+			}
+		}
+
+		if (ascii) {
+			if (chars.length < length) {
+				chars = new char[bytes.length];
+			}
+			for (int i = 0; i < length; i++) {
+				chars[i] = (char) bytes[i];
+			}
+		} else {
+			// Rare, so a temporary string is fine here
+			String decoded = new String(bytes, 0, byteLength, Charset.defaultCharset());
+			length = decoded.length();
+			if (chars.length < length) {
+				chars = new char[length];
+			}
+			decoded.getChars(0, length, chars, 0);
+		}
+	}
+
+	// Same as Pattern "\\s"
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+	}
+
+	/*
+	 * Find the tokens. The old split matched either the empty string right
+	 * after a whitespace character, or else the whitespace character itself,
+	 * and dropped empty tokens from the end.
+	 */
+	private void parse() {
+		tokenCount = 0;
+		int index = 0;
+		boolean matched = false;
+		int position = 0;
+		while (position <= length) {
+			int start;
+			int end;
+			if (position > 0 && isSpace(chars[position - 1])) {
+				start = position;
+				end = position;
+			} else if (position < length && isSpace(chars[position])) {
+				start = position;
+				end = position + 1;
+			} else {
+				position++;
+				continue;
+			}
+			matched = true;
+			addToken(index, start);
+			index = end;
+			position = start == end ? end + 1 : end;
+		}
+		addToken(matched ? index : 0, length);
+		while (tokenCount > 0 && tokenLength(tokenCount - 1) == 0) {
+			tokenCount--;
+		}
+		parseVerb();
+	}
+
+	private void addToken(int start, int end) {
+		if (tokens.length < (tokenCount + 1) * 2) {
+			int[] grown = new int[tokens.length * 2];
+			System.arraycopy(tokens, 0, grown, 0, tokens.length);
+			tokens = grown;
+		}
+		tokens[tokenCount * 2] = start;
+		tokens[tokenCount * 2 + 1] = end;
+		tokenCount++;
+	}
+
+	private int tokenStart(int i) {
+		return tokens[i * 2];
+	}
+
+	private int tokenLength(int i) {
+		return tokens[i * 2 + 1] - tokens[i * 2];
+	}
+
+	// The first token, uppercased and packed when it is short ASCII
+	private void parseVerb() {
+		verb = 0;
+		verbLength = 0;
+		if (tokenCount == 0) return;
+
+		int start = tokenStart(0);
+		int count = tokenLength(0);
+		for (int i = start; i < start + count; i++) {
+			if (chars[i] > 127) {
+				// Uppercasing can change the length of non-ASCII text
+				String upper = new String(chars, start, count).toUpperCase();
+				verbLength = upper.length();
+				if (verbLength <= 4) {
+					verb = pack(upper);
+				}
+				return;
+			}
+		}
+
+		verbLength = count;
+		if (count <= 4) {
+			for (int i = start; i < start + count; i++) {
+				char c = chars[i];
+				if (c >= 'a' && c <= 'z') {
+					c -= 'a' - 'A';
+				}
+				verb = (verb << 8) | c;
+			}
+		}
+	}
+
+	private static int pack(String upper) {
+		int result = 0;
+		for (int i = 0; i < upper.length(); i++) {
+			char c = upper.charAt(i);
+			if (c > 127) return 0;
+			result = (result << 8) | c;
+		}
+		return result;
+	}
+
+	// Packed verb, compare against the constants above
+	public int verb() {
+		return verb;
+	}
+
+	public int verbLength() {
+		return verbLength;
+	}
+
+	// A line of nothing but whitespace with no \n has no tokens at all
+	public boolean isEmpty() {
+		return tokenCount == 0;
+	}
+
+	/*
+	 * The parameter, built the way buildParameter did: tokens from the third
+	 * on, skipping leading single-whitespace tokens and leaving off the last
+	 * two (three when a lone \r precedes them). The tokens are joined without
+	 * the whitespace that separated them.
+	 */
+	public String parameter() {
+		if (tokenCount < 3) return "";
+		int i = 2;
+		int last = tokenCount - (isToken(tokenCount - 3, '\r') ? 3 : 2);
+
+		// Skip leading whitespace tokens
+		while (i < last && tokenLength(i) == 1 && isSpace(chars[tokenStart(i)])) {
+			i++;
+		}
+		if (i >= last) return "";
+		if (i == last - 1) {
+			return new String(chars, tokenStart(i), tokenLength(i));
+		}
+
+		int size = 0;
+		for (int j = i; j < last; j++) {
+			size += tokenLength(j);
+		}
+		if (scratch.length < size) {
+			scratch = new char[size];
+		}
+		size = 0;
+		for (int j = i; j < last; j++) {
+			System.arraycopy(chars, tokenStart(j), scratch, size, tokenLength(j));
+			size += tokenLength(j);
+		}
+		return new String(scratch, 0, size);
+	}
+
+	// The words of the parameter, for the few commands that take more than
+	// one. parameter() runs them together.
+	public String[] arguments() {
+		if (tokenCount < 3) return new String[0];
+		int last = tokenCount - (isToken(tokenCount - 3, '\r') ? 3 : 2);
+		int count = 0;
+		String[] words = new String[Math.max(0, last - 2)];
+		for (int i = 2; i < last; i++) {
+			if (tokenLength(i) == 0 || (tokenLength(i) == 1 && isSpace(chars[tokenStart(i)]))) continue;
+			words[count++] = new String(chars, tokenStart(i), tokenLength(i));
+		}
+		String[] result = new String[count];
+		System.arraycopy(words, 0, result, 0, count);
+		return result;
+	}
+
+	private boolean isToken(int i, char c) {
+		return tokenLength(i) == 1 && chars[tokenStart(i)] == c;
+	}
+
+	// Index of the first occurrence of c, or -1
+	public int indexOf(char c) {
+		for (int i = 0; i < length; i++) {
+			if (chars[i] == c) return i;
+		}
+		return -1;
+	}
+
+	// Index of the first \r\n, or -1
+	public int indexOfLineEnd() {
+		for (int i = 0; i + 1 < length; i++) {
+			if (chars[i] == '\r' && chars[i + 1] == '\n') return i;
+		}
+		return -1;
+	}
+
+	public boolean hasLineEnd() {
+		return indexOfLineEnd() >= 0;
+	}
+
+	// Echo the raw line
+	public void print(PrintStream out) {
+		out.write(bytes, 0, byteLength);
+	}
+
+	public String toString() {
+		return new String(chars, 0, length);
+	}
+}
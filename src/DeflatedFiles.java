@@ -0,0 +1,194 @@
+/*
+ * Classes
+ * 	DeflatedFiles - Disk cache of deflated file contents for MODE Z
+ * 	Sidecar - A deflated copy being written alongside a transfer
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Keeps the deflated output of files sent in MODE Z as sidecar files in a
+ * directory of their own, so a popular file is compressed once and then
+ * sent with transferTo like any other file. The first transfer of a file
+ * writes its sidecar as it streams, and the sidecar only joins the cache
+ * when that transfer finishes. Entries are keyed by path, and dropped as
+ * soon as the size or modification time of the original changes. The
+ * least recently used sidecars are deleted once the total size passes the
+ * capacity. Files larger than the capacity are deflated as they stream
+ * and never get a sidecar, since they couldn't be kept anyway.
+ */
+class DeflatedFiles {
+	public final File directory;	// Where the sidecars live
+	public final long capacity;	// Total deflated bytes kept on disk
+
+	public final LongAdder hits = new LongAdder();
+	public final LongAdder misses = new LongAdder();
+	public final LongAdder evictions = new LongAdder();
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final AtomicLong names = new AtomicLong();
+	private long size = 0;
+
+	public DeflatedFiles(long capacity) throws IOException {
+		this.capacity = capacity;
+		this.directory = Files.createTempDirectory("ftp-deflate").toFile();
+	}
+
+	// Whether a file of this size may get a sidecar. Deflating seldom makes
+	// a file larger, and commit drops a sidecar that still outgrew the cache.
+	public boolean accepts(long length) {
+		return length <= capacity;
+	}
+
+	// Open the sidecar of the file, or return null. Opening under the lock
+	// means an eviction can't delete it in between.
+	public synchronized FileInputStream open(File file) {
+		String key = file.getPath();
+		Entry entry = entries.get(key);
+		if (entry != null) {
+			if (entry.length == file.length() && entry.modified == file.lastModified()) {
+				try {
+					FileInputStream in = new FileInputStream(entry.sidecar);
+					hits.increment();
+					return in;
+				} catch (FileNotFoundException e) {
+					// Deleted behind our back, compress again
+				}
+			}
+			remove(key);
+		}
+		misses.increment();
+		return null;
+	}
+
+	// Start a sidecar for the file. The size and time are taken before
+	// reading so a concurrent change is caught later.
+	public Sidecar create(File file) throws IOException {
+		File temporary = new File(directory, names.incrementAndGet() + ".tmp");
+		return new Sidecar(this, file.getPath(), file.length(), file.lastModified(), temporary);
+	}
+
+	private synchronized void put(String key, Entry entry) {
+		remove(key);
+		entries.put(key, entry);
+		size += entry.size;
+
+		// Evict from the least recently used end
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+		while (size > capacity && iterator.hasNext()) {
+			Entry eldest = iterator.next().getValue();
+			iterator.remove();
+			size -= eldest.size;
+			eldest.sidecar.delete();
+			evictions.increment();
+		}
+	}
+
+	private void remove(String key) {
+		Entry old = entries.remove(key);
+		if (old != null) {
+			size -= old.size;
+			old.sidecar.delete();	// Readers that have it open keep reading
+		}
+	}
+
+	// Delete every sidecar and the directory
+	public synchronized void clear() {
+		for (Entry entry : entries.values()) {
+			entry.sidecar.delete();
+		}
+		entries.clear();
+		size = 0;
+		File[] left = directory.listFiles();
+		if (left != null) {
+			for (File file : left) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	public synchronized long size() {
+		return size;
+	}
+
+	public synchronized int count() {
+		return entries.size();
+	}
+
+	private static class Entry {
+		final File sidecar;
+		final long length;	// Size of the original file
+		final long modified;
+		final long size;	// Size of the sidecar
+
+		Entry(File sidecar, long length, long modified, long size) {
+			this.sidecar = sidecar;
+			this.length = length;
+			this.modified = modified;
+			this.size = size;
+		}
+	}
+
+	/*
+	 * Deflated bytes are written here while they go to the client. Commit
+	 * once the whole file has been deflated, or abandon it.
+	 */
+	static class Sidecar {
+		private final DeflatedFiles owner;
+		private final String key;
+		private final long length;
+		private final long modified;
+		private final File temporary;
+		private final FileOutputStream out;
+		private long size = 0;
+
+		Sidecar(DeflatedFiles owner, String key, long length, long modified, File temporary) throws IOException {
+			this.owner = owner;
+			this.key = key;
+			this.length = length;
+			this.modified = modified;
+			this.temporary = temporary;
+			this.out = new FileOutputStream(temporary);
+		}
+
+		void write(byte[] bytes, int offset, int count) throws IOException {
+			out.write(bytes, offset, count);
+			size += count;
+		}
+
+		// Add the finished sidecar to the cache, unless the original changed meanwhile
+		void commit(File file) throws IOException {
+			out.close();
+			if (size > owner.capacity || file.length() != length || file.lastModified() != modified) {
+				temporary.delete();
+				return;
+			}
+			File sidecar = new File(owner.directory, owner.names.incrementAndGet() + ".z");
+			if (!temporary.renameTo(sidecar)) {
+				temporary.delete();
+				return;
+			}
+			owner.put(key, new Entry(sidecar, length, modified, size));
+		}
+
+		void abandon() {
+			try {
+				out.close();
+			} catch (IOException e) {
+
+			}
+			temporary.delete();
+		}
+	}
+}
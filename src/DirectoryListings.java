@@ -0,0 +1,284 @@
+/*
+ * Classes
+ * 	DirectoryListings - Streams LIST, NLST and MLSD output and caches the listings of hot directories
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Listings are written while the directory is read, one buffer at a time,
+ * so a directory of any size only ever takes a buffer of memory. A copy is
+ * kept on the side as long as it stays under the entry size, and a
+ * complete copy is cached under the modification time the directory had
+ * before it was read. Adding, removing or renaming a file changes that
+ * time, and the entry is dropped on the next lookup. Changes to a file
+ * that leave the directory alone, like appending to it in place, are not
+ * seen until then. A directory modified within the last second may change
+ * again without a new time, so its listing is not kept.
+ */
+class DirectoryListings {
+	public static final int LIST = 0;	// Lines like ls -l
+	public static final int NLST = 1;	// Names only
+	public static final int MLSD = 2;	// Machine readable facts, RFC 3659
+	public static final int BUFFER_SIZE = 64 * 1024;	// Bytes written to the data connection at a time
+	public static final long SETTLE_TIME = 1000;	// Milliseconds a directory must be unchanged to be cached
+
+	private static final DateTimeFormatter RECENT = DateTimeFormatter.ofPattern("MMM dd HH:mm", Locale.ROOT).withZone(ZoneId.systemDefault());
+	private static final DateTimeFormatter OLD = DateTimeFormatter.ofPattern("MMM dd  yyyy", Locale.ROOT).withZone(ZoneId.systemDefault());
+	static final DateTimeFormatter FACT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss", Locale.ROOT).withZone(ZoneOffset.UTC);	// RFC 3659 time, for MLSD and MDTM
+	private static final long HALF_YEAR = TimeUnit.DAYS.toMillis(182);
+
+	public final long capacity;	// Total bytes of listings kept
+	public final long maxEntrySize;	// Longer listings are only streamed
+
+	public final LongAdder hits = new LongAdder();
+	public final LongAdder misses = new LongAdder();
+	public final LongAdder evictions = new LongAdder();
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long size = 0;
+
+	public DirectoryListings(long capacity, long maxEntrySize) {
+		this.capacity = capacity;
+		this.maxEntrySize = Math.min(maxEntrySize, capacity);
+	}
+
+	// Send the listing of the directory, from the cache when it hasn't changed. Returns the bytes sent.
+	public long send(File directory, int format, WritableByteChannel target) throws IOException {
+		String key = format + ":" + directory.getPath();
+		long modified = modifiedTime(directory);
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				if (entry.modified == modified) {
+					hits.increment();
+					return FileManager.sendBuffer(entry.listing, 0, target);
+				}
+				remove(key);
+			}
+		}
+		misses.increment();
+
+		ByteArrayOutputStream copy = new ByteArrayOutputStream();
+		long sent = write(directory, format, target, copy, maxEntrySize);
+		if (copy.size() == sent && modified > 0 && modified < System.currentTimeMillis() - SETTLE_TIME
+				&& modifiedTime(directory) == modified) {
+			put(key, new Entry(ByteBuffer.wrap(copy.toByteArray()).asReadOnlyBuffer(), modified));
+		}
+		return sent;
+	}
+
+	// Stream the listing of the directory. The first keep bytes are also
+	// copied, and the copy is abandoned once the listing is longer.
+	public static long write(File directory, int format, WritableByteChannel target, ByteArrayOutputStream copy, long keep) throws IOException {
+		Writer writer = new Writer(format, target, copy, keep);
+		DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath());
+		try {
+			for (Path path : stream) {
+				// Hidden files include uploads that are still arriving
+				String name = path.getFileName().toString();
+				if (name.startsWith(".")) continue;
+				BasicFileAttributes attributes;
+				try {
+					attributes = Files.readAttributes(path, BasicFileAttributes.class);
+				} catch (IOException e) {
+					continue;	// Deleted while we were listing, or a broken link
+				}
+				writer.entry(name, attributes);
+			}
+		} finally {
+			stream.close();
+		}
+		return writer.finish();
+	}
+
+	// The one line LIST or NLST gives for a plain file
+	public static long writeFile(File file, int format, WritableByteChannel target) throws IOException {
+		Writer writer = new Writer(format, target, null, 0);
+		writer.entry(file.getName(), Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+		return writer.finish();
+	}
+
+	// The same from a store without a disk, given what it says about the
+	// path. Nothing to cache, the listing is only formatted.
+	public static long write(FileStore store, String path, FileIndex.Entry entry, int format, WritableByteChannel target) throws IOException {
+		Writer writer = new Writer(format, target, null, 0);
+		if (!entry.directory) {
+			writer.entry(path.substring(path.lastIndexOf('/') + 1), entry.size, entry.modified, false);
+			return writer.finish();
+		}
+		for (Map.Entry<String, FileIndex.Entry> child : store.list(path).entrySet()) {
+			String name = child.getKey();
+			if (name.startsWith(".")) continue;
+			FileIndex.Entry attributes = child.getValue();
+			writer.entry(name, attributes.size, attributes.modified, attributes.directory);
+		}
+		return writer.finish();
+	}
+
+	// Modification time in milliseconds, or 0 if it can't be read
+	private static long modifiedTime(File directory) {
+		try {
+			return Files.getLastModifiedTime(directory.toPath()).toMillis();
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	private synchronized void put(String key, Entry entry) {
+		remove(key);
+		entries.put(key, entry);
+		size += entry.listing.limit();
+
+		// Evict from the least recently used end
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+		while (size > capacity && iterator.hasNext()) {
+			Entry eldest = iterator.next().getValue();
+			iterator.remove();
+			size -= eldest.listing.limit();
+			evictions.increment();
+		}
+	}
+
+	private void remove(String key) {
+		Entry old = entries.remove(key);
+		if (old != null) {
+			size -= old.listing.limit();
+		}
+	}
+
+	public synchronized long size() {
+		return size;
+	}
+
+	public synchronized int count() {
+		return entries.size();
+	}
+
+	private static class Entry {
+		final ByteBuffer listing;	// Read-only, shared by every reader through duplicate()
+		final long modified;	// Of the directory when it was read
+
+		Entry(ByteBuffer listing, long modified) {
+			this.listing = listing;
+			this.modified = modified;
+		}
+	}
+
+	/*
+	 * Formats entries into a buffer that is written out whenever it fills
+	 */
+	private static class Writer {
+		private final int format;
+		private final WritableByteChannel target;
+		private ByteArrayOutputStream copy;	// null once the listing outgrew it
+		private final long keep;
+		private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		private final StringBuilder line = new StringBuilder(128);
+		private final long now = System.currentTimeMillis();
+		private long total = 0;
+
+		Writer(int format, WritableByteChannel target, ByteArrayOutputStream copy, long keep) {
+			this.format = format;
+			this.target = target;
+			this.copy = copy;
+			this.keep = keep;
+		}
+
+		void entry(String name, BasicFileAttributes attributes) throws IOException {
+			entry(name, attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.isDirectory());
+		}
+
+		void entry(String name, long length, long modified, boolean directory) throws IOException {
+			line.setLength(0);
+			if (format == LIST) {
+				line.append(directory ? "drwxr-xr-x" : "-rw-r--r--").append(" 1 ftp ftp ");
+				String size = Long.toString(length);
+				for (int i = size.length(); i < 13; i++) {
+					line.append(' ');
+				}
+				line.append(size).append(' ');
+				boolean recent = modified > now - HALF_YEAR && modified < now + HALF_YEAR;
+				line.append((recent ? RECENT : OLD).format(Instant.ofEpochMilli(modified))).append(' ');
+			} else if (format == MLSD) {
+				line.append("type=").append(directory ? "dir" : "file").append(';');
+				if (!directory) {
+					line.append("size=").append(length).append(';');
+				}
+				line.append("modify=").append(FACT.format(Instant.ofEpochMilli(modified))).append("; ");
+			}
+			line.append(name).append("\r\n");
+			put(line);
+		}
+
+		// Names are sent as UTF-8, everything else is ASCII
+		private void put(StringBuilder line) throws IOException {
+			byte[] bytes = null;
+			for (int i = 0; i < line.length(); i++) {
+				if (line.charAt(i) > 127) {
+					bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+					break;
+				}
+			}
+			int length = bytes == null ? line.length() : bytes.length;
+			if (buffer.remaining() < length) {
+				flush();
+			}
+			if (length > buffer.capacity()) {
+				write(ByteBuffer.wrap(bytes != null ? bytes : line.toString().getBytes(StandardCharsets.US_ASCII)));
+				return;
+			}
+			if (bytes != null) {
+				buffer.put(bytes);
+			} else {
+				for (int i = 0; i < length; i++) {
+					buffer.put((byte) line.charAt(i));
+				}
+			}
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			write(buffer);
+			buffer.clear();
+		}
+
+		private void write(ByteBuffer bytes) throws IOException {
+			if (copy != null) {
+				if (copy.size() + bytes.remaining() > keep) {
+					copy = null;
+				} else {
+					copy.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+				}
+			}
+			total += bytes.remaining();
+			while (bytes.hasRemaining()) {
+				target.write(bytes);
+			}
+		}
+
+		long finish() throws IOException {
+			flush();
+			return total;
+		}
+	}
+}
@@ -1,15 +1,28 @@
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.*;
+import java.nio.channels.Channels;
+import java.security.GeneralSecurityException;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Scanner;
 
+import javax.net.ssl.SSLException;
+
 /*
  * Main class that handles client requests.
  */
@@ -25,6 +38,18 @@ public class FTPClient {
 	public static DataOutputStream toServer;
 	public static ServerSocket fileSocket;
 
+	public static int lastReplyCode = 0;	// Code of the last server reply that parsed
+	public static boolean compress = false;	// Ask for MODE Z on connect ("-compress")
+	public static boolean compressedMode = false;	// The server accepted MODE Z
+	public static int segments = 1;	// Parallel connections per GET ("-segments n")
+	public static boolean tls = false;	// Ask for AUTH TLS on connect ("-tls")
+	public static String trustStore = null;	// Certificates to trust instead of the JRE's ("-truststore file")
+	public static String trustStorePassword = "changeit";	// ("-storepass password")
+	public static TlsContext tlsContext;	// One session cache, so data connections resume the control session
+	public static boolean dataProtected = false;	// The server accepted PROT P
+	public static int getsTransferred = 0;	// GETs that brought the file down
+	public static int getsSkipped = 0;	// GETs answered by an unchanged local copy
+
 	public static boolean connectedState = false;
 	public static boolean quitLoop = false;
 	public static String host;
@@ -34,6 +59,7 @@ public class FTPClient {
 	public static final List<String> VALID_COMMANDS = new ArrayList<String>(Arrays.asList(new String[] {
 			"CONNECT",
 			"GET",
+			"LIST",
 			"QUIT"
 	}));
 
@@ -49,6 +75,20 @@ public class FTPClient {
 		} catch (Exception e) {
 			FTPCommands.portNumber = 8080;
 		}
+		compress = Arrays.asList(args).contains("-compress");
+		tls = Arrays.asList(args).contains("-tls");
+		for (int i = 0; i + 1 < args.length; i++) {
+			int tuned = TransferTuning.parseOption(args, i);
+			if (tuned >= 0) {
+				i = tuned;
+			} else if (args[i].equals("-segments")) {
+				segments = Math.max(1, Integer.parseInt(args[i + 1]));
+			} else if (args[i].equals("-truststore")) {
+				trustStore = args[i + 1];
+			} else if (args[i].equals("-storepass")) {
+				trustStorePassword = args[i + 1];
+			}
+		}
 
 		// Stall until the next input
 		try {
@@ -76,6 +116,8 @@ public class FTPClient {
 						result = parseConnectRequest(request, splitted, reply);
 					} else if (command.equals("GET")) {
 						result = parseGetRequest(request, splitted, reply);
+					} else if (command.equals("LIST")) {
+						result = parseListRequest(request, splitted, reply);
 					} else if (command.equals("QUIT")) {
 						result = parseQuitRequest(request, splitted, reply);
 					}
@@ -91,6 +133,7 @@ public class FTPClient {
 				if (result) {
 					if (command.equals("CONNECT")) onConnect(reply);
 					else if (command.equals("GET")) onGet(buildParameter(splitted), reply);
+					else if (command.equals("LIST")) onList(buildParameter(splitted), reply);
 					else if (command.equals("QUIT")) {
 						onQuit(reply);
 						return;
@@ -110,6 +153,7 @@ public class FTPClient {
 	public static boolean processRequest(String request, ClientReply reply) throws IOException {
 		System.out.print(request);
 		toServer.writeBytes(request);
+		toServer.flush();
 		try {
 			Thread.sleep(50);
 		} catch (Exception e) {
@@ -130,6 +174,33 @@ public class FTPClient {
 		return result;
 	}
 
+	// Send several requests in one write, then read their replies in order.
+	// Every reply is read even after a failure so the connection stays in step.
+	public static boolean processPipelined(String[] requests, ClientReply reply) throws IOException {
+		StringBuilder batch = new StringBuilder();
+		for (String request : requests) {
+			batch.append(request);
+		}
+		toServer.writeBytes(batch.toString());
+		toServer.flush();
+		
+		boolean result = true;
+		for (String request : requests) {
+			System.out.print(request);
+			result &= parseResponse(fromServer.next());
+		}
+		return result;
+	}
+
+	// Send a transfer command and read only its preliminary reply. The final
+	// reply is read after the data connection is done.
+	public static boolean processTransferRequest(String request, ClientReply reply) throws IOException {
+		System.out.print(request);
+		toServer.writeBytes(request);
+		toServer.flush();
+		return parseResponse(fromServer.next()) && lastReplyCode < 200;
+	}
+
 	public static boolean parseResponse(String response) {
 		ServerResponse replyMessage = new ServerResponse();
 		String[] splitted = ParseResponse.splitRequest(response);
@@ -146,8 +217,10 @@ public class FTPClient {
 		}
 
 		// No errors
+		lastReplyCode = 0;
 		if (result) {
 			replyMessage.setReplyByCode(0);
+			lastReplyCode = replyMessage.getReplyCode();
 		} 
 		replyMessage.printMessage();
 
@@ -243,7 +316,8 @@ public class FTPClient {
 
 		try {
 			// Checks for a successful socket before switching to that connection
-			Socket testSocket = new Socket(host, port);
+			// No read timeout here, the Scanner would take one for the end of the stream
+			Socket testSocket = TransferTuning.connectControl(host, port);
 			if (clientSocket != null) {
 				clientSocket.close();
 			}
@@ -253,7 +327,8 @@ public class FTPClient {
 			System.out.println("problem");
 			fromServer = new Scanner(new InputStreamReader(clientSocket.getInputStream()));
 			fromServer.useDelimiter("(?<=(\r\n|\n|(\r(?!\n))))");
-			toServer = new DataOutputStream(clientSocket.getOutputStream());
+			// writeBytes writes a byte at a time, which would be a packet each without Nagle
+			toServer = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
 			
 			
 			// Response
@@ -269,19 +344,62 @@ public class FTPClient {
 	public static boolean onConnect(ClientReply reply) {
 		try {
 			parseResponse(fromServer.next());
-			if (processRequest(FTPCommands.USER, reply) &&
-					processRequest(FTPCommands.PASS, reply) &&
-					processRequest(FTPCommands.SYST, reply) &&
-					processRequest(FTPCommands.TYPE, reply)) {
-				return true;
-			} else {
+			
+			// Nothing goes out in the clear when TLS was asked for
+			dataProtected = false;
+			if (tls && !startTls(reply)) {
+				System.out.print("TLS negotiation failed, disconnecting" + CRLF);
+				connectedState = false;
+				clientSocket.close();
 				return false;
 			}
+			
+			// Log in with a single round trip
+			List<String> requests = new ArrayList<String>(Arrays.asList(
+					FTPCommands.USER,
+					FTPCommands.PASS,
+					FTPCommands.SYST,
+					FTPCommands.TYPE));
+			if (compress) {
+				requests.add(FTPCommands.MODE);
+			}
+			boolean result = processPipelined(requests.toArray(new String[requests.size()]), reply);
+			
+			// Servers without MODE Z still send plain data
+			compressedMode = compress && lastReplyCode == 200;
+			return result;
 		} catch (IOException e) {
 			return false;
 		}
 	}
 
+	// AUTH TLS, then the reader and writer go through the encrypted connection.
+	// PBSZ and PROT P follow so data connections are encrypted as well.
+	public static boolean startTls(ClientReply reply) throws IOException {
+		if (!processPipelined(new String[] { FTPCommands.AUTH }, reply) || lastReplyCode != 234) {
+			return false;
+		}
+		TlsChannel channel;
+		try {
+			if (tlsContext == null) {
+				tlsContext = TlsContext.client(trustStore, trustStorePassword);
+			}
+			channel = TlsChannel.open(tlsContext, tlsContext.clientEngine(host, port), clientSocket, false);
+			channel.handshake();
+		} catch (GeneralSecurityException e) {
+			return false;
+		} catch (SSLException e) {
+			return false;
+		}
+		fromServer = new Scanner(new InputStreamReader(Channels.newInputStream(channel)));
+		fromServer.useDelimiter("(?<=(\r\n|\n|(\r(?!\n))))");
+		toServer = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+		
+		processPipelined(new String[] { FTPCommands.PBSZ, FTPCommands.PROT }, reply);
+		dataProtected = lastReplyCode == 200;
+		return true;
+	}
+	
 	// Format of GET request: "GET<SP>+<pathname><EOL>"
 	public static boolean parseGetRequest(String request,
 			String[] splitted,
@@ -319,26 +437,128 @@ public class FTPClient {
 	
 	public static boolean onGet(String pathName, ClientReply reply) {
 		try {
-			// Create the welcome socket
-			try {
-				fileSocket = new ServerSocket(FTPCommands.portNumber);
-			} catch (IOException e) {
-				reply.setMessage("GET failed, FTP-data port not allocated." + CRLF);
-				System.out.print("GET failed, FTP-data port not allocated." + CRLF);
-				return false;
+			// The copy from an earlier GET will do while the server reports the same size and time
+			DownloadManifest.Entry remote = processMetadataRequest(pathName, reply);
+			File current = DownloadManifest.load().current(host, port, pathName, remote);
+			if (current != null) {
+				getsSkipped++;
+				System.out.print("GET skipped, " + current.getPath() + " is up to date" + CRLF);
+				return true;
 			}
-		
-			// Calculate the inverse
-			int high = FTPCommands.portNumber / 256;
-			int low = FTPCommands.portNumber % 256;
-			String hostPort = FTPCommands.hostAddress + "," + high + "," + low;
-			String port = FTPCommands.PORT.replace("%s", hostPort);
+			
+			// Large files come down in parallel segments on connections of their own
+			if (segments > 1 && !compressedMode && SegmentedDownload.worthSplitting(remote.size, segments)) {
+				return onSegmentedGet(pathName, remote, reply);
+			}
+			
 			String retr = FTPCommands.RETR.replace("%s", pathName);
-			FTPCommands.portNumber++;
-			if (processRequest(port, reply) &&
-					processRequest(retr, reply)) {
+			if (!processPortRequest("GET", reply)) {
+				return false;
+			}
+			
+			// Pick up where an interrupted GET of the same file stopped, unless
+			// the remote file changed since or is no longer than what we have
+			File partial = ClientFileManager.partialFile(pathName);
+			if (!remote.continuedBy(partial)) {
+				partial.delete();
+			}
+			long offset = partial.length();
+			if (offset > 0) {
+				String rest = FTPCommands.REST.replace("%s", Long.toString(offset));
+				if (!processRequest(rest, reply) || lastReplyCode != 350) {
+					partial.delete();
+					offset = 0;
+				}
+			}
+			
+			if (processTransferRequest(retr, reply)) {
+				long expected = remote.size < 0 ? -1 : Math.max(0, remote.size - offset);
+				boolean copied = ClientFileManager.copyFile(pathName, offset, expected, reply);
 				
-				return ClientFileManager.copyFile(pathName,  reply);
+				// Only a complete transfer replaces the partial file. 426 and 451
+				// parse like any other reply but mean the data stopped short.
+				boolean completed = parseResponse(fromServer.next()) && lastReplyCode / 100 == 2;
+				if (copied && completed && remote.size >= 0 && partial.length() != remote.size) {
+					System.out.print("GET failed, got " + partial.length() + " of " + remote.size + " bytes" + CRLF);
+					return false;
+				}
+				return copied && completed && completeGet(pathName, remote);
+			} else {
+				FTPCommands.portNumber--;
+				fileSocket.close();
+				return false;
+			}
+		} catch (IOException e) {
+			try {
+				fileSocket.close();
+			} catch (IOException e1) {
+				return false;
+			}
+			return false;
+		}
+	}
+
+	// Listen on the next data port and send PORT for it. The request name goes into the error message.
+	public static boolean processPortRequest(String request, ClientReply reply) throws IOException {
+		// Create the welcome socket
+		try {
+			fileSocket = createListener(FTPCommands.portNumber);
+		} catch (IOException e) {
+			reply.setMessage(request + " failed, FTP-data port not allocated." + CRLF);
+			System.out.print(request + " failed, FTP-data port not allocated." + CRLF);
+			return false;
+		}
+	
+		// Calculate the inverse
+		int high = FTPCommands.portNumber / 256;
+		int low = FTPCommands.portNumber % 256;
+		String hostPort = FTPCommands.hostAddress + "," + high + "," + low;
+		String port = FTPCommands.PORT.replace("%s", hostPort);
+		FTPCommands.portNumber++;
+		if (!processRequest(port, reply)) {
+			FTPCommands.portNumber--;
+			fileSocket.close();
+			return false;
+		}
+		return true;
+	}
+
+	// Format of LIST request: "LIST[<SP>+<pathname>]<EOL>"
+	public static boolean parseListRequest(String request,
+			String[] splitted,
+			ClientReply reply) {
+
+		// The pathname is optional
+		String pathname = buildParameter(splitted);
+		if (!checkAscii(pathname)) {
+			reply.setReplyByCode(4);
+			return false;
+		}
+		return processListRequest(pathname, reply);
+	}
+
+	public static boolean processListRequest(String pathname, ClientReply reply) {
+		// Only works if there is a connection
+		if (connectedState) {
+			// Successful LIST
+			reply.setMessage("LIST accepted for " + (pathname.isEmpty() ? "." : pathname) + LF);
+			return true;
+		} else {
+			reply.setReplyByCode(0);
+			return false;
+		}
+	}
+
+	// Print the listing the server sends on the data connection
+	public static boolean onList(String pathName, ClientReply reply) {
+		try {
+			String list = pathName.isEmpty() ? FTPCommands.LIST : FTPCommands.LIST_PATH.replace("%s", pathName);
+			if (!processPortRequest("LIST", reply)) {
+				return false;
+			}
+			if (processTransferRequest(list, reply)) {
+				boolean copied = ClientFileManager.printListing(reply);
+				return parseResponse(fromServer.next()) && copied;
 			} else {
 				FTPCommands.portNumber--;
 				fileSocket.close();
@@ -354,6 +574,50 @@ public class FTPClient {
 		}
 	}
 
+	// Ask for the size and modification time of a remote file in one round trip.
+	// The size is -1 and the time null when the server won't say.
+	public static DownloadManifest.Entry processMetadataRequest(String pathName, ClientReply reply) throws IOException {
+		String size = FTPCommands.SIZE.replace("%s", pathName);
+		String mdtm = FTPCommands.MDTM.replace("%s", pathName);
+		toServer.writeBytes(size + mdtm);
+		toServer.flush();
+		System.out.print(size);
+		String sizeResponse = fromServer.next();
+		boolean sized = parseResponse(sizeResponse) && lastReplyCode == 213;
+		System.out.print(mdtm);
+		String mdtmResponse = fromServer.next();
+		boolean dated = parseResponse(mdtmResponse) && lastReplyCode == 213;
+		return new DownloadManifest.Entry(sized ? SegmentedDownload.parseSize(sizeResponse) : -1,
+				dated ? DownloadManifest.parseTime(mdtmResponse) : null);
+	}
+	
+	// Move a finished download into place and remember it for the next GET
+	public static boolean completeGet(String pathName, DownloadManifest.Entry remote) {
+		File file = ClientFileManager.completeFile(pathName);
+		if (file == null) {
+			return false;
+		}
+		getsTransferred++;
+		DownloadManifest.load().record(host, port, pathName, remote, file);
+		return true;
+	}
+	
+	// Segments always start from scratch, so an old partial file is dropped
+	public static boolean onSegmentedGet(String pathName, DownloadManifest.Entry remote, ClientReply reply) {
+		File partial = ClientFileManager.partialFile(pathName);
+		partial.delete();
+		System.out.print("Downloading " + remote.size + " bytes in " + segments + " segments" + CRLF);
+		try {
+			SegmentedDownload.download(host, port, pathName, remote.size, segments, partial);
+		} catch (IOException e) {
+			// A file with holes must not be resumed later
+			partial.delete();
+			System.out.print("GET failed, " + e.getMessage() + CRLF);
+			return false;
+		}
+		return completeGet(pathName, remote);
+	}
+
 	// Format of QUIT request: "QUIT<EOL>"
 	public static boolean parseQuitRequest(String request,
 			String[] splitted,
@@ -383,6 +647,7 @@ public class FTPClient {
 	}
 	
 	public static boolean onQuit(ClientReply reply) {
+		System.out.print("GET transferred " + getsTransferred + ", skipped " + getsSkipped + CRLF);
 		try {
 			if (processRequest(FTPCommands.QUIT, reply)) {
 				return true;
@@ -464,342 +729,146 @@ public class FTPClient {
 	// Set up the socket for transferring files
 	public static boolean createSocket(int port) {
 		try {
-			fileSocket = new ServerSocket(port);
+			fileSocket = createListener(port);
 		} catch (IOException e) {
 			return false;
 		}
 		return true;
 	}
-}
-
-/*
- * Helper file manager class that copies a file from a socket
- */
-class ClientFileManager {
-	private static String directory = "retr_files";
-	private static String filePrefix = "file";
-	public static int fileCount = 1;
-	public static String[] hostAddress;
 	
-	public static boolean copyFile(String filePath, ClientReply reply) {
-		// Copy the file
+	// Listen for a data connection, tuned before the bind so accepted sockets get the receive buffer
+	public static ServerSocket createListener(int port) throws IOException {
+		ServerSocket listener = new ServerSocket();
 		try {
-			Socket connectionSocket = FTPClient.fileSocket.accept();
-			FileOutputStream file = new FileOutputStream(directory + "/" +filePrefix + fileCount);
-			
-			// Copy the file
-			int read = 0;
-			byte[] bytes = new byte[1024];
-			while ((read = connectionSocket.getInputStream().read(bytes)) != -1) {
-				file.write(bytes);
-			}
-			file.close();
-			fileCount++;
-		} catch (FileNotFoundException e) {
-			return false;
+			TransferTuning.configureListener(listener);
+			listener.bind(new InetSocketAddress(port));
 		} catch (IOException e) {
-			return false;
-		} finally {
-			try {
-				FTPClient.fileSocket.close();
-			} catch (IOException e) {
-				return false;
-			}
+			listener.close();
+			throw e;
 		}
-		return true;
+		return listener;
 	}
 }
+
 /*
- * The FTPCommands class generates sequences of valid FTP commands
+ * Remembers what every GET brought down: the size and modification time
+ * the server gave for the remote path, and the local file it went to with
+ * that file's own modification time. A later GET of the same path skips
+ * the transfer while all of them still match. Kept as a properties file
+ * next to the downloads, so it outlives the client.
  */
+class DownloadManifest {
+	private static DownloadManifest loaded;
 
-class FTPCommands {
-
-	public static final String CRLF = "\r\n";
-	public static final String USER = "USER anonymous" + CRLF;
-	public static final String PASS = "PASS guest@" + CRLF;
-	public static final String SYST = "SYST" + CRLF;
-	public static final String TYPE = "TYPE I" + CRLF;
-	public static final String PORT = "PORT %s" + CRLF;
-	public static final String RETR = "RETR %s" + CRLF;
-	public static final String QUIT = "QUIT" + CRLF;
-
-	public static String message;
-	public static String hostAddress;
-	public static int portNumber = 8080;
-
-	// Initialize static variables
-	static {
-		message = "";
-		String myIP;
-		InetAddress myInet;
-		try {
-			myInet = InetAddress.getLocalHost();
-			myIP = myInet.getHostAddress();
-			hostAddress = myIP.replaceAll("\\.",  ",");
-		} catch (UnknownHostException e) {
-
-		}
-	}
-
-	public static void printMessage() {
-		System.out.print(message);
-	}
-
-	public static void onConnect() {
-		message = USER + PASS + SYST + TYPE;
-	}
-
-	public static void onGet(String pathname) {
-
-		// Calculate the inverse
-		int high = portNumber / 256;
-		int low = portNumber % 256;
-		String hostPort = hostAddress + "," + high + "," + low;
-
-		message = PORT.replace("%s", hostPort) + RETR.replace("%s", pathname);
-		portNumber++;
-	}
+	private final File file;
+	private final Properties entries = new Properties();	// "size modified local-modified local-path" by remote path
 
-	public static void onQuit() {
-		message = QUIT;
+	private DownloadManifest(File file) {
+		this.file = file;
 	}
 
-}
-
-/*
- * Help process the server response
- */
-
-class ParseResponse {
-	// Extract the reply code, which must be in the range 100-599
-	public static boolean parseReplyCode(String reply, String[] splitted, ServerResponse msg) {
-		// No spaces after code
-		if (splitted.length < 3) {
-			msg.setReplyByCode(10);
-			return false;
-		}
-		if (reply.indexOf(" ") < 0) {
-			msg.setReplyByCode(10);
-			return false;
-		}
-		String replyCode = reply.substring(0, reply.indexOf(" "));
-		try {
-			int code = Integer.parseInt(replyCode);
-			if (code < 100 || code >= 600) {
-				msg.setReplyByCode(10);
-				return false;
+	// The manifest, read from disk on first use
+	public static DownloadManifest load() {
+		if (loaded == null) {
+			loaded = new DownloadManifest(ClientFileManager.manifestFile());
+			try {
+				FileInputStream in = new FileInputStream(loaded.file);
+				try {
+					loaded.entries.load(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				// No downloads yet
 			}
-			msg.setReplyCode(replyCode);
-		} catch (Exception e) {
-			msg.setReplyByCode(10);
-			return false;
 		}
-		return true;
+		return loaded;
 	}
 
-	// Extract the reply text
-	public static boolean parseReplyText(String reply, String[] splitted, ServerResponse msg) {
-		String replyText = buildParameter(splitted);
-
-		// Check if the parameter can be built
-		if (replyText.equals(" ")) {
-			msg.setReplyByCode(11);
-			return false;
-		}
-
-		// Check that there is only one space between the code and text
-		if (!splitted[2].equals(" ")) {
-			msg.setReplyByCode(11);
-			return false;
-		}
-
-		// Check if it only contains ASCII characters
-		if (!FTPClient.checkAscii(replyText)) {
-			msg.setReplyByCode(11);
-			return false;
+	// The local copy of a remote path if nothing changed on either side, or null
+	public File current(String host, int port, String path, Entry remote) {
+		if (remote.size < 0 || remote.modified == null) return null;
+		String value = entries.getProperty(key(host, port, path));
+		if (value == null) return null;
+		String[] fields = value.split(" ", 4);
+		if (fields.length < 4) return null;
+		File local = new File(fields[3]);
+		if (!fields[0].equals(Long.toString(remote.size)) || !fields[1].equals(remote.modified)
+				|| local.length() != remote.size || !fields[2].equals(Long.toString(local.lastModified()))) {
+			return null;
 		}
+		return local;
+	}
 
-		// Strip out line endings
-		if (replyText.charAt(replyText.length() - 1) == '\n') {
-			replyText = replyText.substring(0, replyText.length() - 1);
+	// Remember a finished download. Paths that went to the same local file before lose it.
+	public void record(String host, int port, String path, Entry remote, File local) {
+		for (Iterator<Map.Entry<Object, Object>> iterator = entries.entrySet().iterator(); iterator.hasNext();) {
+			if (((String) iterator.next().getValue()).endsWith(" " + local.getPath())) {
+				iterator.remove();
+			}
 		}
-		if (replyText.charAt(replyText.length() - 1) == '\r') {
-			replyText = replyText.substring(0, replyText.length() - 1);
+		if (remote.size >= 0 && remote.modified != null) {
+			entries.setProperty(key(host, port, path), remote.size + " " + remote.modified + " " + local.lastModified() + " " + local.getPath());
 		}
-
-		msg.setReplyText(replyText);
-
-		return true;
+		save();
 	}
 
-	// Build the parameter since it is split on spaces, but the parameter may contain spaces
-	public static String buildParameter(String[] splitted) {
-		String result = "";
+	// Write to a new file and rename it, so a crash never leaves half a manifest
+	private void save() {
+		File temporary = new File(file.getPath() + ".tmp");
 		try {
-			for (int i = 2; i < splitted.length - 1; i++) {
-				result += splitted[i];
+			FileOutputStream out = new FileOutputStream(temporary);
+			try {
+				entries.store(out, "Downloads by remote path");
+			} finally {
+				out.close();
 			}
-		} catch (Exception e) {
-			result = "";
+			if (!temporary.renameTo(file)) {
+				temporary.delete();
+			}
+		} catch (IOException e) {
+			temporary.delete();
 		}
-		return result;
 	}
 
-	// Split a request by spaces
-	public static String[] splitRequest(String request) {
-		List<String> splitter = new ArrayList<String>();
-		boolean space = true;
-		splitter.add(" ");
-
-		// Iterate over string
-		for (int i = 0; i < request.length(); i++) {
-			String last = request.substring(i, i+1);
-			splitter.get(splitter.size() - 1);
+	private static String key(String host, int port, String path) {
+		return host + ":" + port + "/" + path;
+	}
 
-			// Continue a space chain or continue a character chain,
-			// otherwise make it a new element in the array
-			if (last.matches(" +") && space) {
-				space = true;
-				splitter.set(splitter.size() - 1, splitter.get(splitter.size() - 1) + last);
-			} else if (last.matches(" +") && !space) {
-				space = true;
-				splitter.add(last);
-			} else if (!last.matches(" +") && !space) {
-				space = false;
-				splitter.set(splitter.size() - 1, splitter.get(splitter.size() - 1) + last);
-			} else {
-				space = false;
-				splitter.add(last);
-			}
+	// Time from a "213 YYYYMMDDHHMMSS" reply, or null
+	public static String parseTime(String response) {
+		if (!response.startsWith("213 ")) return null;
+		int end = 4;
+		while (end < response.length() && Character.isDigit(response.charAt(end))) {
+			end++;
 		}
-		if (!splitter.get(splitter.size() - 1).contains(" ")) {
-			String last = splitter.get(splitter.size() - 1);
-			int index = last.indexOf("\r");
-			if (index < 0) {
-				index = last.indexOf("\n");
-			}
-			String a = last.substring(0, index);
-			String b = last.substring(index, last.length());
-			splitter.set(splitter.size() - 1, a);
-			splitter.add(b);
-		}
-		String[] splitted = splitter.toArray(new String[splitter.size()]);
-		return splitted;
+		return end >= 18 ? response.substring(4, end) : null;
 	}
-}
 
-/*
- * The reply class is used for ease of creating a response to any
- * client requests.
- */
-class ClientReply {
-
-	private String message;
-	public boolean errorFlag;
-
-	public ClientReply() {
-		this.message = "";
-		this.errorFlag = false;
-	}
+	/*
+	 * What the server said about a remote file
+	 */
+	static class Entry {
+		private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyyMMddHHmmss", Locale.ROOT).withZone(ZoneOffset.UTC);
 
-	// Manually set a reply message
-	public ClientReply setMessage(String message) {
-		this.message = message;
-		return this;
-	}
+		final long size;	// -1 if unknown
+		final String modified;	// null if unknown
 
-	// Set the reply message with a code
-	public ClientReply setReplyByCode(int code) {
-		String reply;
-		switch (code) {
-		case 0: reply = "ERROR -- expecting CONNECT";
-		errorFlag = true;
-		break;
-		case 1: reply = "ERROR -- request";
-		errorFlag = true;
-		break;
-		case 2: reply = "ERROR -- server-host";
-		errorFlag = true;
-		break;
-		case 3: reply = "ERROR -- server-port";
-		errorFlag = true;
-		break;
-		case 4: reply = "ERROR -- pathname";
-		errorFlag = true;
-		break;
-		case 5: reply = "QUIT accepted, terminating FTP client";
-		break;
-		default: reply = "Invalid code";
-		break;
+		Entry(long size, String modified) {
+			this.size = size;
+			this.modified = modified;
 		}
-		message = reply + "\n";
-		return this;
-	}
 
-	public void printMessage() {
-		System.out.print(message);
-	}
-
-	public void printLineMessage() {
-		System.out.println(message);
+		// Whether a partial download can be the start of this file: shorter
+		// than it, and written after its last change
+		boolean continuedBy(File partial) {
+			if (size >= 0 && partial.length() >= size) return false;
+			if (modified == null) return true;
+			try {
+				return Instant.from(TIME.parse(modified)).toEpochMilli() <= partial.lastModified();
+			} catch (DateTimeException e) {
+				return false;
+			}
+		}
 	}
 }
-
-class ServerResponse {
-	private String message;
-	private String replyCode;
-	private String replyText;
-	
-	public boolean errorFlag;
-	
-	public ServerResponse() {
-		this.message = "";
-		this.errorFlag = false;
-	}
-	
-	public int getReplyCode() {
-		return Integer.parseInt(replyCode);
-	}
-	
-	public ServerResponse setReplyCode(String replyCode) {
-		this.replyCode = replyCode;
-		return this;
-	}
-	
-	public ServerResponse setReplyText(String replyText) {
-		this.replyText = replyText;
-		return this;
-	}
-	
-	// Manually set a reply message
-	public ServerResponse setMessage(String message) {
-		this.message = message;
-		return this;
-	}
-	
-	// Set the reply message with a code
-	public ServerResponse setReplyByCode(int code) {
-		String reply;
-		switch (code) {
-		// TODO: finish this stuff
-			case 10: reply = "ERROR -- reply-code";
-					 errorFlag = true;
-					 break;
-			case 11: reply = "ERROR -- reply-text";
-					 errorFlag = true;
-					 break;
-			case 12: reply = "ERROR -- <CRLF>";
-					 errorFlag = true;
-					 break;
-			default: reply = "FTP reply " + replyCode + " accepted. Text is :" + replyText;
-					 break;
-		}
-		message = reply;
-		return this;
-	}
-	
-	public void printMessage() {
-		System.out.println(message);
-	}
-}
\ No newline at end of file
@@ -0,0 +1,75 @@
+/*
+ * Classes
+ * 	FTPCommands - Generates sequences of valid FTP commands
+ */
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/*
+ * The FTPCommands class generates sequences of valid FTP commands
+ */
+class FTPCommands {
+
+	public static final String CRLF = "\r\n";
+	public static final String USER = "USER anonymous" + CRLF;
+	public static final String PASS = "PASS guest@" + CRLF;
+	public static final String SYST = "SYST" + CRLF;
+	public static final String TYPE = "TYPE I" + CRLF;
+	public static final String PORT = "PORT %s" + CRLF;
+	public static final String RETR = "RETR %s" + CRLF;
+	public static final String REST = "REST %s" + CRLF;
+	public static final String MODE = "MODE Z" + CRLF;
+	public static final String AUTH = "AUTH TLS" + CRLF;
+	public static final String PBSZ = "PBSZ 0" + CRLF;
+	public static final String PROT = "PROT P" + CRLF;
+	public static final String SIZE = "SIZE %s" + CRLF;
+	public static final String MDTM = "MDTM %s" + CRLF;
+	public static final String LIST = "LIST" + CRLF;
+	public static final String LIST_PATH = "LIST %s" + CRLF;
+	public static final String PASV = "PASV" + CRLF;
+	public static final String NOOP = "NOOP" + CRLF;
+	public static final String QUIT = "QUIT" + CRLF;
+
+	public static String message;
+	public static String hostAddress;
+	public static int portNumber = 8080;
+
+	// Initialize static variables
+	static {
+		message = "";
+		String myIP;
+		InetAddress myInet;
+		try {
+			myInet = InetAddress.getLocalHost();
+			myIP = myInet.getHostAddress();
+			hostAddress = myIP.replaceAll("\\.",  ",");
+		} catch (UnknownHostException e) {
+
+		}
+	}
+
+	public static void printMessage() {
+		System.out.print(message);
+	}
+
+	public static void onConnect() {
+		message = USER + PASS + SYST + TYPE;
+	}
+
+	public static void onGet(String pathname) {
+
+		// Calculate the inverse
+		int high = portNumber / 256;
+		int low = portNumber % 256;
+		String hostPort = hostAddress + "," + high + "," + low;
+
+		message = PORT.replace("%s", hostPort) + RETR.replace("%s", pathname);
+		portNumber++;
+	}
+
+	public static void onQuit() {
+		message = QUIT;
+	}
+
+}
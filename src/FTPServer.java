@@ -3,154 +3,465 @@
  * 
  * Classes
  * 	FTPServer - Main class
- * 	FileManager - Copy a file into the client socket
- * 	ServerReply - Reply message
+ * 	SocketSession - Blocking command loop for a session
+ * 	DataPortPool - Pre-bound listening ports for passive mode
  */
 
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.InetAddress;
+import java.lang.management.ManagementFactory;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.net.ssl.SSLEngine;
 
 /*
- * Main FTPServer class that will be listening on a port. Only
- * a single client can be connected at a time.
+ * Main FTPServer class that will be listening on a port. Every
+ * client connection gets its own ServerSession. The default engine
+ * runs sessions in parallel on a bounded pool of worker threads, and
+ * "-engine nio" drives all control connections from one selector.
  */
 public class FTPServer {
 	
 	public static int welcomePort = 9000;	// Default port the server listens on
+	public static ServerSocketChannel welcomeChannel;	// Welcome channel
 	public static ServerSocket welcomeSocket;	// Welcome socket
-	public static DataOutputStream toClient;
-	
-	// List of valid FTP commands
-	private static final List<String> VALID_COMMANDS = new ArrayList<String>(Arrays.asList(new String[]{
-		"USER",
-		"PASS",
-		"TYPE",
-		"PORT",
-		"RETR",
-
-		"SYST",
-		"NOOP",
-		"QUIT"
-	})); 
-	
-	private static boolean userSet = false;
-	private static boolean loggedIn = false;
-	private static boolean portSet = false;
+	public static int maxSessionThreads = 256;	// Number of sessions (or transfers for nio) served at the same time
+	public static boolean useSelector = false;	// Use the non-blocking selector engine
+	public static DataPortPool dataPorts;	// Listening ports leased out by PASV and EPSV
+	public static int passiveFirstPort = 0;	// 0 binds any free port
+	public static int passivePortCount = 32;
+	public static FileCache fileCache;	// Contents of small popular files, null when disabled
+	public static long fileCacheSize = 64L * 1024 * 1024;
+	public static long fileCacheEntrySize = 4L * 1024 * 1024;
+	public static MappedFiles mappedFiles;	// Shared mappings of very large files, null when disabled
+	public static long mappedFileThreshold = 256L * 1024 * 1024;
+	public static int compressionLevel = Deflater.DEFAULT_COMPRESSION;	// Deflate level for MODE Z, 0-9
+	public static DeflatedFiles deflatedFiles;	// Deflated copies of files sent in MODE Z, null when disabled
+	public static long deflatedFilesSize = 256L * 1024 * 1024;
+	public static DirectoryListings directoryListings;	// Listings of unchanged directories, null when disabled
+	public static long directoryListingsSize = 16L * 1024 * 1024;
+	public static long directoryListingEntrySize = 1024L * 1024;
+	public static FileIndex fileIndex;	// Attributes of the served tree, null when disabled
+	public static boolean indexFiles = true;
+	public static FileStore fileStore = new LocalFileStore(new File(System.getProperty("user.dir")));	// Where served files come from
+	public static String storeRoot = null;	// Served directory when not the working one
+	public static boolean memoryStore = false;	// Serve a copy of the tree loaded into memory
+	public static FileDigests fileDigests;	// Hashes for HASH, XCRC and XMD5, with recent results
+	public static int fileDigestsSize = 4096;	// Results kept
+	public static Bandwidth bandwidth;	// Download rate limits, also set through JMX
+	public static long bandwidthLimit = 0;	// Bytes per second for all downloads, 0 for none
+	public static long sessionBandwidthLimit = 0;	// Bytes per second for each session
+	public static Admission admission;	// Caps on sessions and transfers
+	public static int maxSessions = 0;	// 0 is the thread count, or NIO_MAX_SESSIONS for nio
+	public static int maxSessionsPerAddress = 0;	// 0 for no cap
+	public static int maxTransfers = 0;	// 0 is the thread count
+	public static long transferWait = 10 * 1000;	// Milliseconds a transfer may wait for its turn
+	public static final int NIO_MAX_SESSIONS = 4096;
+	public static TlsContext tls;	// Key and session cache for AUTH TLS, null when there is no keystore
+	public static String keyStore = null;
+	public static String keyStorePassword = "changeit";
+	public static boolean tlsRequired = false;	// Refuse logins and data connections without TLS
+	public static final ServerMetrics metrics = new ServerMetrics();	// Shown by STAT, SITE METRICS and JMX
 	
 	// Port number goes up until this works
 	public static void createSocket(int port) {
 		try {
 			welcomePort = port;
-			welcomeSocket = new ServerSocket(port);
+			welcomeChannel = ServerSocketChannel.open();
+			welcomeChannel.bind(new InetSocketAddress(port));
+			welcomeSocket = welcomeChannel.socket();
 		} catch (IOException e) {
+			try {
+				welcomeChannel.close();
+			} catch (IOException e1) {
+				
+			}
 			createSocket(port + 1);
 		}
 	}
 	
+	// Read the command line: [port] [-threads n] [-engine thread|nio] [-pasv first-last|count]
+	// [-cache bytes] [-mmap bytes] [-zlevel 0-9] [-zcache bytes] [-lcache bytes] [-index on|off]
+	// [-hcache results] [-rate bytes] [-srate bytes] [-sessions n] [-ipsessions n] [-transfers n] [-transferwait ms]
+	// [-sndbuf bytes] [-rcvbuf bytes] [-ctimeout ms] [-timeout ms] [-idle ms] [-nodelay on|off]
+	// [-keystore file] [-storepass password] [-tls optional|required] [-root dir] [-store disk|memory]
+	// (0 turns the file cache, mapping, deflate, listing or hash cache, a rate limit or the per address cap off)
+	public static void parseArguments(String[] args) {
+		if (args == null) return;
+		for (int i = 0; i < args.length; i++) {
+			int tuned = TransferTuning.parseOption(args, i);
+			if (tuned >= 0) {
+				i = tuned;
+			} else if (args[i].equals("-threads") && i + 1 < args.length) {
+				maxSessionThreads = Math.max(1, Integer.parseInt(args[++i]));
+			} else if (args[i].equals("-engine") && i + 1 < args.length) {
+				useSelector = args[++i].equalsIgnoreCase("nio");
+			} else if (args[i].equals("-cache") && i + 1 < args.length) {
+				fileCacheSize = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-mmap") && i + 1 < args.length) {
+				mappedFileThreshold = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-zlevel") && i + 1 < args.length) {
+				compressionLevel = Math.max(0, Math.min(9, Integer.parseInt(args[++i])));
+			} else if (args[i].equals("-zcache") && i + 1 < args.length) {
+				deflatedFilesSize = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-lcache") && i + 1 < args.length) {
+				directoryListingsSize = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-hcache") && i + 1 < args.length) {
+				fileDigestsSize = Math.max(0, Integer.parseInt(args[++i]));
+			} else if (args[i].equals("-rate") && i + 1 < args.length) {
+				bandwidthLimit = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-srate") && i + 1 < args.length) {
+				sessionBandwidthLimit = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-sessions") && i + 1 < args.length) {
+				maxSessions = Math.max(0, Integer.parseInt(args[++i]));
+			} else if (args[i].equals("-ipsessions") && i + 1 < args.length) {
+				maxSessionsPerAddress = Math.max(0, Integer.parseInt(args[++i]));
+			} else if (args[i].equals("-transfers") && i + 1 < args.length) {
+				maxTransfers = Math.max(0, Integer.parseInt(args[++i]));
+			} else if (args[i].equals("-transferwait") && i + 1 < args.length) {
+				transferWait = Math.max(0, Long.parseLong(args[++i]));
+			} else if (args[i].equals("-keystore") && i + 1 < args.length) {
+				keyStore = args[++i];
+			} else if (args[i].equals("-storepass") && i + 1 < args.length) {
+				keyStorePassword = args[++i];
+			} else if (args[i].equals("-tls") && i + 1 < args.length) {
+				tlsRequired = args[++i].equalsIgnoreCase("required");
+			} else if (args[i].equals("-root") && i + 1 < args.length) {
+				storeRoot = args[++i];
+			} else if (args[i].equals("-store") && i + 1 < args.length) {
+				memoryStore = args[++i].equalsIgnoreCase("memory");
+			} else if (args[i].equals("-index") && i + 1 < args.length) {
+				indexFiles = !args[++i].equalsIgnoreCase("off");
+			} else if (args[i].equals("-pasv") && i + 1 < args.length) {
+				String[] range = args[++i].split("-");
+				if (range.length == 2) {
+					passiveFirstPort = Integer.parseInt(range[0]);
+					passivePortCount = Integer.parseInt(range[1]) - passiveFirstPort + 1;
+				} else {
+					passiveFirstPort = 0;
+					passivePortCount = Integer.parseInt(range[0]);
+				}
+			} else if (i == 0) {
+				// Update the welcome port number if it's passed in
+				welcomePort = Integer.parseInt(args[0]);
+			}
+		}
+	}
+	
+	// Worker pool for sessions. Connections past the pool size wait in the queue.
+	public static ExecutorService createSessionPool(int threads) {
+		final AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ftp-session-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+				60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), factory);
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+	
 	public static void main(String[] args) throws Exception {
 		
 		// Create the welcome socket
-		if (args != null && args.length > 0) {
-			// Update the welcome port number if it's passed in
-			welcomePort = Integer.parseInt(args[0]);
-		}
+		parseArguments(args);
 		createSocket(welcomePort);
+		dataPorts = new DataPortPool(passiveFirstPort, passivePortCount);
+		if (fileCacheSize > 0) {
+			fileCache = new FileCache(fileCacheSize, fileCacheEntrySize);
+		}
+		if (mappedFileThreshold > 0) {
+			mappedFiles = new MappedFiles(mappedFileThreshold);
+		}
+		if (deflatedFilesSize > 0) {
+			deflatedFiles = new DeflatedFiles(deflatedFilesSize);
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					deflatedFiles.clear();
+				}
+			});
+		}
+		if (directoryListingsSize > 0) {
+			directoryListings = new DirectoryListings(directoryListingsSize, directoryListingEntrySize);
+		}
+		fileStore = createFileStore();
+		if (indexFiles && fileStore.file("") != null) {
+			buildFileIndex();
+		}
+		fileDigests = new FileDigests(fileDigestsSize, Runtime.getRuntime().availableProcessors());
+		if (keyStore != null) {
+			tls = TlsContext.server(keyStore, keyStorePassword);
+		} else if (tlsRequired) {
+			throw new IllegalArgumentException("-tls required needs a -keystore");
+		}
+		bandwidth = new Bandwidth(bandwidthLimit, sessionBandwidthLimit);
 		
+		// Sessions past the thread count would wait for a thread without a greeting
+		int sessionCap = maxSessions > 0 ? maxSessions : useSelector ? NIO_MAX_SESSIONS : maxSessionThreads;
+		int transferCap = maxTransfers > 0 ? maxTransfers : maxSessionThreads;
+		admission = new Admission(sessionCap, maxSessionsPerAddress, transferCap, transferWait);
+		registerMetrics();
+		ExecutorService workers = createSessionPool(maxSessionThreads);
+		
+		// The selector engine only needs workers for file transfers
+		if (useSelector) {
+			new NioServerEngine(welcomeChannel, workers).run();
+			return;
+		}
 		
 		// Loop over client requests
 		while (true) {
 			
-			// Wait for a client to connect
+			// Wait for a client to connect and hand it off to a worker
 			Socket connectionSocket = welcomeSocket.accept();
+			if (!admitSession(connectionSocket.getChannel())) continue;
+			SocketSession session = new SocketSession(connectionSocket);
+			session.admitted = true;
+			workers.execute(session);
+		}
+	}
+	
+	// Serve the working directory or the -root directory, from disk or from
+	// a copy in memory. Either way clients can't leave it.
+	public static FileStore createFileStore() throws IOException {
+		File root = new File(storeRoot != null ? storeRoot : System.getProperty("user.dir"));
+		if (memoryStore) {
+			return MemoryFileStore.load(root);
+		}
+		return new LocalFileStore(root);
+	}
+	
+	// Index the served tree, the server looks at the disk for every file if that fails
+	public static void buildFileIndex() {
+		try {
+			fileIndex = FileIndex.open(fileStore.file(""));
+		} catch (IOException e) {
+			System.err.println("Files not indexed: " + e.getMessage());
+		}
+	}
+	
+	// Publish the metrics and rate limits to JMX, the server runs without them if that fails
+	public static void registerMetrics() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName("FTPServer:type=Metrics"));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(bandwidth, new ObjectName("FTPServer:type=Bandwidth"));
+		} catch (JMException e) {
+			System.err.println("Metrics not registered with JMX: " + e.getMessage());
+		}
+	}
+	
+	// Count a new connection, or turn it away with a 421 if it is over a cap
+	public static boolean admitSession(SocketChannel channel) {
+		if (admission == null || admission.admitSession(channel.socket().getInetAddress())) {
+			return true;
+		}
+		ServerReply reply = new ServerReply().setReplyByCode(421);
+		reply.printMessage();
+		try {
+			channel.write(ByteBuffer.wrap(reply.getMessage().getBytes(StandardCharsets.ISO_8859_1)));
+		} catch (IOException e) {
 			
-			// Create IO streams with the connected socket
-			Scanner fromClient = new Scanner(new InputStreamReader(connectionSocket.getInputStream()));
-			fromClient.useDelimiter("(?<=(\r\n|\n|(\r(?!\n))))");
-			toClient = new DataOutputStream(connectionSocket.getOutputStream());
-			
-			// Prepare for input
-			ServerReply reply = new ServerReply();
-			reply.setReplyByCode(220);
-			sendReply(reply, toClient);
-			
-			// Read inputs
-			while (fromClient.hasNext()) {
-				reply.setErrorFlag(false);
-				String command = fromClient.next();
-				System.out.print(command);
-				
-				// Split the input into tokens separated by spaces
-				String[] splitted = command.split("(?<=\\s)|(\\s)");
-				String parameter = buildParameter(splitted);
-				
-				// Validate the command token
-				String ftpCommand = splitted[0].toUpperCase();
-				if (!VALID_COMMANDS.contains(ftpCommand)) {
-					if (ftpCommand.length() == 3 || ftpCommand.length() == 4) {
-						reply.setReplyByCode(502);
-					} else {
-						reply.setReplyByCode(500);
-					}
-					sendReply(reply, toClient);
-					continue;
-				}
-				
-				// Go to the respective handler function
-				if (ftpCommand.equals(VALID_COMMANDS.get(0))) {			// USER
-					parseUSER(command, parameter, reply);
-				} else if (ftpCommand.equals(VALID_COMMANDS.get(1))) {	// PASS
-					parsePASS(command, parameter, reply);
-				} else if (ftpCommand.equals(VALID_COMMANDS.get(2))) {	// TYPE
-					parseTYPE(command, parameter, reply);
-				} else if (ftpCommand.equals(VALID_COMMANDS.get(3))) {	// PORT
-					parsePORT(command, parameter, reply);
-				} else if (ftpCommand.equals(VALID_COMMANDS.get(4))) {	// RETR
-					parseRETR(command, parameter, reply);
-				} else if (ftpCommand.equals(VALID_COMMANDS.get(5))) {	// SYST
-					parseSYST(command, parameter, reply);
-				} else if (ftpCommand.equals(VALID_COMMANDS.get(6))) {	// NOOP
-					parseNOOP(command, parameter, reply);
-				} else if (ftpCommand.equals(VALID_COMMANDS.get(7))) {	// QUIT
-					parseQUIT(command, parameter, reply);
-					sendReply(reply, toClient);
-					break;
-				}
-				
-				// If there is an error, print it
-				if (reply.getErrorFlag()) {
-					sendReply(reply, toClient);
-					continue;
-				}
-				
-				// Check line endings
-				if (!checkLineEnd(command, splitted, reply)) {
-					System.out.println("bad line ending");
-					sendReply(reply, toClient);
-					continue;
-				}
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {
 				
-				// No errors
-				sendReply(reply, toClient);
 			}
-			
-			// Cleanup
-			toClient.close();
-			fromClient.close();
-			connectionSocket.close();
-			resetState();
 		}
+		return false;
+	}
+	
+	// Wait for a turn to use a data connection, counting from when the command
+	// was queued for a worker. Replies 450 if the wait runs out.
+	public static boolean startTransfer(ServerSession session, ServerReply reply) {
+		if (admission == null) return true;
+		long queued = session.queuedSince != 0 ? session.queuedSince : System.nanoTime();
+		if (admission.acquireTransfer(queued + admission.transferWaitNanos)) {
+			return true;
+		}
+		session.releaseDataPort();
+		reply.setReplyByCode(450);
+		return false;
+	}
+	
+	public static void endTransfer() {
+		if (admission != null) {
+			admission.releaseTransfer();
+		}
+	}
+	
+	// Commands that may block on a data connection, or read a whole file
+	public static boolean isTransferCommand(CommandLine command) {
+		int verb = command.verb();
+		return verb == CommandLine.RETR || verb == CommandLine.STOR || verb == CommandLine.APPE
+				|| verb == CommandLine.LIST || verb == CommandLine.NLST || verb == CommandLine.MLSD
+				|| verb == CommandLine.HASH || verb == CommandLine.XCRC || verb == CommandLine.XMD5;
+	}
+	
+	// Handle a single command line from a session. Returns false once the session should close.
+	public static boolean handleCommand(ServerSession session, CommandLine command, ServerReply reply) {
+		long start = System.nanoTime();
+		boolean open = dispatchCommand(session, command, reply);
+		if (!command.isEmpty()) {
+			metrics.recordCommand(command.verb(), System.nanoTime() - start, reply.getReplyCode());
+		}
+		return open;
+	}
+	
+	public static boolean dispatchCommand(ServerSession session, CommandLine command, ServerReply reply) {
+		reply.setErrorFlag(false);
+		command.print(System.out);
+		
+		// A line of only whitespace without \n never had a command token, and dropped the session
+		if (command.isEmpty()) {
+			return false;
+		}
+		
+		// Go to the respective handler function
+		switch (command.verb()) {
+		case CommandLine.USER:
+			parseUSER(session, command, command.parameter(), reply);
+			break;
+		case CommandLine.PASS:
+			parsePASS(session, command, command.parameter(), reply);
+			break;
+		case CommandLine.TYPE:
+			parseTYPE(session, command, command.parameter(), reply);
+			break;
+		case CommandLine.PORT:
+			parsePORT(session, command, command.parameter(), reply);
+			break;
+		case CommandLine.RETR:
+			parseRETR(session, command, command.parameter(), reply);
+			break;
+		case CommandLine.SYST:
+			parseSYST(session, command, reply);
+			break;
+		case CommandLine.NOOP:
+			parseNOOP(session, command, reply);
+			break;
+		case CommandLine.QUIT:
+			parseQUIT(session, command, reply);
+			sendReply(reply, session);
+			return false;
+		case CommandLine.PASV:
+			parsePASV(session, command, reply);
+			break;
+		case CommandLine.EPSV:
+			parseEPSV(session, command, command.parameter(), reply);
+			break;
+		case CommandLine.REST:
+			parseREST(session, command, command.parameter(), reply);
+			break;
+		case CommandLine.MODE:
+			parseMODE(session, command, command.parameter(), reply);
+			break;
+		case CommandLine.STOR:
+			parseSTOR(session, command, command.parameter(), false, reply);
+			break;
+		case CommandLine.APPE:
+			parseSTOR(session, command, command.parameter(), true, reply);
+			break;
+		case CommandLine.ALLO:
+			parseALLO(session, command, command.parameter(), reply);
+			break;
+		case CommandLine.SIZE:
+			parseSIZE(session, command, command.parameter(), reply);
+			break;
+		case CommandLine.MDTM:
+			parseMDTM(session, command, command.parameter(), reply);
+			break;
+		case CommandLine.HASH:
+			parseHASH(session, command, command.parameter(), reply);
+			break;
+		case CommandLine.XCRC:
+			parseXCRC(session, command, command.parameter(), "CRC32", reply);
+			break;
+		case CommandLine.XMD5:
+			parseXCRC(session, command, command.parameter(), "MD5", reply);
+			break;
+		case CommandLine.OPTS:
+			parseOPTS(session, command, command.parameter(), reply);
+			break;
+		case CommandLine.RANG:
+			parseRANG(session, command, command.parameter(), reply);
+			break;
+		case CommandLine.AUTH:
+			// The 234 already went out in the clear
+			if (parseAUTH(session, command, command.parameter(), reply)) return true;
+			break;
+		case CommandLine.PBSZ:
+			parsePBSZ(session, command, command.parameter(), reply);
+			break;
+		case CommandLine.PROT:
+			parsePROT(session, command, command.parameter(), reply);
+			break;
+		case CommandLine.STAT:
+			parseSTAT(session, command, command.parameter(), reply);
+			break;
+		case CommandLine.SITE:
+			parseSITE(session, command, command.parameter(), reply);
+			break;
+		case CommandLine.LIST:
+			parseLIST(session, command, command.parameter(), DirectoryListings.LIST, reply);
+			break;
+		case CommandLine.NLST:
+			parseLIST(session, command, command.parameter(), DirectoryListings.NLST, reply);
+			break;
+		case CommandLine.MLSD:
+			parseLIST(session, command, command.parameter(), DirectoryListings.MLSD, reply);
+			break;
+		default:
+			// Validate the command token
+			if (command.verbLength() == 3 || command.verbLength() == 4) {
+				reply.setReplyByCode(502);
+			} else {
+				reply.setReplyByCode(500);
+			}
+			sendReply(reply, session);
+			return true;
+		}
+		
+		// If there is an error, print it
+		if (reply.getErrorFlag()) {
+			sendReply(reply, session);
+			return true;
+		}
+		
+		// Check line endings
+		if (!checkLineEnd(command, reply)) {
+			System.out.println("bad line ending");
+			sendReply(reply, session);
+			return true;
+		}
+		
+		// No errors
+		sendReply(reply, session);
+		return true;
 	}
 	
 	/*
@@ -158,60 +469,86 @@ public class FTPServer {
 	 * for errors in the command syntax, and the processing performs the action.
 	 */
 	
-	public static boolean parseUSER(String command, String username, ServerReply reply) {
+	public static boolean parseUSER(ServerSession session, CommandLine command, String username, ServerReply reply) {
 		if (!checkParam(command, username, reply)) return false;
 		if (!checkAscii(username, reply)) return false;
-		return processUSER(username, reply);
+		return processUSER(session, username, reply);
 	}
 	
-	public static boolean processUSER(String username, ServerReply reply) {
+	public static boolean processUSER(ServerSession session, String username, ServerReply reply) {
+		// Credentials only go over an encrypted connection when TLS is required
+		if (tlsRequired && !session.secured) {
+			reply.setReplyByCode(534);
+			return false;
+		}
+		
 		// Set the user if it hasn't been defined
-		if (userSet) {
+		if (session.userSet) {
 			reply.setReplyByCode(503);
 			return false;
 		} else {
-			userSet = true;
+			session.userSet = true;
 			reply.setReplyByCode(331);
 			return true;
 		}
 	}
 	
-	public static boolean parsePASS(String command, String password, ServerReply reply) {
+	public static boolean parsePASS(ServerSession session, CommandLine command, String password, ServerReply reply) {
 		if (!checkParam(command, password, reply));
 		if (!checkAscii(password, reply)) return false;
-		return processPASS(password, reply);
+		return processPASS(session, password, reply);
 	}
 	
-	public static boolean processPASS(String password, ServerReply reply) {
-		if (!userSet) {
+	public static boolean processPASS(ServerSession session, String password, ServerReply reply) {
+		if (!session.userSet) {
 			reply.setReplyByCode(503);
 			return false;
 		}
-		if (loggedIn) {
+		if (session.loggedIn) {
 			reply.setReplyByCode(503);
 			return false;
 		}
-		loggedIn = true;
+		session.loggedIn = true;
 		reply.setReplyByCode(230);
 		return true;
 	}
 	
-	public static boolean parseTYPE(String command, String type, ServerReply reply) {
+	public static boolean parseTYPE(ServerSession session, CommandLine command, String type, ServerReply reply) {
 		if (!checkParam(command, type, reply)) return false;
 		if (!type.equals("A") && !type.equals("I")) {
 			reply.setReplyByCode(501);
 			return false;
 		}
-		return processTYPE(type, reply);
+		return processTYPE(session, type, reply);
 	}
 	
-	public static boolean processTYPE(String type, ServerReply reply) {
-		if (!checkAuthentication(reply)) return false;
-		reply.set(200, "Type set to " + type);
+	public static boolean processTYPE(ServerSession session, String type, ServerReply reply) {
+		if (!checkAuthentication(session, reply)) return false;
+		reply.start(200).append("Type set to ").append(type);
 		return true;
 	}
 	
-	public static boolean parsePORT(String command, String portString, ServerReply reply) {
+	public static boolean parseMODE(ServerSession session, CommandLine command, String mode, ServerReply reply) {
+		if (!checkParam(command, mode, reply)) return false;
+		if (mode.equals("B") || mode.equals("C")) {
+			reply.setReplyByCode(504);
+			return false;
+		}
+		if (!mode.equals("S") && !mode.equals("Z")) {
+			reply.setReplyByCode(501);
+			return false;
+		}
+		return processMODE(session, mode, reply);
+	}
+	
+	public static boolean processMODE(ServerSession session, String mode, ServerReply reply) {
+		if (!checkAuthentication(session, reply)) return false;
+		session.compressed = mode.equals("Z");
+		reply.start(200).append("Mode set to ").append(mode);
+		return true;
+	}
+	
+	public static boolean parsePORT(ServerSession session, CommandLine command, String portString, ServerReply reply) {
 		if (!checkParam(command, portString, reply)) return false;
 		String[] address = portString.split(",");
 		
@@ -234,82 +571,656 @@ public class FTPServer {
 			}
 		}
 		
-		return processPORT(portString, reply);
+		return processPORT(session, portString, reply);
 	}
 	
-	public static boolean processPORT(String portString, ServerReply reply) {
-		if (!checkAuthentication(reply)) return false;
+	public static boolean processPORT(ServerSession session, String portString, ServerReply reply) {
+		if (!checkAuthentication(session, reply)) return false;
 		String[] hostAddress = buildAddress(portString.split(","));
-		FileManager.hostAddress = hostAddress;
-		reply.set(200, "Port command successful (" + hostAddress[0] + "," + hostAddress[1] + ")");
-		portSet = true;
+		session.releaseDataPort();
+		session.hostAddress = hostAddress;
+		reply.start(200).append("Port command successful (").append(hostAddress[0]).append(',').append(hostAddress[1]).append(')');
+		session.portSet = true;
 		return true;
 	}
 	
-	public static boolean parseRETR(String command, String filePath, ServerReply reply) {
+	public static boolean parseRETR(ServerSession session, CommandLine command, String filePath, ServerReply reply) {
 		if (!checkParam(command, filePath, reply)) return false;
 		if (!checkAscii(filePath, reply)) return false;
-		if (!portSet) {
+		if (!session.portSet) {
 			reply.setReplyByCode(503);
 			return false;
 		}
-		String[] splitted = command.split("(?<=\\s)|(?=\\s)");
-		if (!checkLineEnd(command, splitted, reply)) return false;
-		if (!checkAuthentication(reply)) return false;
-		return processRETR(filePath, reply);
+		if (!checkLineEnd(command, reply)) return false;
+		if (!checkAuthentication(session, reply)) return false;
+		return processRETR(session, filePath, reply);
 	}
 	
-	public static boolean processRETR(String filePath, ServerReply reply) {
+	public static boolean processRETR(ServerSession session, String filePath, ServerReply reply) {
 		if (filePath.indexOf("/") == 0 || filePath.indexOf("\\") == 0) {
 			filePath = filePath.substring(1,  filePath.length());
 		}
-		if (FileManager.copyFile(filePath, reply)) {
-			portSet = false;
-			return true;
+		
+		// A restart offset only applies to the transfer right after it
+		boolean restarted = session.restartOffset >= 0;
+		long offset = Math.max(0, session.restartOffset);
+		session.restartOffset = -1;
+		
+		// Missing files are turned away before the data connection is opened,
+		// from the index or else the store, on disk or not
+		FileIndex.Entry entry = lookupFile(filePath);
+		if (!entry.isFile()) {
+			reply.setReplyByCode(550);
+			return false;
+		}
+		// Resuming past the end would send nothing and look like success
+		if (offset > entry.size) {
+			reply.setReplyByCode(554);
+			return false;
+		}
+		if (!checkProtection(session, reply)) return false;
+		if (!startTransfer(session, reply)) return false;
+		try {
+			if (FileManager.copyFile(session, filePath, entry, offset, reply)) {
+				session.portSet = false;
+				return true;
+			}
+			
+			// SegmentedDownload restarts each segment, even the first, and
+			// closes the data connection once it has its bytes. Those are
+			// counted apart from transfers that really failed.
+			if (restarted && reply.getReplyCode() == 426) {
+				metrics.recordRangeClosed();
+			} else if (reply.getReplyCode() == 426 || reply.getReplyCode() == 451) {
+				metrics.recordTransferFailure();
+			}
+			return false;
+		} finally {
+			endTransfer();
+		}
+	}
+	
+	public static boolean parseSIZE(ServerSession session, CommandLine command, String filePath, ServerReply reply) {
+		if (!checkParam(command, filePath, reply)) return false;
+		if (!checkAscii(filePath, reply)) return false;
+		if (!checkAuthentication(session, reply)) return false;
+		return processSIZE(session, filePath, reply);
+	}
+	
+	// Size in bytes as RETR would send it in MODE S, so clients can split a download
+	public static boolean processSIZE(ServerSession session, String filePath, ServerReply reply) {
+		if (filePath.indexOf("/") == 0 || filePath.indexOf("\\") == 0) {
+			filePath = filePath.substring(1,  filePath.length());
+		}
+		FileIndex.Entry entry = lookupFile(filePath);
+		if (!entry.isFile()) {
+			reply.setReplyByCode(550);
+			return false;
+		}
+		reply.startValue(213).append(entry.size);
+		return true;
+	}
+	
+	// LIST, NLST and MLSD with an optional path. Options like "-a" that
+	// clients put in front of the path are skipped.
+	public static boolean parseLIST(ServerSession session, CommandLine command, String path, int format, ServerReply reply) {
+		if (command.indexOfLineEnd() != 4) {
+			if (!checkParam(command, path, reply)) return false;
+			if (!checkAscii(path, reply)) return false;
+			if (format != DirectoryListings.MLSD && path.startsWith("-")) {
+				String[] words = command.arguments();
+				StringBuilder rest = new StringBuilder();
+				int i = 0;
+				while (i < words.length && words[i].startsWith("-")) {
+					i++;
+				}
+				while (i < words.length) {
+					rest.append(words[i++]);
+				}
+				path = rest.toString();
+			}
 		} else {
+			path = "";
+		}
+		if (!session.portSet) {
+			reply.setReplyByCode(503);
 			return false;
 		}
+		if (!checkLineEnd(command, reply)) return false;
+		if (!checkAuthentication(session, reply)) return false;
+		return processLIST(session, path, format, reply);
 	}
 	
-	public static boolean parseSYST(String command, String parameter, ServerReply reply) {
+	public static boolean processLIST(ServerSession session, String path, int format, ServerReply reply) {
+		if (path.indexOf("/") == 0 || path.indexOf("\\") == 0) {
+			path = path.substring(1,  path.length());
+		}
+		
+		// REST only applies to file transfers
+		session.restartOffset = -1;
+		if (!checkProtection(session, reply)) return false;
+		if (!startTransfer(session, reply)) return false;
+		try {
+			if (FileManager.sendListing(session, path, format, reply)) {
+				session.portSet = false;
+				return true;
+			} else {
+				return false;
+			}
+		} finally {
+			endTransfer();
+		}
+	}
+	
+	public static boolean parseMDTM(ServerSession session, CommandLine command, String filePath, ServerReply reply) {
+		if (!checkParam(command, filePath, reply)) return false;
+		if (!checkAscii(filePath, reply)) return false;
+		if (!checkAuthentication(session, reply)) return false;
+		return processMDTM(session, filePath, reply);
+	}
+	
+	// Modification time in UTC as YYYYMMDDHHMMSS, so clients can tell a changed file
+	public static boolean processMDTM(ServerSession session, String filePath, ServerReply reply) {
+		if (filePath.indexOf("/") == 0 || filePath.indexOf("\\") == 0) {
+			filePath = filePath.substring(1,  filePath.length());
+		}
+		FileIndex.Entry entry = lookupFile(filePath);
+		if (!entry.isFile()) {
+			reply.setReplyByCode(550);
+			return false;
+		}
+		reply.startValue(213).append(DirectoryListings.FACT.format(Instant.ofEpochMilli(entry.modified)));
+		return true;
+	}
+	
+	public static boolean parseHASH(ServerSession session, CommandLine command, String filePath, ServerReply reply) {
+		if (!checkParam(command, filePath, reply)) return false;
+		if (!checkAscii(filePath, reply)) return false;
+		if (!checkAuthentication(session, reply)) return false;
+		return processHASH(session, filePath, reply);
+	}
+	
+	// Hash of the file, or of the range given by RANG, with the algorithm
+	// chosen by OPTS HASH: "213 algorithm first-last hash path"
+	public static boolean processHASH(ServerSession session, String filePath, ServerReply reply) {
+		String name = filePath;
+		if (filePath.indexOf("/") == 0 || filePath.indexOf("\\") == 0) {
+			filePath = filePath.substring(1,  filePath.length());
+		}
+		
+		// A range only applies to the HASH right after it
+		long first = session.rangeStart;
+		long last = session.rangeEnd;
+		session.rangeStart = 0;
+		session.rangeEnd = -1;
+		
+		FileIndex.Entry entry = lookupFile(filePath);
+		if (!entry.isFile()) {
+			reply.setReplyByCode(550);
+			return false;
+		}
+		last = last < 0 ? entry.size - 1 : Math.min(last, entry.size - 1);
+		String hash = digestFile(filePath, entry, session.hashAlgorithm, first, last, reply);
+		if (hash == null) return false;
+		reply.startValue(213).append(session.hashAlgorithm).append(' ').append(first).append('-').append(Math.max(first, last))
+				.append(' ').append(hash).append(' ').append(name);
+		return true;
+	}
+	
+	// XCRC and XMD5 take the path with an optional first and last byte after
+	// it. A path that ends in a number can be given in quotes.
+	public static boolean parseXCRC(ServerSession session, CommandLine command, String parameter, String algorithm, ServerReply reply) {
+		if (!checkParam(command, parameter, reply)) return false;
+		if (!checkAscii(parameter, reply)) return false;
+		String[] words = command.arguments();
+		int count = 0;
+		while (count < 2 && count < words.length - 1 && isNumber(words[words.length - 1 - count])) {
+			count++;
+		}
+		
+		// The path is joined the way parameter() joins it
+		StringBuilder filePath = new StringBuilder();
+		for (int i = 0; i < words.length - count; i++) {
+			filePath.append(words[i]);
+		}
+		if (filePath.length() > 1 && filePath.charAt(0) == '"' && filePath.charAt(filePath.length() - 1) == '"') {
+			filePath.deleteCharAt(filePath.length() - 1).deleteCharAt(0);
+		}
+		long first = 0;
+		long last = -1;
+		try {
+			if (count > 0) first = Long.parseLong(words[words.length - count]);
+			if (count > 1) last = Long.parseLong(words[words.length - 1]);
+		} catch (NumberFormatException e) {
+			reply.setReplyByCode(501);
+			return false;
+		}
+		if (count > 1 && last < first) {
+			reply.setReplyByCode(501);
+			return false;
+		}
+		if (!checkAuthentication(session, reply)) return false;
+		return processXCRC(session, filePath.toString(), algorithm, first, last, reply);
+	}
+	
+	// "250 hash" of bytes first to last, where last is -1 for the end of the file
+	public static boolean processXCRC(ServerSession session, String filePath, String algorithm, long first, long last, ServerReply reply) {
+		if (filePath.indexOf("/") == 0 || filePath.indexOf("\\") == 0) {
+			filePath = filePath.substring(1,  filePath.length());
+		}
+		FileIndex.Entry entry = lookupFile(filePath);
+		if (!entry.isFile()) {
+			reply.setReplyByCode(550);
+			return false;
+		}
+		last = last < 0 ? entry.size - 1 : Math.min(last, entry.size - 1);
+		String hash = digestFile(filePath, entry, algorithm, first, last, reply);
+		if (hash == null) return false;
+		reply.startValue(250).append(hash);
+		return true;
+	}
+	
+	// Hash bytes first to last of a file that lookupFile found. Replies and
+	// returns null if the range starts past the end or the file can't be read.
+	public static String digestFile(String filePath, FileIndex.Entry entry, String algorithm, long first, long last, ServerReply reply) {
+		if (first > 0 && first >= entry.size) {
+			reply.setReplyByCode(554);
+			return null;
+		}
+		File file = fileStore.file(filePath);
+		if (file == null) {
+			// Only files on disk are hashed
+			reply.setReplyByCode(504);
+			return null;
+		}
+		try {
+			return fileDigests.digest(file, entry.size, entry.modified, algorithm, first, last + 1);
+		} catch (IOException e) {
+			reply.setReplyByCode(file.isFile() ? 451 : 550);
+			return null;
+		}
+	}
+	
+	// AUTH TLS, also under its old names TLS-C and SSL. The 234 is sent in
+	// the clear, and anything after it on the connection is TLS.
+	public static boolean parseAUTH(ServerSession session, CommandLine command, String mechanism, ServerReply reply) {
+		if (!checkParam(command, mechanism, reply)) return false;
+		if (!mechanism.equalsIgnoreCase("TLS") && !mechanism.equalsIgnoreCase("TLS-C") && !mechanism.equalsIgnoreCase("SSL")) {
+			reply.setReplyByCode(504);
+			return false;
+		}
+		if (!checkLineEnd(command, reply)) return false;
+		return processAUTH(session, reply);
+	}
+	
+	public static boolean processAUTH(ServerSession session, ServerReply reply) {
+		if (tls == null) {
+			reply.setReplyByCode(431);
+			return false;
+		}
+		if (session.secured || session.userSet) {
+			reply.setReplyByCode(503);
+			return false;
+		}
+		reply.setReplyByCode(234);
+		sendReply(reply, session);
+		flushReplies(session);
+		try {
+			session.startTls(tls.serverEngine());
+		} catch (IOException e) {
+			// The connection is gone, the next read ends the session
+		}
+		session.secured = true;
+		return true;
+	}
+	
+	// TLS has no protection buffer, so PBSZ only ever sets 0
+	public static boolean parsePBSZ(ServerSession session, CommandLine command, String size, ServerReply reply) {
+		if (!checkParam(command, size, reply)) return false;
+		if (!isNumber(size)) {
+			reply.setReplyByCode(501);
+			return false;
+		}
+		return processPBSZ(session, reply);
+	}
+	
+	public static boolean processPBSZ(ServerSession session, ServerReply reply) {
+		if (!session.secured) {
+			reply.setReplyByCode(503);
+			return false;
+		}
+		session.bufferSizeSet = true;
+		reply.start(200).append("PBSZ=0");
+		return true;
+	}
+	
+	// PROT C sends data in the clear and PROT P over TLS. S and E mean nothing with TLS.
+	public static boolean parsePROT(ServerSession session, CommandLine command, String level, ServerReply reply) {
+		if (!checkParam(command, level, reply)) return false;
+		if (level.equals("S") || level.equals("E")) {
+			reply.setReplyByCode(536);
+			return false;
+		}
+		if (!level.equals("C") && !level.equals("P")) {
+			reply.setReplyByCode(504);
+			return false;
+		}
+		return processPROT(session, level, reply);
+	}
+	
+	public static boolean processPROT(ServerSession session, String level, ServerReply reply) {
+		if (!session.bufferSizeSet) {
+			reply.setReplyByCode(503);
+			return false;
+		}
+		if (tlsRequired && level.equals("C")) {
+			reply.setReplyByCode(534);
+			return false;
+		}
+		session.protectData = level.equals("P");
+		reply.start(200).append("Protection level set to ").append(level);
+		return true;
+	}
+	
+	// Data connections without PROT P are refused when TLS is required
+	public static boolean checkProtection(ServerSession session, ServerReply reply) {
+		if (!tlsRequired || session.protectData) return true;
+		session.releaseDataPort();
+		reply.setReplyByCode(521);
+		return false;
+	}
+	
+	// Only OPTS HASH [algorithm], which shows or picks the algorithm for HASH
+	public static boolean parseOPTS(ServerSession session, CommandLine command, String parameter, ServerReply reply) {
+		if (!checkParam(command, parameter, reply)) return false;
+		String[] words = command.arguments();
+		if (!words[0].equalsIgnoreCase("HASH") || words.length > 2) {
+			reply.setReplyByCode(501);
+			return false;
+		}
+		String algorithm = session.hashAlgorithm;
+		if (words.length == 2) {
+			algorithm = FileDigests.algorithm(words[1]);
+			if (algorithm == null) {
+				reply.setReplyByCode(504);
+				return false;
+			}
+		}
+		if (!checkAuthentication(session, reply)) return false;
+		return processOPTS(session, algorithm, reply);
+	}
+	
+	public static boolean processOPTS(ServerSession session, String algorithm, ServerReply reply) {
+		session.hashAlgorithm = algorithm;
+		reply.start(200).append(algorithm);
+		return true;
+	}
+	
+	// RANG first last limits the next HASH to those bytes, and RANG 1 0 clears it
+	public static boolean parseRANG(ServerSession session, CommandLine command, String parameter, ServerReply reply) {
+		if (!checkParam(command, parameter, reply)) return false;
+		String[] words = command.arguments();
+		if (words.length != 2 || !isNumber(words[0]) || !isNumber(words[1])) {
+			reply.setReplyByCode(501);
+			return false;
+		}
+		long first;
+		long last;
+		try {
+			first = Long.parseLong(words[0]);
+			last = Long.parseLong(words[1]);
+		} catch (NumberFormatException e) {
+			reply.setReplyByCode(501);
+			return false;
+		}
+		boolean clear = first == 1 && last == 0;
+		if (last < first && !clear) {
+			reply.setReplyByCode(501);
+			return false;
+		}
+		if (!checkAuthentication(session, reply)) return false;
+		return processRANG(session, clear ? 0 : first, clear ? -1 : last, reply);
+	}
+	
+	public static boolean processRANG(ServerSession session, long first, long last, ServerReply reply) {
+		session.rangeStart = first;
+		session.rangeEnd = last;
+		if (last < 0) {
+			reply.start(350).append("Range cleared");
+		} else {
+			reply.start(350).append("Restarting at ").append(first).append(". End marker at ").append(last);
+		}
+		return true;
+	}
+	
+	// STOR replaces the file, APPE adds to the end of it
+	public static boolean parseSTOR(ServerSession session, CommandLine command, String filePath, boolean append, ServerReply reply) {
+		if (!checkParam(command, filePath, reply)) return false;
+		if (!checkAscii(filePath, reply)) return false;
+		if (!session.portSet) {
+			reply.setReplyByCode(503);
+			return false;
+		}
+		if (!checkLineEnd(command, reply)) return false;
+		if (!checkAuthentication(session, reply)) return false;
+		return processSTOR(session, filePath, append, reply);
+	}
+	
+	public static boolean processSTOR(ServerSession session, String filePath, boolean append, ServerReply reply) {
+		if (filePath.indexOf("/") == 0 || filePath.indexOf("\\") == 0) {
+			filePath = filePath.substring(1,  filePath.length());
+		}
+		
+		// REST and ALLO only apply to the transfer right after them
+		long offset = Math.max(0, session.restartOffset);
+		long allocate = session.allocateSize;
+		session.restartOffset = -1;
+		session.allocateSize = 0;
+		if (!checkProtection(session, reply)) return false;
+		if (!startTransfer(session, reply)) return false;
+		try {
+			if (FileManager.storeFile(session, filePath, append, offset, allocate, reply)) {
+				session.portSet = false;
+				return true;
+			}
+			if (reply.getReplyCode() == 426 || reply.getReplyCode() == 451) {
+				metrics.recordTransferFailure();
+			}
+			return false;
+		} finally {
+			endTransfer();
+		}
+	}
+	
+	// Format is "ALLO size" or "ALLO size R record-size", the record size is ignored
+	public static boolean parseALLO(ServerSession session, CommandLine command, String size, ServerReply reply) {
+		if (!checkParam(command, size, reply)) return false;
+		int record = size.indexOf('R');
+		if (record >= 0) {
+			size = size.substring(0, record);
+		}
+		long bytes;
+		try {
+			bytes = Long.parseLong(size);
+		} catch (NumberFormatException e) {
+			reply.setReplyByCode(501);
+			return false;
+		}
+		if (bytes < 0 || size.charAt(0) == '+') {
+			reply.setReplyByCode(501);
+			return false;
+		}
+		if (!checkAuthentication(session, reply)) return false;
+		return processALLO(session, bytes, reply);
+	}
+	
+	public static boolean processALLO(ServerSession session, long bytes, ServerReply reply) {
+		session.allocateSize = bytes;
+		reply.start(200).append("Allocating ").append(bytes).append(" bytes");
+		return true;
+	}
+	
+	public static boolean parseREST(ServerSession session, CommandLine command, String marker, ServerReply reply) {
+		if (!checkParam(command, marker, reply)) return false;
+		
+		// Only byte offsets are supported
+		long offset;
+		try {
+			offset = Long.parseLong(marker);
+		} catch (NumberFormatException e) {
+			reply.setReplyByCode(501);
+			return false;
+		}
+		if (offset < 0 || marker.charAt(0) == '+') {
+			reply.setReplyByCode(501);
+			return false;
+		}
+		if (!checkAuthentication(session, reply)) return false;
+		return processREST(session, offset, reply);
+	}
+	
+	public static boolean processREST(ServerSession session, long offset, ServerReply reply) {
+		session.restartOffset = offset;
+		reply.start(350).append("Restarting at ").append(offset).append(". Send RETR to resume");
+		return true;
+	}
+	
+	public static boolean parsePASV(ServerSession session, CommandLine command, ServerReply reply) {
+		if (!checkNoParam(command, reply)) return false;
+		if (!checkAuthentication(session, reply)) return false;
+		return processPASV(session, reply);
+	}
+	
+	public static boolean processPASV(ServerSession session, ServerReply reply) {
+		// PASV can only describe IPv4 addresses
+		if (!(session.localAddress instanceof Inet4Address) || !leaseDataPort(session, reply)) {
+			reply.setReplyByCode(425);
+			return false;
+		}
+		int port = session.passiveChannel.socket().getLocalPort();
+		byte[] address = session.localAddress.getAddress();
+		reply.start(227).append("Entering Passive Mode (");
+		for (byte part : address) {
+			reply.append(part & 0xFF).append(',');
+		}
+		reply.append(port / 256).append(',').append(port % 256).append(')');
+		return true;
+	}
+	
+	public static boolean parseEPSV(ServerSession session, CommandLine command, String parameter, ServerReply reply) {
+		// Either no parameter, a network protocol number or ALL
+		if (command.indexOfLineEnd() != 4) {
+			if (!checkParam(command, parameter, reply)) return false;
+			if (!parameter.equals("1") && !parameter.equals("2") && !parameter.equalsIgnoreCase("ALL")) {
+				reply.setReplyByCode(501);
+				return false;
+			}
+		}
+		if (!checkAuthentication(session, reply)) return false;
+		return processEPSV(session, reply);
+	}
+	
+	public static boolean processEPSV(ServerSession session, ServerReply reply) {
+		if (!leaseDataPort(session, reply)) {
+			reply.setReplyByCode(425);
+			return false;
+		}
+		int port = session.passiveChannel.socket().getLocalPort();
+		reply.start(229).append("Entering Extended Passive Mode (|||").append(port).append("|)");
+		return true;
+	}
+	
+	// Swap whatever data port the session had for a passive one
+	public static boolean leaseDataPort(ServerSession session, ServerReply reply) {
+		session.releaseDataPort();
+		session.passiveChannel = dataPorts.lease();
+		if (session.passiveChannel == null) {
+			return false;
+		}
+		session.portSet = true;
+		return true;
+	}
+	
+	// Only server status for now, STAT with a path is not implemented
+	public static boolean parseSTAT(ServerSession session, CommandLine command, String parameter, ServerReply reply) {
+		if (command.indexOfLineEnd() != 4) {
+			if (!checkParam(command, parameter, reply)) return false;
+			reply.setReplyByCode(504);
+			return false;
+		}
+		if (!checkAuthentication(session, reply)) return false;
+		return processSTAT(session, reply);
+	}
+	
+	public static boolean processSTAT(ServerSession session, ServerReply reply) {
+		reply.startLines(211).append("Server status");
+		for (String line : metrics.snapshot().lines()) {
+			reply.nextLine().append(line);
+		}
+		if (admission != null) {
+			reply.nextLine().append("Admission: ").append(admission.sessions()).append(" sessions, ")
+					.append(admission.transfers()).append(" transfers, ")
+					.append(admission.rejectedSessions.sum()).append(" sessions refused, ")
+					.append(admission.queuedTransfers.sum()).append(" transfers queued, ")
+					.append(admission.rejectedTransfers.sum()).append(" transfers refused");
+		}
+		if (tls != null) {
+			reply.nextLine().append("TLS: ").append(tls.handshakes.sum()).append(" handshakes, ")
+					.append(tls.resumed.sum()).append(" resumed");
+		}
+		reply.lastLine().append("End of status");
+		return true;
+	}
+	
+	public static boolean parseSITE(ServerSession session, CommandLine command, String parameter, ServerReply reply) {
+		if (!checkParam(command, parameter, reply)) return false;
+		if (!parameter.equalsIgnoreCase("METRICS")) {
+			reply.setReplyByCode(504);
+			return false;
+		}
+		if (!checkAuthentication(session, reply)) return false;
+		return processSTAT(session, reply);
+	}
+	
+	public static boolean parseSYST(ServerSession session, CommandLine command, ServerReply reply) {
 		if (!checkNoParam(command, reply)) return false;
-		if (!checkAuthentication(reply)) return false;
-		return processSYST(reply);
+		if (!checkAuthentication(session, reply)) return false;
+		return processSYST(session, reply);
 	}
 	
-	public static boolean processSYST(ServerReply reply) {
+	public static boolean processSYST(ServerSession session, ServerReply reply) {
 		reply.setReplyByCode(215);
 		return true;
 	}
 	
-	public static boolean parseNOOP(String command, String parameter, ServerReply reply) {
+	public static boolean parseNOOP(ServerSession session, CommandLine command, ServerReply reply) {
 		if (!checkNoParam(command, reply)) return false;
-		if (!checkAuthentication(reply)) return false;
-		return processNOOP(reply);
+		if (!checkAuthentication(session, reply)) return false;
+		return processNOOP(session, reply);
 	}
 	
-	public static boolean processNOOP(ServerReply reply) {
-		reply.set(200, "Command OK");
+	public static boolean processNOOP(ServerSession session, ServerReply reply) {
+		reply.start(200).append("Command OK");
 		return true;
 	}
 	
-	public static boolean parseQUIT(String command, String parameter, ServerReply reply) {
+	public static boolean parseQUIT(ServerSession session, CommandLine command, ServerReply reply) {
 		if (!checkNoParam(command, reply)) return false;
-		return processQUIT(reply);
+		return processQUIT(session, reply);
 	}
 	
-	public static boolean processQUIT(ServerReply reply) {
+	public static boolean processQUIT(ServerSession session, ServerReply reply) {
 //		reply.set(200, "Command OK");
 		reply.setReplyByCode(221);
 		return true;
 	}
 	
 	// Make user is logged in
-	public static boolean checkAuthentication(ServerReply reply) {
-		if (!userSet) {
+	public static boolean checkAuthentication(ServerSession session, ServerReply reply) {
+		if (!session.userSet) {
 			reply.setReplyByCode(530);
 			return false;
-		} else if (!loggedIn) {
+		} else if (!session.loggedIn) {
 			reply.setReplyByCode(503);
 			return false;
 		}
@@ -317,8 +1228,8 @@ public class FTPServer {
 	}
 	
 	// Check if a \r\n immediately follows the command
-	public static boolean checkNoParam(String command, ServerReply reply) {
-		if (command.indexOf("\r\n") != 4) {
+	public static boolean checkNoParam(CommandLine command, ServerReply reply) {
+		if (command.indexOfLineEnd() != 4) {
 			reply.setReplyByCode(501);
 			return false;
 		}
@@ -326,13 +1237,13 @@ public class FTPServer {
 	}
 	
 	// Check if the command ends in \r\n
-	public static boolean checkLineEnd(String command, String[] splitted, ServerReply reply) {
-		return command.contains("\r\n");
+	public static boolean checkLineEnd(CommandLine command, ServerReply reply) {
+		return command.hasLineEnd();
 	}
 	
 	// Check if there is a space after the command
-	public static boolean checkParam(String command, String parameter, ServerReply reply) {
-		if (command.indexOf(" " ) != 4) {
+	public static boolean checkParam(CommandLine command, String parameter, ServerReply reply) {
+		if (command.indexOf(' ') != 4) {
 			reply.setReplyByCode(500);
 			return false;
 		}
@@ -343,6 +1254,24 @@ public class FTPServer {
 		return true;
 	}
 	
+	// Attributes of a served path, from the index when it knows the path and from the store otherwise
+	public static FileIndex.Entry lookupFile(String filePath) {
+		FileIndex.Entry entry = fileIndex == null ? null : fileIndex.lookup(filePath);
+		if (entry != null) {
+			return entry;
+		}
+		return fileStore.stat(filePath);
+	}
+	
+	// Check if a string is only decimal digits
+	public static boolean isNumber(String str) {
+		if (str.isEmpty()) return false;
+		for (int i = 0; i < str.length(); i++) {
+			if (str.charAt(i) < '0' || str.charAt(i) > '9') return false;
+		}
+		return true;
+	}
+	
 	// Check if a string only contains ASCII characters
 	public static boolean checkAscii(String str, ServerReply reply) {
 		for (int i = 0; i < str.length(); i++) {
@@ -354,26 +1283,6 @@ public class FTPServer {
 		return true;
 	}
 	
-	// Build a string from the input command
-	public static String buildParameter(String[] splitted) {
-		String result = "";
-		boolean isBuilding = false;
-		try {
-			int fromBack = splitted[splitted.length - 3].equals("\r") ? 3: 2;
-			for (int i = 2; i < splitted.length - fromBack; i++) {
-				if (!splitted[i].matches("\\s")) {
-					isBuilding = true;
-				}
-				if (isBuilding) {
-					result = result + splitted[i];
-				}
-			}
-		} catch (ArrayIndexOutOfBoundsException e) {
-			result = "";
-		}
-		return result;
-	}
-	
 	// Build an IP address and the port number given a string
 	public static String[] buildAddress(String[] splitted) {
 		// Create the address with periods
@@ -394,156 +1303,188 @@ public class FTPServer {
 		return result;
 	}
 	
-	// Send the reply message to stdout and to the client
-	public static boolean sendReply(ServerReply reply, DataOutputStream toClient) {
+	// Send the reply message to stdout and queue it for the client. Replies to
+	// pipelined commands go out together once the input runs dry.
+	public static boolean sendReply(ServerReply reply, ServerSession session) {
 		reply.printMessage();
 		try {
-			toClient.writeBytes(reply.getMessage());
+			reply.writeTo(session);
 		} catch (Exception e) {
 			return false;
 		}
 		return true;
 	}
 	
-	// After the client connection is closed, rest the state of the server
-	public static boolean resetState() {
-		userSet = false;
-		loggedIn = false;
-		portSet = false;
+	// Push the queued replies to the client now
+	public static boolean flushReplies(ServerSession session) {
+		try {
+			session.flush();
+		} catch (IOException e) {
+			return false;
+		}
 		return true;
 	}
 }
 
 /*
- * File manager for copying files
+ * Session that owns a blocking socket and runs its command loop
+ * on a worker thread.
  */
-class FileManager {
-	public static int copyCount = 0;
-	public static String[] hostAddress;
+class SocketSession extends ServerSession implements Runnable {
+	private final Socket connectionSocket;
+	private ReadableByteChannel fromClient;
+	private WritableByteChannel toClient;
+	private TlsChannel tls;	// After AUTH TLS
+	private boolean startedTls = false;	// Input read in the clear is dropped after AUTH TLS
+	private final ByteBuffer output = ByteBuffer.allocate(REPLY_BUFFER_SIZE);	// Replies waiting for flush
 	
-	public static boolean copyFile(String filePath, ServerReply reply) {
-		// Set up the socket to connect
-		Socket fileSocket;
-		try {
-			fileSocket = new Socket(hostAddress[0], Integer.parseInt(hostAddress[1]));
-		} catch (IOException e) {
-			reply.setReplyByCode(425);
-			return false;
+	public SocketSession(Socket connectionSocket) {
+		this.connectionSocket = connectionSocket;
+		this.localAddress = connectionSocket.getLocalAddress();
+		this.remoteAddress = connectionSocket.getInetAddress();
+	}
+	
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		while (length > 0) {
+			if (!output.hasRemaining()) {
+				flush();
+			}
+			int count = Math.min(length, output.remaining());
+			output.put(bytes, offset, count);
+			offset += count;
+			length -= count;
 		}
-		
+	}
+	
+	// One write call for everything buffered
+	public void flush() throws IOException {
+		output.flip();
+		while (output.hasRemaining()) {
+			toClient.write(output);
+		}
+		output.clear();
+	}
+	
+	public void startTls(SSLEngine engine) throws IOException {
+		tls = TlsChannel.open(FTPServer.tls, engine, connectionSocket, false);
+		fromClient = tls;
+		toClient = tls;
+		startedTls = true;
+	}
+	
+	public void run() {
 		try {
-			// Write to the socket
-			File file = new File(System.getProperty("user.dir"), filePath);
-			FileInputStream in = new FileInputStream(file.getPath());
-			reply.setReplyByCode(150);
-			FTPServer.sendReply(reply,  FTPServer.toClient);
-			DataOutputStream toServer = new DataOutputStream(fileSocket.getOutputStream());
-			// Copy the file
-			int read = 0;
-			byte[] bytes = new byte[1024];
-			while ((read = in.read(bytes)) != -1) {
-				toServer.write(bytes);
-			}
+			TransferTuning.configureControl(connectionSocket);
 			
-			// Successful
-			in.close();
-			toServer.close();
-			reply.setReplyByCode(250);
+			// Create IO streams with the connected socket. A client that sends
+			// nothing for the idle timeout is disconnected.
+			connectionSocket.setSoTimeout(TransferTuning.idleTimeout);
+			fromClient = connectionSocket.getChannel() != null
+					? TransferTuning.timedInput(connectionSocket.getChannel()) : Channels.newChannel(connectionSocket.getInputStream());
+			toClient = connectionSocket.getChannel() != null
+					? connectionSocket.getChannel() : Channels.newChannel(connectionSocket.getOutputStream());
 			
-		} catch (FileNotFoundException e) {
-			reply.setReplyByCode(550);
-			return false;
+			// Prepare for input
+			reply.setReplyByCode(220);
+			FTPServer.sendReply(reply, this);
+			
+			// Read inputs
+			ByteBuffer input = ByteBuffer.allocate(CommandLine.MAX_LENGTH);
+			input.flip();
+			CommandLine command = new CommandLine();
+			boolean endOfInput = false;
+			while (true) {
+				if (command.read(input, endOfInput)) {
+					if (!FTPServer.handleCommand(this, command, reply)) {
+						break;
+					}
+					if (startedTls) {
+						// A client that didn't wait for the 234 can't slip commands in unencrypted
+						startedTls = false;
+						input.clear();
+						input.flip();
+					}
+					continue;
+				}
+				if (endOfInput) break;
+				
+				// Every buffered command is done, so send their replies in one write
+				flush();
+				
+				// Need more input for a whole line
+				input.compact();
+				if (!input.hasRemaining()) {
+					input.clear();
+					reply.setReplyByCode(500);
+					FTPServer.sendReply(reply, this);
+				}
+				endOfInput = fromClient.read(input) < 0;
+				input.flip();
+			}
 		} catch (IOException e) {
-			reply.setReplyByCode(550);
-			return false;
+			// Connection dropped, nothing left to reply to
 		} finally {
 			// Cleanup
+			FTPServer.flushReplies(this);
+			close();
+			end();
 			try {
-				fileSocket.close();
+				if (tls != null) {
+					tls.close();
+				}
+				connectionSocket.close();
 			} catch (IOException e) {
 				
 			}
 		}
-		return true;
 	}
 }
 
 /*
- * Class that represents the server response
+ * Fixed set of listening sockets bound once at startup. PASV and EPSV lease
+ * one to the session and it comes back after the transfer, so busy servers
+ * never bind or run out of ports per transfer.
  */
-
-class ServerReply {
-	private int replyCode;
-	private String replyText;
-	private boolean errorFlag;
-	
-	public ServerReply() {
-		replyCode = 0;
-		replyText = "";
-		errorFlag = false;
-	}
-	
-	public boolean getErrorFlag() {
-		return errorFlag;
-	}
-	
-	public void setErrorFlag(boolean errorFlag) {
-		this.errorFlag = errorFlag;
-	}
-	
-	public ServerReply set(int replyCode, String replyText) {
-		this.replyCode = replyCode;
-		this.replyText = replyText;
-		return this;
-	}
-	
-	// Set the reply message based on the code
-	public ServerReply setReplyByCode(int code) {
-		replyCode = code;
-		if (code == 150) {
-			replyText = "File status okay";
-		} else if (code == 215) {
-			replyText = "UNIX Type: L8";
-		} else if (code == 220) {
-			replyText = "COMP 431 FTP server ready";
-		} else if (code == 221) {
-			replyText = "Goodbye";
-		} else if (code == 230) {
-			replyText = "Guest login OK";
-		} else if (code == 250) {
-			replyText = "Requested file action completed";
-		} else if (code == 331) {
-			replyText = "Guest access OK, send password";
-		} else if (code == 425) {
-			replyText = "Can not open data connection";
-			errorFlag = true;
-		} else if (code == 500) {
-			replyText = "Syntax error, command unrecognized";
-			errorFlag = true;
-		} else if (code == 501) {
-			replyText = "Syntax error in parameter";
-			errorFlag = true;
-		} else if (code == 502) {
-			replyText = "Command not implemented";
-			errorFlag = true;
-		} else if (code == 503) {
-			replyText = "Bad sequence of commands";
-			errorFlag = true;
-		} else if (code == 530) {
-			replyText = "Not logged in";
-			errorFlag = true;
-		} else if (code == 550) {
-			replyText = "File not found or access denied";
-			errorFlag = true;
-		}
-		return this;
-	}
-	
-	public String getMessage() {
-		return replyCode + " " + replyText + ".\r\n";
-	}
-	
-	public void printMessage() {
-		System.out.print(getMessage());
+class DataPortPool {
+	private final ConcurrentLinkedQueue<ServerSocketChannel> available = new ConcurrentLinkedQueue<ServerSocketChannel>();
+	
+	// Bind count ports starting at firstPort, or any free ports when firstPort is 0
+	public DataPortPool(int firstPort, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			try {
+				TransferTuning.configureListener(channel.socket());
+				channel.bind(new InetSocketAddress(firstPort == 0 ? 0 : firstPort + i));
+			} catch (IOException e) {
+				channel.close();
+				if (firstPort == 0) throw e;
+				continue;	// Skip ports that are already taken
+			}
+			available.add(channel);
+		}
+	}
+	
+	// Returns null when every port is in use
+	public ServerSocketChannel lease() {
+		return available.poll();
+	}
+	
+	public void release(ServerSocketChannel channel) {
+		// Drop connections nobody picked up so the next lease starts clean
+		try {
+			channel.configureBlocking(false);
+			SocketChannel stale;
+			while ((stale = channel.accept()) != null) {
+				stale.close();
+			}
+			channel.configureBlocking(true);
+		} catch (IOException e) {
+			
+		}
+		available.add(channel);
+	}
+	
+	public int available() {
+		return available.size();
 	}
 }
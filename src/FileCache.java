@@ -0,0 +1,129 @@
+/*
+ * Classes
+ * 	FileCache - Size-bounded LRU cache of file contents for RETR
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Keeps the contents of small, popular files in direct buffers so a hit
+ * goes straight from memory to the data channel. Entries remember the
+ * size and modification time they were read with, and are dropped as soon
+ * as the file on disk no longer matches. The least recently used entries
+ * are evicted once the total size passes the capacity.
+ */
+class FileCache {
+	public final long capacity;	// Total bytes the cache may hold
+	public final long maxEntrySize;	// Bigger files are never cached
+
+	public final LongAdder hits = new LongAdder();
+	public final LongAdder misses = new LongAdder();
+	public final LongAdder evictions = new LongAdder();
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long size = 0;
+
+	public FileCache(long capacity, long maxEntrySize) {
+		this.capacity = capacity;
+		this.maxEntrySize = Math.min(maxEntrySize, capacity);
+	}
+
+	// Whether a file of this size would be kept
+	public boolean accepts(long length) {
+		return length <= maxEntrySize;
+	}
+
+	// Cached contents of the file, or null. The entry RETR looked the file
+	// up with says whether the cached copy is current, so a hit doesn't stat
+	// the file again. Stale entries are dropped. Only files the cache would
+	// keep count as misses, so the hit rate isn't diluted by large files.
+	public ByteBuffer get(File file, FileIndex.Entry current) {
+		String key = file.getPath();
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				if (entry.length == current.size && entry.modified == current.modified) {
+					hits.increment();
+					return entry.contents.duplicate();
+				}
+				remove(key);
+			}
+		}
+		if (accepts(current.size)) {
+			misses.increment();
+		}
+		return null;
+	}
+
+	// Read the whole file into a direct buffer and cache it under the size
+	// and time of the entry, which were taken before reading, so a
+	// concurrent change is caught later.
+	public ByteBuffer load(File file, FileIndex.Entry current, FileChannel channel) throws IOException {
+		long length = current.size;
+		long modified = current.modified;
+		if (!accepts(length) || channel.size() != length) {
+			return null;
+		}
+
+		ByteBuffer contents = ByteBuffer.allocateDirect((int) length);
+		while (contents.hasRemaining()) {
+			if (channel.read(contents, contents.position()) < 0) break;
+		}
+		contents.flip();
+		if (contents.limit() != length) {
+			return null;	// The file got shorter while it was read
+		}
+
+		put(file.getPath(), new Entry(contents.asReadOnlyBuffer(), length, modified));
+		return contents.asReadOnlyBuffer();
+	}
+
+	private synchronized void put(String key, Entry entry) {
+		remove(key);
+		entries.put(key, entry);
+		size += entry.length;
+
+		// Evict from the least recently used end
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+		while (size > capacity && iterator.hasNext()) {
+			Entry eldest = iterator.next().getValue();
+			iterator.remove();
+			size -= eldest.length;
+			evictions.increment();
+		}
+	}
+
+	private void remove(String key) {
+		Entry old = entries.remove(key);
+		if (old != null) {
+			size -= old.length;
+		}
+	}
+
+	public synchronized long size() {
+		return size;
+	}
+
+	public synchronized int count() {
+		return entries.size();
+	}
+
+	private static class Entry {
+		final ByteBuffer contents;	// Read-only, shared by every reader through duplicate()
+		final long length;
+		final long modified;
+
+		Entry(ByteBuffer contents, long length, long modified) {
+			this.contents = contents;
+			this.length = length;
+			this.modified = modified;
+		}
+	}
+}
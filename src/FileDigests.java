@@ -0,0 +1,305 @@
+/*
+ * Classes
+ * 	FileDigests - Checksums of file ranges for HASH, XCRC and XMD5, with a cache of results
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/*
+ * Hashes a byte range of a file. MD5 and the SHA family have to see the
+ * bytes in order, so they run on the calling thread. CRC32 of a large
+ * range is taken in chunks on a pool of threads, and the chunk values are
+ * combined with the GF(2) arithmetic zlib uses in crc32_combine. The tree
+ * hash SHA-256-TREE hashes 1 MB leaves in parallel and then hashes pairs of
+ * hashes up to a single root, like the Glacier tree hash.
+ *
+ * Results are cached by path, size, modification time, algorithm and
+ * range. A changed file has a new time or size, so its old results are
+ * never found again and age out of the cache.
+ */
+class FileDigests {
+	public static final String[] ALGORITHMS = {"SHA-256", "SHA-512", "SHA-1", "MD5", "CRC32", "SHA-256-TREE"};
+	public static final int BUFFER_SIZE = 1024 * 1024;	// Bytes read at a time
+	public static final long CHUNK_SIZE = 8L * 1024 * 1024;	// Bytes of CRC32 per task
+	public static final int LEAF_SIZE = 1024 * 1024;	// Bytes under each leaf of the tree hash
+	public static final int LEAVES_PER_TASK = 8;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	// One direct buffer per thread that reads
+	private static final ThreadLocal<ByteBuffer> readBuffer = new ThreadLocal<ByteBuffer>() {
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
+
+	public final int capacity;	// Results kept
+	public final LongAdder hits = new LongAdder();
+	public final LongAdder misses = new LongAdder();
+
+	private final ExecutorService pool;
+	private final LinkedHashMap<String, String> results;
+
+	public FileDigests(final int capacity, int threads) {
+		this.capacity = capacity;
+		this.results = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > capacity;
+			}
+		};
+		final AtomicInteger count = new AtomicInteger();
+		this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ftp-digest-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	// Canonical name of a supported algorithm, or null
+	public static String algorithm(String name) {
+		for (String algorithm : ALGORITHMS) {
+			if (algorithm.equalsIgnoreCase(name)) return algorithm;
+		}
+		return null;
+	}
+
+	// Hex digest of bytes [start, end) of the file, which had the given size
+	// and time when it was looked up
+	public String digest(File file, long size, long modified, String algorithm, long start, long end) throws IOException {
+		String key = algorithm + " " + start + "-" + end + " " + size + " " + modified + " " + file.getPath();
+		synchronized (this) {
+			String result = results.get(key);
+			if (result != null) {
+				hits.increment();
+				return result;
+			}
+		}
+		misses.increment();
+
+		String result;
+		FileInputStream in = new FileInputStream(file);
+		try {
+			result = digest(in.getChannel(), algorithm, start, end);
+		} finally {
+			in.close();
+		}
+
+		// Keep it only if the file didn't change underneath
+		if (capacity > 0 && file.length() == size && file.lastModified() == modified) {
+			synchronized (this) {
+				results.put(key, result);
+			}
+		}
+		return result;
+	}
+
+	public String digest(FileChannel channel, String algorithm, long start, long end) throws IOException {
+		if (algorithm.equals("CRC32")) {
+			long crc = crc32(channel, start, end);
+			StringBuilder hex = new StringBuilder(8);
+			for (int shift = 28; shift >= 0; shift -= 4) {
+				hex.append(HEX[(int) (crc >>> shift) & 0xF]);
+			}
+			return hex.toString();
+		}
+		if (algorithm.equals("SHA-256-TREE")) {
+			return hex(treeHash(channel, start, end));
+		}
+		MessageDigest digest = messageDigest(algorithm);
+		read(channel, start, end, digest, null);
+		return hex(digest.digest());
+	}
+
+	public synchronized int size() {
+		return results.size();
+	}
+
+	// CRC32 of the range, one chunk per task once there is more than one chunk
+	private long crc32(final FileChannel channel, long start, long end) throws IOException {
+		if (end - start <= CHUNK_SIZE) {
+			CRC32 crc = new CRC32();
+			read(channel, start, end, null, crc);
+			return crc.getValue();
+		}
+		List<Future<Long>> chunks = new ArrayList<Future<Long>>();
+		for (long position = start; position < end; position += CHUNK_SIZE) {
+			final long from = position;
+			final long to = Math.min(end, position + CHUNK_SIZE);
+			chunks.add(pool.submit(new Callable<Long>() {
+				public Long call() throws IOException {
+					CRC32 crc = new CRC32();
+					read(channel, from, to, null, crc);
+					return crc.getValue();
+				}
+			}));
+		}
+		long crc = 0;
+		long position = start;
+		for (Future<Long> chunk : chunks) {
+			long length = Math.min(CHUNK_SIZE, end - position);
+			crc = position == start ? get(chunk) : crc32Combine(crc, get(chunk), length);
+			position += length;
+		}
+		return crc;
+	}
+
+	// SHA-256 of every leaf in parallel, then pairs of hashes up to the root
+	private byte[] treeHash(final FileChannel channel, long start, long end) throws IOException {
+		List<Future<List<byte[]>>> tasks = new ArrayList<Future<List<byte[]>>>();
+		long taskSize = (long) LEAF_SIZE * LEAVES_PER_TASK;
+		for (long position = start; position < end || position == start; position += taskSize) {
+			final long from = position;
+			final long to = Math.min(end, position + taskSize);
+			tasks.add(pool.submit(new Callable<List<byte[]>>() {
+				public List<byte[]> call() throws IOException {
+					List<byte[]> leaves = new ArrayList<byte[]>();
+					for (long leaf = from; leaf < to || leaf == from; leaf += LEAF_SIZE) {
+						MessageDigest digest = messageDigest("SHA-256");
+						read(channel, leaf, Math.min(to, leaf + LEAF_SIZE), digest, null);
+						leaves.add(digest.digest());
+					}
+					return leaves;
+				}
+			}));
+		}
+		List<byte[]> level = new ArrayList<byte[]>();
+		for (Future<List<byte[]>> task : tasks) {
+			level.addAll(get(task));
+		}
+		MessageDigest digest = messageDigest("SHA-256");
+		while (level.size() > 1) {
+			List<byte[]> next = new ArrayList<byte[]>();
+			for (int i = 0; i < level.size(); i += 2) {
+				if (i + 1 == level.size()) {
+					next.add(level.get(i));	// An odd hash moves up as it is
+				} else {
+					digest.update(level.get(i));
+					digest.update(level.get(i + 1));
+					next.add(digest.digest());
+				}
+			}
+			level = next;
+		}
+		return level.get(0);
+	}
+
+	// Feed bytes [start, end) to a digest or a CRC with positional reads, which
+	// threads may share a channel for
+	private static void read(FileChannel channel, long start, long end, MessageDigest digest, CRC32 crc) throws IOException {
+		ByteBuffer buffer = readBuffer.get();
+		long position = start;
+		while (position < end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), end - position));
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("File ended at " + position + " of " + end);
+			}
+			buffer.flip();
+			if (digest != null) {
+				digest.update(buffer);
+			} else {
+				crc.update(buffer);
+			}
+			position += read;
+		}
+	}
+
+	private static <T> T get(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException
+					? (IOException) e.getCause() : new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static MessageDigest messageDigest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException(algorithm, e);	// Every JRE has MD5, SHA-1 and SHA-256
+		}
+	}
+
+	static String hex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+			hex[2 * i + 1] = HEX[bytes[i] & 0xF];
+		}
+		return new String(hex);
+	}
+
+	/*
+	 * CRC32 of two blocks joined, from the CRC of each and the length of the
+	 * second. Appending length bytes is a linear map on the CRC register,
+	 * applied by squaring the one-zero-bit operator, as zlib does.
+	 */
+	static long crc32Combine(long crc1, long crc2, long length2) {
+		if (length2 <= 0) return crc1;
+		long[] even = new long[32];	// Operator for an even power of two zero bits
+		long[] odd = new long[32];
+
+		// The operator for one zero bit
+		odd[0] = 0xEDB88320L;
+		long row = 1;
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		square(even, odd);	// Two zero bits
+		square(odd, even);	// Four zero bits
+
+		// Apply length2 zero bytes to crc1, the first squaring gives one byte
+		do {
+			square(even, odd);
+			if ((length2 & 1) != 0) crc1 = times(even, crc1);
+			length2 >>= 1;
+			if (length2 == 0) break;
+			square(odd, even);
+			if ((length2 & 1) != 0) crc1 = times(odd, crc1);
+			length2 >>= 1;
+		} while (length2 != 0);
+		return crc1 ^ crc2;
+	}
+
+	private static long times(long[] matrix, long vector) {
+		long sum = 0;
+		for (int i = 0; vector != 0; i++, vector >>>= 1) {
+			if ((vector & 1) != 0) sum ^= matrix[i];
+		}
+		return sum;
+	}
+
+	private static void square(long[] square, long[] matrix) {
+		for (int n = 0; n < 32; n++) {
+			square[n] = times(matrix, matrix[n]);
+		}
+	}
+}
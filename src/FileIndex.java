@@ -0,0 +1,299 @@
+/*
+ * Classes
+ * 	FileIndex - Size, modification time and type of every path in the served tree
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Keeps the attributes of every file and directory under the root in
+ * memory, so RETR and SIZE can turn away a missing file without touching
+ * the disk. The tree is walked once at startup, one fork/join task per
+ * directory, and every directory is registered with a WatchService before
+ * it is read so nothing created during the walk is missed. A watcher
+ * thread then re-reads each path it hears about. Events arrive a moment
+ * after the change, so uploads through this server update the index
+ * themselves. When the service loses events it reports an overflow, and
+ * the directory is read again.
+ *
+ * Paths that leave the root, like "../x", are not answered, and the
+ * caller asks the disk as before. Links that point out of the root are
+ * left out, like a broken link, so the index never knows a path the store
+ * would refuse. So is every path once a new directory
+ * could not be watched, since the index would go stale.
+ */
+class FileIndex {
+	public static final Entry MISSING = new Entry(-1, 0, false);	// Nothing at that path
+
+	public final Path root;
+	private final Path realRoot;	// The root with its own links resolved
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentHashMap<WatchKey, Path> directories = new ConcurrentHashMap<WatchKey, Path>();
+	private final WatchService watcher;
+	private volatile boolean stale = false;	// Some directory isn't watched
+
+	private FileIndex(Path root) throws IOException {
+		this.root = root;
+		this.realRoot = root.toRealPath();
+		this.watcher = FileSystems.getDefault().newWatchService();
+	}
+
+	// Walk the tree under root in parallel and keep it current from then on
+	public static FileIndex open(File directory) throws IOException {
+		final FileIndex index = new FileIndex(directory.toPath().toAbsolutePath().normalize());
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			index.entries.put("", index.read(index.root));
+			pool.invoke(index.new Scan(index.root));
+		} catch (RuntimeException e) {
+			index.watcher.close();
+			for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+				if (cause instanceof IOException) throw (IOException) cause;
+			}
+			throw e;
+		} finally {
+			pool.shutdown();
+		}
+
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				index.watch();
+			}
+		}, "ftp-file-index");
+		thread.setDaemon(true);
+		thread.start();
+		return index;
+	}
+
+	// The entry for a path relative to the root, MISSING when nothing is
+	// there, or null when the path is outside the tree
+	public Entry lookup(String path) {
+		if (stale) return null;
+		String key;
+		try {
+			key = key(root.resolve(path).normalize());
+		} catch (InvalidPathException e) {
+			return null;
+		}
+		if (key == null) return null;
+		Entry entry = entries.get(key);
+		return entry == null ? MISSING : entry;
+	}
+
+	// Read the path again right away, for changes made by the server itself
+	public void refresh(File file) {
+		update(file.toPath().toAbsolutePath().normalize());
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public void close() throws IOException {
+		watcher.close();
+	}
+
+	// Key of a normalized path, null outside the root
+	private String key(Path path) {
+		if (!path.startsWith(root)) return null;
+		return root.relativize(path).toString();
+	}
+
+	// Attributes of the path, or an IOException if it is gone or a link out of the root
+	private Entry read(Path path) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		if (attributes.isSymbolicLink()) {
+			if (!path.toRealPath().startsWith(realRoot)) {
+				throw new IOException(path + " leads out of the root");
+			}
+			attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		}
+		return new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.isDirectory());
+	}
+
+	// Watch the directory, then add what is in it. Returns the directories found.
+	private List<Path> scan(Path directory) throws IOException {
+		WatchKey key = directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+		directories.put(key, directory);
+		List<Path> children = new ArrayList<Path>();
+		DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+		try {
+			for (Path path : stream) {
+				Entry entry;
+				try {
+					entry = read(path);
+				} catch (IOException e) {
+					continue;	// Gone already, or a broken link
+				}
+				entries.put(key(path), entry);
+				if (entry.directory) {
+					children.add(path);
+				}
+			}
+		} finally {
+			stream.close();
+		}
+		return children;
+	}
+
+	// Read one path again, adding or dropping it and whatever is below it
+	private void update(Path path) {
+		String key = key(path);
+		if (key == null || key.isEmpty()) return;
+		Entry entry;
+		try {
+			entry = read(path);
+		} catch (IOException e) {
+			remove(key);
+			return;
+		}
+		Entry old = entries.put(key, entry);
+		if (entry.directory && (old == null || !old.directory)) {
+			// A new directory may have been filled before we watched it
+			try {
+				ForkJoinPool.commonPool().invoke(new Scan(path));
+			} catch (RuntimeException e) {
+				stale = true;
+				System.err.println("File index is stale, " + path + " can't be watched: " + e.getMessage());
+			}
+		}
+	}
+
+	private void remove(String key) {
+		Entry old = entries.remove(key);
+		if (old != null && old.directory) {
+			String prefix = key + File.separator;
+			for (Iterator<String> keys = entries.keySet().iterator(); keys.hasNext();) {
+				if (keys.next().startsWith(prefix)) {
+					keys.remove();
+				}
+			}
+		}
+	}
+
+	// Lost events, so read the whole directory again and drop what's gone
+	private void rescan(Path directory) {
+		String prefix = key(directory);
+		if (prefix == null) return;
+		prefix = prefix.isEmpty() ? "" : prefix + File.separator;
+		for (String key : entries.keySet()) {
+			if (key.startsWith(prefix) && key.length() > prefix.length() && key.indexOf(File.separatorChar, prefix.length()) < 0) {
+				if (!Files.exists(root.resolve(key))) {
+					remove(key);
+				}
+			}
+		}
+		try {
+			DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+			try {
+				for (Path path : stream) {
+					update(path);
+				}
+			} finally {
+				stream.close();
+			}
+		} catch (IOException e) {
+			// The directory itself is gone, its parent hears about that
+		}
+	}
+
+	private void watch() {
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				Path directory = directories.get(key);
+				if (directory == null) {
+					key.cancel();
+					continue;
+				}
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						rescan(directory);
+					} else {
+						update(directory.resolve((Path) event.context()));
+					}
+				}
+				if (!key.reset()) {
+					directories.remove(key);
+				}
+			}
+		} catch (InterruptedException e) {
+
+		} catch (ClosedWatchServiceException e) {
+
+		}
+	}
+
+	/*
+	 * Scans one directory and forks a task for each directory in it
+	 */
+	private class Scan extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Path directory;
+
+		Scan(Path directory) {
+			this.directory = directory;
+		}
+
+		protected void compute() {
+			List<Path> children;
+			try {
+				children = scan(directory);
+			} catch (NoSuchFileException e) {
+				return;	// Removed since its parent was read
+			} catch (AccessDeniedException e) {
+				return;	// Nothing in it can be served either
+			} catch (IOException e) {
+				throw new RuntimeException(e);	// Out of watches, the index would go stale
+			}
+			List<Scan> tasks = new ArrayList<Scan>();
+			for (Path child : children) {
+				tasks.add(new Scan(child));
+			}
+			invokeAll(tasks);
+		}
+	}
+
+	public static class Entry {
+		public final long size;
+		public final long modified;	// Milliseconds
+		public final boolean directory;
+
+		Entry(long size, long modified, boolean directory) {
+			this.size = size;
+			this.modified = modified;
+			this.directory = directory;
+		}
+
+		public boolean exists() {
+			return this != MISSING;
+		}
+
+		public boolean isFile() {
+			return exists() && !directory;
+		}
+	}
+}
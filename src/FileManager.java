@@ -0,0 +1,621 @@
+/*
+ * Classes
+ * 	FileManager - Copy a file into the client socket, from the file cache,
+ * 		a shared mapping or with transferTo, deflated in MODE Z, store
+ * 		uploads through a temporary file and send directory listings
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/*
+ * File manager for copying files. Files are sent with transferTo so
+ * the kernel can copy straight from the page cache into the socket, or
+ * encrypted from a direct buffer after PROT P.
+ */
+class FileManager {
+	public static final int TRANSFER_BUFFER_SIZE = 64 * 1024;	// Buffer for sources that aren't files
+	public static final int PASSIVE_ACCEPT_TIMEOUT = 30 * 1000;	// How long to wait for a passive connection
+	public static final int RECEIVE_BUFFER_SIZE = 1024 * 1024;	// Bytes read from the socket per disk write
+	
+	private static final AtomicLong uploadCount = new AtomicLong();	// Names temporary upload files
+	
+	// One direct buffer per worker thread for uploads
+	private static final ThreadLocal<ByteBuffer> receiveBuffer = new ThreadLocal<ByteBuffer>() {
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+		}
+	};
+	
+	// Entry is what lookupFile gave for the path
+	public static boolean copyFile(ServerSession session, String filePath, FileIndex.Entry entry, long offset, ServerReply reply) {
+		// The client may be waiting on replies to commands it sent before this one
+		FTPServer.flushReplies(session);
+		
+		// Set up the socket to connect
+		ByteChannel fileChannel;
+		try {
+			fileChannel = openDataChannel(session);
+		} catch (IOException e) {
+			reply.setReplyByCode(425);
+			return false;
+		} finally {
+			// A passive port only serves one transfer
+			session.releaseDataPort();
+		}
+		
+		// Downloads are held to the rate limits
+		Bandwidth limits = FTPServer.bandwidth;
+		WritableByteChannel target = limits == null ? fileChannel : limits.open(session, fileChannel);
+		
+		long start = System.nanoTime();
+		long sent;
+		File file = FTPServer.fileStore.file(filePath);
+		try {
+			// Write to the socket
+			FileCache cache = FTPServer.fileCache;
+			ByteBuffer cached = file == null || cache == null || session.compressed ? null : cache.get(file, entry);
+			if (file == null) {
+				// The store has no disk and gives the whole file
+				sent = sendContents(session, FTPServer.fileStore.contents(filePath), offset, target, reply);
+			} else if (session.compressed) {
+				sent = sendDeflated(session, file, offset, target, reply);
+			} else if (cached != null) {
+				// Popular files come straight from memory
+				reply.setReplyByCode(150);
+				FTPServer.sendReply(reply, session);
+				FTPServer.flushReplies(session);
+				sent = sendBuffer(cached, offset, target);
+			} else {
+				FileInputStream in = new FileInputStream(file.getPath());
+				try {
+					reply.setReplyByCode(150);
+					FTPServer.sendReply(reply, session);
+					FTPServer.flushReplies(session);
+					ByteBuffer loaded = cache == null ? null : cache.load(file, entry, in.getChannel());
+					MappedFiles mappings = FTPServer.mappedFiles;
+					if (loaded != null) {
+						sent = sendBuffer(loaded, offset, target);
+					} else if (mappings != null && mappings.accepts(in.getChannel().size())) {
+						// Very large files share one mapping between transfers
+						MappedFiles.MappedFile mapped = mappings.acquire(file, in.getChannel());
+						try {
+							sent = mapped.send(offset, target);
+						} catch (IOException e) {
+							// Drop a mapping that outlived its file, it can't be sent again
+							if (mapped.truncated(file)) {
+								mappings.invalidate(mapped);
+							}
+							throw e;
+						} finally {
+							mappings.release(mapped);
+						}
+					} else {
+						sent = send(in, offset, target);
+					}
+				} finally {
+					in.close();
+				}
+			}
+			
+			// Successful
+			reply.setReplyByCode(250);
+			FTPServer.metrics.recordRetrieve(sent, System.nanoTime() - start);
+			
+		} catch (FileNotFoundException e) {
+			reply.setReplyByCode(550);
+			return false;
+		} catch (IOException e) {
+			// Still 150 means the transfer had begun. Then either the data
+			// connection failed or the file could no longer be read.
+			if (reply.getReplyCode() != 150) {
+				reply.setReplyByCode(451);
+			} else {
+				reply.setReplyByCode(file == null || intact(file, entry) ? 426 : 451);
+			}
+			return false;
+		} finally {
+			// Cleanup
+			try {
+				target.close();
+				fileChannel.close();
+			} catch (IOException e) {
+				
+			}
+		}
+		return true;
+	}
+	
+	// Whether the file is still all there and readable after a failed
+	// transfer, so the failure was on the data connection
+	public static boolean intact(File file, FileIndex.Entry entry) {
+		try {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				FileChannel channel = in.getChannel();
+				return channel.size() >= entry.size && (entry.size == 0 || channel.read(ByteBuffer.allocate(1), entry.size - 1) == 1);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	// A file from a store without a disk. MODE Z deflates it as it goes
+	// out, like a listing, since there is no sidecar to keep.
+	public static long sendContents(ServerSession session, ByteBuffer contents, long offset, WritableByteChannel target, ServerReply reply) throws IOException {
+		reply.setReplyByCode(150);
+		FTPServer.sendReply(reply, session);
+		FTPServer.flushReplies(session);
+		if (!session.compressed) {
+			return sendBuffer(contents, offset, target);
+		}
+		Deflater deflater = new Deflater(FTPServer.compressionLevel);
+		try {
+			DeflaterOutputStream deflated = new DeflaterOutputStream(Channels.newOutputStream(target), deflater, TRANSFER_BUFFER_SIZE);
+			sendBuffer(contents, offset, Channels.newChannel(deflated));
+			deflated.finish();
+			deflated.flush();
+			return deflater.getBytesWritten();
+		} finally {
+			deflater.end();
+		}
+	}
+	
+	/*
+	 * MODE Z. The offset counts bytes of the original file, and everything
+	 * after it is deflated block by block as it is sent. Whole files come
+	 * from their sidecar when one is cached, and otherwise leave one behind.
+	 */
+	public static long sendDeflated(ServerSession session, File file, long offset, WritableByteChannel target, ServerReply reply) throws IOException {
+		// Only whole files that fit in the cache are worth a sidecar
+		DeflatedFiles sidecars = FTPServer.deflatedFiles;
+		if (offset > 0 || sidecars == null || !sidecars.accepts(file.length())) {
+			sidecars = null;
+		}
+		FileInputStream deflated = sidecars == null ? null : sidecars.open(file);
+		if (deflated != null) {
+			try {
+				reply.setReplyByCode(150);
+				FTPServer.sendReply(reply, session);
+				FTPServer.flushReplies(session);
+				return sendFile(deflated.getChannel(), 0, target);
+			} finally {
+				deflated.close();
+			}
+		}
+		
+		FileInputStream in = new FileInputStream(file.getPath());
+		try {
+			reply.setReplyByCode(150);
+			FTPServer.sendReply(reply, session);
+			FTPServer.flushReplies(session);
+			DeflatedFiles.Sidecar sidecar = sidecars == null ? null : sidecars.create(file);
+			try {
+				long sent = deflate(in.getChannel(), offset, target, sidecar);
+				if (sidecar != null) {
+					sidecar.commit(file);
+				}
+				return sent;
+			} catch (IOException e) {
+				if (sidecar != null) {
+					sidecar.abandon();
+				}
+				throw e;
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	// Deflate a file from the given position into the channel, and into the sidecar if there is one
+	public static long deflate(FileChannel source, long position, WritableByteChannel target, DeflatedFiles.Sidecar sidecar) throws IOException {
+		byte[] input = new byte[TRANSFER_BUFFER_SIZE];
+		byte[] output = new byte[TRANSFER_BUFFER_SIZE];
+		ByteBuffer inputBuffer = ByteBuffer.wrap(input);
+		ByteBuffer outputBuffer = ByteBuffer.wrap(output);
+		Deflater deflater = new Deflater(FTPServer.compressionLevel);
+		long total = 0;
+		try {
+			while (!deflater.finished()) {
+				if (deflater.needsInput()) {
+					inputBuffer.clear();
+					int read = source.read(inputBuffer, position);
+					if (read < 0) {
+						deflater.finish();
+					} else {
+						deflater.setInput(input, 0, read);
+						position += read;
+					}
+				}
+				int count;
+				while ((count = deflater.deflate(output)) > 0) {
+					outputBuffer.clear();
+					outputBuffer.limit(count);
+					while (outputBuffer.hasRemaining()) {
+						target.write(outputBuffer);
+					}
+					if (sidecar != null) {
+						sidecar.write(output, 0, count);
+					}
+					total += count;
+				}
+			}
+		} finally {
+			deflater.end();
+		}
+		return total;
+	}
+	
+	/*
+	 * Send the listing of a directory, or the line for a single file. MLSD
+	 * only lists directories. In MODE Z the listing is deflated like a file.
+	 */
+	public static boolean sendListing(ServerSession session, String path, int format, ServerReply reply) {
+		// The client may be waiting on replies to commands it sent before this one
+		FTPServer.flushReplies(session);
+		
+		// Set up the socket to connect
+		ByteChannel fileChannel;
+		try {
+			fileChannel = openDataChannel(session);
+		} catch (IOException e) {
+			reply.setReplyByCode(425);
+			return false;
+		} finally {
+			// A passive port only serves one transfer
+			session.releaseDataPort();
+		}
+		
+		Deflater deflater = null;
+		try {
+			FileStore store = FTPServer.fileStore;
+			File file = store.file(path);
+			FileIndex.Entry entry = file == null ? store.stat(path) : null;
+			boolean listable = file != null
+					? file.isDirectory() ? file.canRead() : format != DirectoryListings.MLSD && file.isFile()
+					: entry.directory ? entry.exists() : format != DirectoryListings.MLSD && entry.isFile();
+			if (!listable) {
+				reply.setReplyByCode(550);
+				return false;
+			}
+			
+			reply.setReplyByCode(150);
+			FTPServer.sendReply(reply, session);
+			FTPServer.flushReplies(session);
+			WritableByteChannel target = fileChannel;
+			DeflaterOutputStream deflated = null;
+			if (session.compressed) {
+				deflater = new Deflater(FTPServer.compressionLevel);
+				deflated = new DeflaterOutputStream(Channels.newOutputStream(fileChannel), deflater, TRANSFER_BUFFER_SIZE);
+				target = Channels.newChannel(deflated);
+			}
+			
+			DirectoryListings listings = FTPServer.directoryListings;
+			if (file == null) {
+				DirectoryListings.write(store, path, entry, format, target);
+			} else if (!file.isDirectory()) {
+				DirectoryListings.writeFile(file, format, target);
+			} else if (listings != null) {
+				listings.send(file, format, target);
+			} else {
+				DirectoryListings.write(file, format, target, null, 0);
+			}
+			if (deflated != null) {
+				deflated.finish();
+				deflated.flush();
+			}
+			
+			// Successful
+			reply.setReplyByCode(250);
+		} catch (IOException e) {
+			reply.setReplyByCode(451);
+			return false;
+		} finally {
+			// Cleanup
+			if (deflater != null) {
+				deflater.end();
+			}
+			try {
+				fileChannel.close();
+			} catch (IOException e) {
+				
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * Receive an upload into a temporary file next to the target and rename
+	 * it over the target once the client closes the data connection, so a
+	 * dropped upload never shows up as a partial file. APPE and REST first
+	 * copy the part of the existing file that is kept. The temporary file is
+	 * extended up front when ALLO gave the size, and cut back to the bytes
+	 * that actually arrived.
+	 */
+	public static boolean storeFile(ServerSession session, String filePath, boolean append, long offset, long allocate, ServerReply reply) {
+		// The client may be waiting on replies to commands it sent before this one
+		FTPServer.flushReplies(session);
+		
+		// Set up the socket to connect
+		ByteChannel fileChannel;
+		try {
+			fileChannel = openDataChannel(session);
+		} catch (IOException e) {
+			reply.setReplyByCode(425);
+			return false;
+		} finally {
+			// A passive port only serves one transfer
+			session.releaseDataPort();
+		}
+		
+		File target = FTPServer.fileStore.upload(filePath);
+		File temporary = null;
+		try {
+			// Uploads only go to disk, under the served root
+			if (target == null) {
+				reply.setReplyByCode(553);
+				return false;
+			}
+			long start = append ? target.length() : offset;
+			if (start > 0 && (!target.isFile() || start > target.length())) {
+				reply.setReplyByCode(554);
+				return false;
+			}
+			File directory = target.getAbsoluteFile().getParentFile();
+			if (target.isDirectory() || directory == null || !directory.isDirectory()) {
+				reply.setReplyByCode(553);
+				return false;
+			}
+			try {
+				temporary = createUploadFile(directory, target.getName());
+			} catch (IOException e) {
+				reply.setReplyByCode(553);
+				return false;
+			}
+			
+			reply.setReplyByCode(150);
+			FTPServer.sendReply(reply, session);
+			FTPServer.flushReplies(session);
+			long started = System.nanoTime();
+			long end;
+			
+			RandomAccessFile out = new RandomAccessFile(temporary, "rw");
+			try {
+				FileChannel channel = out.getChannel();
+				if (allocate > start) {
+					out.setLength(allocate);
+				}
+				if (start > 0) {
+					FileInputStream in = new FileInputStream(target);
+					try {
+						in.getChannel().transferTo(0, start, channel);
+					} finally {
+						in.close();
+					}
+				}
+				
+				// A plain socket channel is read through its stream, so a stalled
+				// upload times out
+				ReadableByteChannel source = fileChannel instanceof SocketChannel
+						? TransferTuning.timedInput((SocketChannel) fileChannel) : fileChannel;
+				try {
+					end = session.compressed ? receiveInflated(source, channel, start) : receive(source, channel, start);
+				} catch (IOException e) {
+					reply.setReplyByCode(426);
+					return false;
+				}
+				out.setLength(end);
+				channel.force(true);
+			} finally {
+				out.close();
+			}
+			
+			// Readers of the old file keep it until they are done
+			try {
+				Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			temporary = null;
+			if (FTPServer.fileIndex != null) {
+				FTPServer.fileIndex.refresh(target);
+			}
+			
+			// Successful
+			reply.setReplyByCode(250);
+			FTPServer.metrics.recordStore(end - start, System.nanoTime() - started);
+		} catch (IOException e) {
+			reply.setReplyByCode(451);
+			return false;
+		} finally {
+			// Cleanup
+			if (temporary != null) {
+				temporary.delete();
+			}
+			try {
+				fileChannel.close();
+			} catch (IOException e) {
+				
+			}
+		}
+		return true;
+	}
+	
+	// New hidden file next to the target. Unlike createTempFile it gets the usual permissions.
+	public static File createUploadFile(File directory, String name) throws IOException {
+		while (true) {
+			File file = new File(directory, "." + name + "." + uploadCount.incrementAndGet() + ".upload");
+			if (file.createNewFile()) {
+				return file;
+			}
+		}
+	}
+	
+	// Write everything from the socket into the file at position. Returns the end position.
+	public static long receive(ReadableByteChannel source, FileChannel target, long position) throws IOException {
+		ByteBuffer buffer = receiveBuffer.get();
+		boolean endOfInput = false;
+		while (!endOfInput) {
+			// Fill the buffer so the disk sees large writes
+			buffer.clear();
+			while (buffer.hasRemaining()) {
+				if (source.read(buffer) < 0) {
+					endOfInput = true;
+					break;
+				}
+			}
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				position += target.write(buffer, position);
+			}
+		}
+		return position;
+	}
+	
+	// MODE Z upload, inflated on the way to the file. Returns the end position.
+	public static long receiveInflated(ReadableByteChannel source, FileChannel target, long position) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			InputStream in = new InflaterInputStream(Channels.newInputStream(source), inflater, TRANSFER_BUFFER_SIZE);
+			byte[] bytes = new byte[TRANSFER_BUFFER_SIZE];
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			int read;
+			while ((read = in.read(bytes)) != -1) {
+				buffer.clear();
+				buffer.limit(read);
+				while (buffer.hasRemaining()) {
+					position += target.write(buffer, position);
+				}
+			}
+		} finally {
+			inflater.end();
+		}
+		return position;
+	}
+	
+	// Connect to the PORT address, or wait for the client on the leased passive
+	// port. After PROT P the client starts a TLS handshake once it has the 150.
+	public static ByteChannel openDataChannel(ServerSession session) throws IOException {
+		SocketChannel channel;
+		if (session.passiveChannel == null) {
+			String[] hostAddress = session.hostAddress;
+			channel = TransferTuning.connectDataChannel(new InetSocketAddress(hostAddress[0], Integer.parseInt(hostAddress[1])));
+		} else {
+			channel = acceptDataChannel(session);
+		}
+		if (!session.protectData) {
+			return channel;
+		}
+		try {
+			return TlsChannel.open(FTPServer.tls, FTPServer.tls.serverEngine(), channel, true);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	public static SocketChannel acceptDataChannel(ServerSession session) throws IOException {
+		ServerSocket listener = session.passiveChannel.socket();
+		listener.setSoTimeout(PASSIVE_ACCEPT_TIMEOUT);
+		Socket socket = listener.accept();
+		
+		// Only the client on the control connection may use the port
+		if (session.remoteAddress != null && !session.remoteAddress.equals(socket.getInetAddress())) {
+			socket.close();
+			throw new IOException("Data connection from a different host");
+		}
+		TransferTuning.configureData(socket);
+		return socket.getChannel();
+	}
+	
+	// Copy everything after offset from the stream into the channel
+	public static long send(InputStream in, long offset, WritableByteChannel target) throws IOException {
+		if (in instanceof FileInputStream) {
+			return sendFile(((FileInputStream) in).getChannel(), offset, target);
+		}
+		
+		// Streams have to be read up to the offset
+		while (offset > 0) {
+			long skipped = in.skip(offset);
+			if (skipped <= 0) {
+				if (in.read() == -1) return 0;
+				skipped = 1;
+			}
+			offset -= skipped;
+		}
+		return sendStream(in, target);
+	}
+	
+	// Copy a file from the given position with transferTo, or through the cipher
+	public static long sendFile(FileChannel source, long position, WritableByteChannel target) throws IOException {
+		long start = position;
+		long size = source.size();
+		while (position < size) {
+			long sent = target instanceof ThrottledChannel
+					? ((ThrottledChannel) target).transferFrom(source, position, size - position)
+					: target instanceof TlsChannel
+					? ((TlsChannel) target).transferFrom(source, position, size - position)
+					: source.transferTo(position, size - position, target);
+			if (sent <= 0) {
+				// The file got shorter while we were sending it
+				size = source.size();
+				if (position >= size) break;
+				continue;
+			}
+			position += sent;
+		}
+		return position - start;
+	}
+	
+	// Write a buffer from the given offset without changing it
+	public static long sendBuffer(ByteBuffer contents, long offset, WritableByteChannel target) throws IOException {
+		ByteBuffer view = contents.duplicate();
+		view.position((int) Math.min(offset, view.limit()));
+		long total = view.remaining();
+		while (view.hasRemaining()) {
+			target.write(view);
+		}
+		return total;
+	}
+	
+	// Copy through a buffer, writing only the bytes that were read
+	public static long sendStream(InputStream in, WritableByteChannel target) throws IOException {
+		byte[] bytes = new byte[TRANSFER_BUFFER_SIZE];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		long total = 0;
+		int read;
+		while ((read = in.read(bytes)) != -1) {
+			buffer.clear();
+			buffer.limit(read);
+			while (buffer.hasRemaining()) {
+				target.write(buffer);
+			}
+			total += read;
+		}
+		return total;
+	}
+}
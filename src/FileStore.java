@@ -0,0 +1,38 @@
+/*
+ * Classes
+ * 	FileStore - Where the served files come from
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/*
+ * RETR, the listings, SIZE and MDTM look files up through the store
+ * instead of the working directory. Paths are as the client sent them.
+ *
+ * A store on disk hands out the File behind a path, so transfers keep the
+ * file cache, shared mappings, deflated sidecars and transferTo, and
+ * uploads and HASH work as before. A store without a disk has no File and
+ * gives whole files as buffers instead; it takes no uploads.
+ */
+abstract class FileStore {
+
+	// Attributes of the path, FileIndex.MISSING if there is nothing there
+	public abstract FileIndex.Entry stat(String path);
+
+	// The file on disk behind the path, or null if there isn't one the
+	// server may use
+	public abstract File file(String path);
+
+	// Where an upload to the path is written, or null if the store takes no
+	// upload there. Never outside the root.
+	public abstract File upload(String path);
+
+	// The contents of a file, read-only
+	public abstract ByteBuffer contents(String path) throws IOException;
+
+	// Names and attributes of the entries of a directory, by name
+	public abstract Map<String, FileIndex.Entry> list(String path) throws IOException;
+}
@@ -0,0 +1,121 @@
+/*
+ * Classes
+ * 	LocalFileStore - Files on disk under a directory, confined to it
+ */
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * A chroot over a directory: a leading "/" means the root, every path is
+ * normalized before it is used, and paths that climb out of the root
+ * don't exist, for reads and uploads alike. Links are followed as long as
+ * they stay under the root. The part of a path that exists is resolved
+ * to its real path, so a link that points out of the root, or a path
+ * through one, doesn't exist either.
+ */
+class LocalFileStore extends FileStore {
+	public final File root;
+	private final Path rootPath;
+	private final Path realRoot;	// The root with its own links resolved
+
+	public LocalFileStore(File root) {
+		this.root = root;
+		this.rootPath = root.toPath().toAbsolutePath().normalize();
+		Path real;
+		try {
+			real = rootPath.toRealPath();
+		} catch (IOException e) {
+			real = rootPath;	// Nothing can be served from a missing root anyway
+		}
+		this.realRoot = real;
+	}
+
+	// The path under the root, null if it climbs out
+	public File file(String path) {
+		int start = 0;
+		while (start < path.length() && path.charAt(start) == '/') {
+			start++;
+		}
+		try {
+			Path resolved = rootPath.resolve(path.substring(start)).normalize();
+			return resolved.startsWith(rootPath) && confined(resolved) ? resolved.toFile() : null;
+		} catch (InvalidPathException e) {
+			return null;
+		}
+	}
+
+	// Whether the longest existing prefix of the path really is under the
+	// root. Uploads name a file that doesn't exist yet, so that is its
+	// directory. A broken link is refused, since a write would follow it.
+	private boolean confined(Path path) {
+		for (Path existing = path; existing != null; existing = existing.getParent()) {
+			try {
+				return existing.toRealPath().startsWith(realRoot);
+			} catch (NoSuchFileException e) {
+				if (Files.exists(existing, LinkOption.NOFOLLOW_LINKS)) {
+					return false;
+				}
+			} catch (IOException e) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	public File upload(String path) {
+		return file(path);
+	}
+
+	public FileIndex.Entry stat(String path) {
+		File file = file(path);
+		if (file == null || !file.exists()) {
+			return FileIndex.MISSING;
+		}
+		return new FileIndex.Entry(file.length(), file.lastModified(), file.isDirectory());
+	}
+
+	public ByteBuffer contents(String path) throws IOException {
+		File file = file(path);
+		if (file == null || !file.isFile()) {
+			throw new FileNotFoundException(path);
+		}
+		return ByteBuffer.wrap(Files.readAllBytes(file.toPath())).asReadOnlyBuffer();
+	}
+
+	public Map<String, FileIndex.Entry> list(String path) throws IOException {
+		File directory = file(path);
+		String[] names = directory == null ? null : directory.list();
+		if (names == null) {
+			throw new FileNotFoundException(path);
+		}
+		Map<String, FileIndex.Entry> entries = new TreeMap<String, FileIndex.Entry>();
+		for (String name : names) {
+			Path file = directory.toPath().resolve(name);
+			try {
+				// Only links cost more than the one lstat, and those that
+				// leave the root are not listed
+				BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				if (attributes.isSymbolicLink()) {
+					if (!confined(file)) continue;
+					attributes = Files.readAttributes(file, BasicFileAttributes.class);
+				}
+				entries.put(name, new FileIndex.Entry(attributes.size(), attributes.lastModifiedTime().toMillis(),
+						attributes.isDirectory()));
+			} catch (IOException e) {
+				// Gone since the directory was read
+			}
+		}
+		return entries;
+	}
+}
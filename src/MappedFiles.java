@@ -0,0 +1,147 @@
+/*
+ * Classes
+ * 	MappedFiles - Shared memory mappings of large files being served
+ * 	MappedFile - One mapping, split into regions and reference counted
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Registry of mapped files. Concurrent RETRs of the same large file share
+ * one mapping instead of each reading through the page cache into the
+ * heap. The mapping leaves the registry when the last transfer releases
+ * it, or as soon as the file changes on disk.
+ */
+class MappedFiles {
+	public static final long REGION_SIZE = 1L << 30;	// A MappedByteBuffer can't pass 2 GB
+	public static final int WRITE_CHUNK = 8 * 1024 * 1024;	// Bytes handed to each channel write
+
+	public final long threshold;	// Files at least this big are mapped
+	private final Map<String, MappedFile> mapped = new HashMap<String, MappedFile>();
+
+	public MappedFiles(long threshold) {
+		this.threshold = threshold;
+	}
+
+	public boolean accepts(long length) {
+		return length >= threshold;
+	}
+
+	// Get the shared mapping of the file, mapping it if needed. Every
+	// acquire must be matched by a release.
+	public MappedFile acquire(File file, FileChannel channel) throws IOException {
+		String key = file.getPath();
+		long length = channel.size();
+		long modified = file.lastModified();
+		synchronized (this) {
+			MappedFile current = mapped.get(key);
+			if (current != null && current.length == length && current.modified == modified) {
+				current.references++;
+				return current;
+			}
+		}
+
+		// Map outside the lock, then check nobody beat us to it
+		MappedFile created = new MappedFile(key, channel, length, modified);
+		synchronized (this) {
+			MappedFile current = mapped.get(key);
+			if (current != null && current.length == length && current.modified == modified) {
+				current.references++;
+				return current;
+			}
+			if (current != null) {
+				current.stale = true;	// Still used by its readers, but not handed out again
+			}
+			mapped.put(key, created);
+			created.references++;
+			return created;
+		}
+	}
+
+	public synchronized void release(MappedFile file) {
+		file.references--;
+		if (file.references == 0) {
+			// The memory is unmapped once the buffers are garbage collected
+			if (!file.stale) {
+				mapped.remove(file.key);
+			}
+		}
+	}
+
+	// Stop handing out a mapping whose file was cut short under it. Its
+	// readers keep it until they release it.
+	public synchronized void invalidate(MappedFile file) {
+		if (mapped.get(file.key) == file) {
+			mapped.remove(file.key);
+		}
+		file.stale = true;
+	}
+
+	public synchronized int count() {
+		return mapped.size();
+	}
+
+	/*
+	 * Read-only mapping of a whole file
+	 */
+	static class MappedFile {
+		final String key;
+		final long length;
+		final long modified;
+		final MappedByteBuffer[] regions;
+		int references = 0;
+		boolean stale = false;
+
+		MappedFile(String key, FileChannel channel, long length, long modified) throws IOException {
+			this.key = key;
+			this.length = length;
+			this.modified = modified;
+
+			int count = (int) ((length + REGION_SIZE - 1) / REGION_SIZE);
+			regions = new MappedByteBuffer[count];
+			for (int i = 0; i < count; i++) {
+				long position = i * REGION_SIZE;
+				regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REGION_SIZE, length - position));
+			}
+		}
+
+		// Write everything after offset to the channel in large chunks
+		long send(long offset, WritableByteChannel target) throws IOException {
+			offset = Math.min(offset, length);
+			long total = 0;
+			try {
+				for (int i = (int) (offset / REGION_SIZE); i < regions.length; i++) {
+					ByteBuffer view = regions[i].duplicate();
+					if (i == offset / REGION_SIZE) {
+						view.position((int) (offset % REGION_SIZE));
+					}
+					while (view.hasRemaining()) {
+						int end = view.limit();
+						view.limit(Math.min(end, view.position() + WRITE_CHUNK));
+						while (view.hasRemaining()) {
+							total += target.write(view);
+						}
+						view.limit(end);
+					}
+				}
+			} catch (InternalError e) {
+				// Java code touched a page past the end of a truncated file (SIGBUS)
+				throw new IOException("Mapped file truncated", e);
+			}
+			return total;
+		}
+
+		// Whether the file is now shorter than the mapping. Writes from the
+		// missing part fail, in the kernel or with SIGBUS.
+		boolean truncated(File file) {
+			return file.length() < length;
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Classes
+ * 	MemoryFileStore - A tree of files held in memory
+ */
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Every file is a direct buffer, so serving one never touches the disk
+ * and the socket writes straight from it, without the copy a heap buffer
+ * takes on every write. A transfer costs only the network and the
+ * protocol. Paths are confined like a chroot. Files are replaced whole
+ * and never changed in place, so readers share them without locks.
+ */
+class MemoryFileStore extends FileStore {
+	public final AtomicLong size = new AtomicLong();	// Bytes held in files
+	private final Node root = new Node(null, System.currentTimeMillis());
+
+	// Copy the tree under a directory into memory
+	public static MemoryFileStore load(File directory) throws IOException {
+		final MemoryFileStore store = new MemoryFileStore();
+		final Path base = directory.toPath().toAbsolutePath().normalize();
+		Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+				if (!dir.equals(base)) {
+					store.mkdirs(name(base, dir), attributes.lastModifiedTime().toMillis());
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+				if (attributes.isRegularFile()) {
+					store.put(name(base, file), Files.readAllBytes(file), attributes.lastModifiedTime().toMillis());
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				return FileVisitResult.CONTINUE;	// Unreadable, leave it out
+			}
+		});
+		return store;
+	}
+
+	private static String name(Path base, Path path) {
+		return base.relativize(path).toString().replace(File.separatorChar, '/');
+	}
+
+	// Add or replace a file, creating the directories above it
+	public void put(String path, byte[] contents, long modified) {
+		String[] names = split(path);
+		if (names == null || names.length == 0) {
+			throw new IllegalArgumentException("Bad path " + path);
+		}
+		Node directory = directory(names, names.length - 1, modified);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(contents.length);
+		buffer.put(contents);
+		buffer.flip();
+		Node old = directory.children.put(names[names.length - 1], new Node(buffer.asReadOnlyBuffer(), modified));
+		size.addAndGet(contents.length - (old == null || old.contents == null ? 0 : old.contents.limit()));
+	}
+
+	public void mkdirs(String path, long modified) {
+		String[] names = split(path);
+		if (names == null) {
+			throw new IllegalArgumentException("Bad path " + path);
+		}
+		directory(names, names.length, modified);
+	}
+
+	// The directory made of the first count names, created where missing
+	private Node directory(String[] names, int count, long modified) {
+		Node node = root;
+		for (int i = 0; i < count; i++) {
+			Node child = node.children.get(names[i]);
+			if (child == null) {
+				Node created = new Node(null, modified);
+				child = node.children.putIfAbsent(names[i], created);
+				if (child == null) child = created;
+			}
+			if (child.children == null) {
+				throw new IllegalArgumentException(names[i] + " is a file");
+			}
+			node = child;
+		}
+		return node;
+	}
+
+	public FileIndex.Entry stat(String path) {
+		Node node = find(path);
+		if (node == null) {
+			return FileIndex.MISSING;
+		}
+		return new FileIndex.Entry(node.contents == null ? 0 : node.contents.limit(), node.modified, node.contents == null);
+	}
+
+	public File file(String path) {
+		return null;
+	}
+
+	public File upload(String path) {
+		return null;
+	}
+
+	public ByteBuffer contents(String path) throws IOException {
+		Node node = find(path);
+		if (node == null || node.contents == null) {
+			throw new FileNotFoundException(path);
+		}
+		return node.contents.duplicate();
+	}
+
+	public Map<String, FileIndex.Entry> list(String path) throws IOException {
+		Node directory = find(path);
+		if (directory == null || directory.children == null) {
+			throw new FileNotFoundException(path);
+		}
+		Map<String, FileIndex.Entry> entries = new TreeMap<String, FileIndex.Entry>();
+		for (Map.Entry<String, Node> child : directory.children.entrySet()) {
+			Node node = child.getValue();
+			entries.put(child.getKey(), new FileIndex.Entry(node.contents == null ? 0 : node.contents.limit(),
+					node.modified, node.contents == null));
+		}
+		return entries;
+	}
+
+	private Node find(String path) {
+		String[] names = split(path);
+		if (names == null) return null;
+		Node node = root;
+		for (String name : names) {
+			if (node.children == null) return null;
+			node = node.children.get(name);
+			if (node == null) return null;
+		}
+		return node;
+	}
+
+	// The names along a path, without "." and empty ones. Null if ".." would
+	// leave the root.
+	private static String[] split(String path) {
+		String[] parts = path.split("/");
+		int count = 0;
+		for (String part : parts) {
+			if (part.isEmpty() || part.equals(".")) continue;
+			if (part.equals("..")) {
+				if (count == 0) return null;
+				count--;
+			} else {
+				parts[count++] = part;
+			}
+		}
+		String[] names = new String[count];
+		System.arraycopy(parts, 0, names, 0, count);
+		return names;
+	}
+
+	/*
+	 * A file when contents is set, a directory otherwise
+	 */
+	private static class Node {
+		final ByteBuffer contents;	// Read-only, readers take a duplicate()
+		final long modified;
+		final ConcurrentSkipListMap<String, Node> children;
+
+		Node(ByteBuffer contents, long modified) {
+			this.contents = contents;
+			this.modified = modified;
+			this.children = contents == null ? new ConcurrentSkipListMap<String, Node>() : null;
+		}
+	}
+}
@@ -0,0 +1,365 @@
+/*
+ * Classes
+ * 	NioServerEngine - Selector loop that serves every control connection
+ * 	ChannelSession - Session state and buffers for a non-blocking connection
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+import javax.net.ssl.SSLEngine;
+
+/*
+ * Non-blocking server engine. One thread reads every control connection,
+ * splits the input into command lines and runs the regular FTPServer
+ * handlers. Only commands that touch a data connection are handed to the
+ * worker pool, so an idle session costs a key and a small object.
+ */
+class NioServerEngine implements Runnable {
+	public static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private final ServerSocketChannel serverChannel;
+	private final ExecutorService workers;
+	private final Selector selector;
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);	// Shared by all sessions
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private Thread selectorThread;
+
+	public NioServerEngine(ServerSocketChannel serverChannel, ExecutorService workers) throws IOException {
+		this.serverChannel = serverChannel;
+		this.workers = workers;
+		this.selector = Selector.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	public void run() {
+		selectorThread = Thread.currentThread();
+		while (selector.isOpen()) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				return;
+			}
+			runTasks();
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid()) continue;
+
+				if (key.isAcceptable()) {
+					accept();
+					continue;
+				}
+				ChannelSession session = (ChannelSession) key.attachment();
+				try {
+					if (key.isWritable()) {
+						session.drain();
+					}
+					if (key.isValid() && key.isReadable()) {
+						read(session);
+					}
+					update(session);
+				} catch (IOException e) {
+					close(session);
+				}
+			}
+		}
+	}
+
+	// Run a task on the selector thread
+	public void execute(Runnable task) {
+		if (Thread.currentThread() == selectorThread) {
+			task.run();
+		} else {
+			tasks.add(task);
+			selector.wakeup();
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	private void accept() {
+		SocketChannel channel;
+		try {
+			channel = serverChannel.accept();
+			if (channel == null) return;
+			channel.configureBlocking(false);
+			TransferTuning.configureControl(channel.socket());
+		} catch (IOException e) {
+			return;
+		}
+		if (!FTPServer.admitSession(channel)) return;
+
+		ChannelSession session = new ChannelSession(this, channel);
+		session.admitted = true;
+		try {
+			session.key = channel.register(selector, SelectionKey.OP_READ, session);
+			session.reply.setReplyByCode(220);
+			FTPServer.sendReply(session.reply, session);
+			session.flush();
+			update(session);
+		} catch (IOException e) {
+			close(session);
+		}
+	}
+
+	private void read(ChannelSession session) throws IOException {
+		int read;
+		do {
+			readBuffer.clear();
+			read = session.tls != null ? session.tls.read(readBuffer) : session.channel.read(readBuffer);
+			if (read < 0) {
+				session.endOfInput = true;
+			}
+			readBuffer.flip();
+
+			// Continue a partial line from an earlier read
+			ByteBuffer input = readBuffer;
+			if (session.pendingInput != null) {
+				session.pendingInput = append(session.pendingInput, readBuffer);
+				input = session.pendingInput;
+			}
+			processInput(session, input);
+
+			// Records already off the socket won't wake the selector again
+		} while (read > 0 && session.hasBufferedInput() && !session.busy && !session.closing);
+	}
+
+	// Run every complete command in the input, stopping early for transfers
+	private void processInput(final ChannelSession session, ByteBuffer input) {
+		final CommandLine command = session.command;
+		while (!session.busy && !session.closing) {
+			if (!command.read(input, session.endOfInput)) break;
+
+			if (FTPServer.isTransferCommand(command)) {
+				// Data connections block, so pause reading until the worker is done
+				session.busy = true;
+				session.queuedSince = System.nanoTime();
+				workers.execute(new Runnable() {
+					public void run() {
+						final boolean open = FTPServer.handleCommand(session, command, session.reply);
+						execute(new Runnable() {
+							public void run() {
+								session.busy = false;
+								session.closing |= !open;
+								resume(session);
+							}
+						});
+					}
+				});
+			} else if (!FTPServer.handleCommand(session, command, session.reply)) {
+				session.closing = true;
+			} else if (session.startedTls) {
+				// A client that didn't wait for the 234 can't slip commands in unencrypted
+				session.startedTls = false;
+				input.position(input.limit());
+			}
+		}
+
+		// Keep whatever is left for the next read
+		if (!input.hasRemaining()) {
+			session.pendingInput = null;
+		} else if (input.remaining() >= CommandLine.MAX_LENGTH) {
+			session.pendingInput = null;
+			session.reply.setReplyByCode(500);
+			FTPServer.sendReply(session.reply, session);
+		} else if (input != session.pendingInput) {
+			session.pendingInput = append(null, input);
+		}
+		if (session.endOfInput && !session.busy) {
+			session.closing = true;
+		}
+
+		// Replies to everything handled above go out in one write
+		if (!FTPServer.flushReplies(session)) {
+			session.closing = true;
+		}
+	}
+
+	private void resume(ChannelSession session) {
+		if (!session.channel.isOpen()) return;
+		if (session.pendingInput != null) {
+			processInput(session, session.pendingInput);
+		} else if (!FTPServer.flushReplies(session)) {
+			session.closing = true;
+		}
+		if (session.hasBufferedInput() && !session.busy && !session.closing) {
+			try {
+				read(session);
+			} catch (IOException e) {
+				close(session);
+				return;
+			}
+		}
+		update(session);
+	}
+
+	// Refresh the interest set, and close once a quitting session has drained
+	public void update(ChannelSession session) {
+		if (!session.key.isValid()) return;
+		boolean writing = session.hasOutput();
+		if (session.closing && !session.busy && !writing) {
+			close(session);
+			return;
+		}
+		int ops = 0;
+		if (!session.busy && !session.closing) ops |= SelectionKey.OP_READ;
+		if (writing) ops |= SelectionKey.OP_WRITE;
+		session.key.interestOps(ops);
+	}
+
+	private void close(ChannelSession session) {
+		// A running transfer gives its port back itself
+		if (!session.busy) {
+			session.close();
+		}
+		session.end();
+		if (session.key != null) {
+			session.key.cancel();
+		}
+		try {
+			if (session.tls != null) {
+				session.tls.close();
+			}
+			session.channel.close();
+		} catch (IOException e) {
+
+		}
+	}
+
+	// Copy the remaining bytes of source after the remaining bytes of target
+	private static ByteBuffer append(ByteBuffer target, ByteBuffer source) {
+		int size = (target == null ? 0 : target.remaining()) + source.remaining();
+		ByteBuffer result = ByteBuffer.allocate(size);
+		if (target != null) result.put(target);
+		result.put(source);
+		result.flip();
+		return result;
+	}
+
+	/*
+	 * Per-connection state. Replies that can't be written right away are
+	 * queued and sent when the channel becomes writable again. After AUTH TLS
+	 * reads go through the TlsChannel at once, and writes once the 234 and
+	 * anything queued before it have gone out in the clear.
+	 */
+	static class ChannelSession extends ServerSession {
+		final NioServerEngine engine;
+		final SocketChannel channel;
+		SelectionKey key;
+
+		final CommandLine command = new CommandLine();
+		ByteBuffer pendingInput;	// Unprocessed input, null while idle
+		boolean endOfInput = false;
+		boolean busy = false;	// A worker is running a transfer command
+		boolean closing = false;
+		TlsChannel tls;	// After AUTH TLS
+		boolean startedTls = false;	// Input read in the clear is dropped after AUTH TLS
+		private ByteChannel io;	// Replies are written to this
+
+		private ByteBuffer replies;	// Replies waiting for flush, allocated on first use
+		private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();	// Bytes the channel didn't take yet
+
+		ChannelSession(NioServerEngine engine, SocketChannel channel) {
+			this.engine = engine;
+			this.channel = channel;
+			this.io = channel;
+			this.localAddress = channel.socket().getLocalAddress();
+			this.remoteAddress = channel.socket().getInetAddress();
+		}
+
+		public void write(byte[] bytes, int offset, int length) {
+			synchronized (outbound) {
+				if (replies == null) {
+					replies = ByteBuffer.allocate(Math.max(REPLY_BUFFER_SIZE, length));
+				} else if (replies.remaining() < length) {
+					ByteBuffer grown = ByteBuffer.allocate(Math.max(replies.capacity() * 2, replies.position() + length));
+					replies.flip();
+					grown.put(replies);
+					replies = grown;
+				}
+				replies.put(bytes, offset, length);
+			}
+		}
+
+		// Write the buffered replies, keeping whatever the channel can't take
+		public void flush() throws IOException {
+			synchronized (outbound) {
+				if (replies == null || replies.position() == 0) return;
+				replies.flip();
+				if (outbound.isEmpty()) {
+					io.write(replies);
+				}
+				if (replies.hasRemaining()) {
+					ByteBuffer rest = ByteBuffer.allocate(replies.remaining());
+					rest.put(replies);
+					rest.flip();
+					outbound.add(rest);
+				}
+				replies.clear();
+				if (!hasOutput()) return;
+			}
+
+			// Wait for the channel to become writable
+			engine.execute(new Runnable() {
+				public void run() {
+					engine.update(ChannelSession.this);
+				}
+			});
+		}
+
+		// The channel is writable again
+		void drain() throws IOException {
+			synchronized (outbound) {
+				if (tls != null && io == tls && !tls.flush()) return;
+				while (!outbound.isEmpty()) {
+					ByteBuffer bytes = outbound.peek();
+					io.write(bytes);
+					if (bytes.hasRemaining()) return;
+					outbound.poll();
+				}
+				if (tls != null && io != tls) {
+					io = tls;
+					tls.flush();
+				}
+			}
+		}
+
+		boolean hasOutput() {
+			synchronized (outbound) {
+				return !outbound.isEmpty() || tls != null && tls.hasPendingOutput();
+			}
+		}
+
+		boolean hasBufferedInput() {
+			return tls != null && tls.hasBufferedInput();
+		}
+
+		public void startTls(SSLEngine engine) throws IOException {
+			synchronized (outbound) {
+				tls = TlsChannel.open(FTPServer.tls, engine, channel, false);
+				startedTls = true;
+				if (outbound.isEmpty()) {
+					io = tls;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Classes
+ * 	ParseResponse - Parse a server reply into its code and text
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Help process the server response
+ */
+class ParseResponse {
+	// Extract the reply code, which must be in the range 100-599
+	public static boolean parseReplyCode(String reply, String[] splitted, ServerResponse msg) {
+		// No spaces after code
+		if (splitted.length < 3) {
+			msg.setReplyByCode(10);
+			return false;
+		}
+		if (reply.indexOf(" ") < 0) {
+			msg.setReplyByCode(10);
+			return false;
+		}
+		String replyCode = reply.substring(0, reply.indexOf(" "));
+		try {
+			int code = Integer.parseInt(replyCode);
+			if (code < 100 || code >= 600) {
+				msg.setReplyByCode(10);
+				return false;
+			}
+			msg.setReplyCode(replyCode);
+		} catch (Exception e) {
+			msg.setReplyByCode(10);
+			return false;
+		}
+		return true;
+	}
+
+	// Extract the reply text
+	public static boolean parseReplyText(String reply, String[] splitted, ServerResponse msg) {
+		String replyText = buildParameter(splitted);
+
+		// Check if the parameter can be built
+		if (replyText.equals(" ")) {
+			msg.setReplyByCode(11);
+			return false;
+		}
+
+		// Check that there is only one space between the code and text
+		if (!splitted[2].equals(" ")) {
+			msg.setReplyByCode(11);
+			return false;
+		}
+
+		// Check if it only contains ASCII characters
+		if (!FTPClient.checkAscii(replyText)) {
+			msg.setReplyByCode(11);
+			return false;
+		}
+
+		// Strip out line endings
+		if (replyText.charAt(replyText.length() - 1) == '\n') {
+			replyText = replyText.substring(0, replyText.length() - 1);
+		}
+		if (replyText.charAt(replyText.length() - 1) == '\r') {
+			replyText = replyText.substring(0, replyText.length() - 1);
+		}
+
+		msg.setReplyText(replyText);
+
+		return true;
+	}
+
+	// Build the parameter since it is split on spaces, but the parameter may contain spaces
+	public static String buildParameter(String[] splitted) {
+		String result = "";
+		try {
+			for (int i = 2; i < splitted.length - 1; i++) {
+				result += splitted[i];
+			}
+		} catch (Exception e) {
+			result = "";
+		}
+		return result;
+	}
+
+	// Split a request by spaces
+	public static String[] splitRequest(String request) {
+		List<String> splitter = new ArrayList<String>();
+		boolean space = true;
+		splitter.add(" ");
+
+		// Iterate over string
+		for (int i = 0; i < request.length(); i++) {
+			String last = request.substring(i, i+1);
+			splitter.get(splitter.size() - 1);
+
+			// Continue a space chain or continue a character chain,
+			// otherwise make it a new element in the array
+			if (last.matches(" +") && space) {
+				space = true;
+				splitter.set(splitter.size() - 1, splitter.get(splitter.size() - 1) + last);
+			} else if (last.matches(" +") && !space) {
+				space = true;
+				splitter.add(last);
+			} else if (!last.matches(" +") && !space) {
+				space = false;
+				splitter.set(splitter.size() - 1, splitter.get(splitter.size() - 1) + last);
+			} else {
+				space = false;
+				splitter.add(last);
+			}
+		}
+		if (!splitter.get(splitter.size() - 1).contains(" ")) {
+			String last = splitter.get(splitter.size() - 1);
+			int index = last.indexOf("\r");
+			if (index < 0) {
+				index = last.indexOf("\n");
+			}
+			String a = last.substring(0, index);
+			String b = last.substring(index, last.length());
+			splitter.set(splitter.size() - 1, a);
+			splitter.add(b);
+		}
+		String[] splitted = splitter.toArray(new String[splitter.size()]);
+		return splitted;
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * Classes
+ * 	SegmentedDownload - Fetch one file as byte ranges over parallel connections
+ * 	Segment - One range, with its own control and data connection
+ */
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * A single TCP stream is limited to one window per round trip, so a long
+ * fat pipe is filled by splitting the file into ranges and fetching each
+ * one on a connection of its own. Every segment logs in, asks for a
+ * passive port and sends REST and RETR in a single write, then reads its
+ * range straight into the right region of the file with positional
+ * writes. A segment hangs up once its range is in; the server only sees
+ * the data connection close early. When the main connection has TLS every
+ * segment does AUTH TLS first, resuming the same session.
+ */
+class SegmentedDownload {
+	public static final long MIN_SEGMENT_SIZE = 1024 * 1024;	// Smaller ranges aren't worth a connection
+	public static final int SEGMENT_BUFFER_SIZE = 256 * 1024;
+
+	private static final Pattern PASSIVE_ADDRESS = Pattern.compile("\\((\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)\\)");
+
+	// Whether splitting a file of this size into the given segments pays off
+	public static boolean worthSplitting(long size, int segments) {
+		return segments > 1 && size >= 2 * MIN_SEGMENT_SIZE;
+	}
+
+	// Size from a "213 size" reply, or -1
+	public static long parseSize(String response) {
+		if (!response.startsWith("213 ")) return -1;
+		int end = 4;
+		while (end < response.length() && Character.isDigit(response.charAt(end))) {
+			end++;
+		}
+		try {
+			return Long.parseLong(response.substring(4, end));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	// Download size bytes of the remote path into the target file using up to segments connections
+	public static void download(String host, int port, String path, long size, int segments, File target) throws IOException {
+		segments = (int) Math.max(1, Math.min(segments, size / MIN_SEGMENT_SIZE));
+		RandomAccessFile file = new RandomAccessFile(target, "rw");
+		ExecutorService pool = Executors.newFixedThreadPool(segments);
+		try {
+			file.setLength(size);
+			FileChannel channel = file.getChannel();
+
+			// Spread the remainder over the first segments
+			List<Future<Long>> results = new ArrayList<Future<Long>>();
+			long start = 0;
+			for (int i = 0; i < segments; i++) {
+				long length = size / segments + (i < size % segments ? 1 : 0);
+				results.add(pool.submit(new Segment(host, port, path, start, length, channel)));
+				start += length;
+			}
+
+			for (Future<Long> result : results) {
+				try {
+					result.get();
+				} catch (ExecutionException e) {
+					throw e.getCause() instanceof IOException
+							? (IOException) e.getCause() : new IOException(e.getCause());
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			file.close();
+		}
+	}
+
+	/*
+	 * Fetches bytes [start, start + length) of the file
+	 */
+	static class Segment implements Callable<Long> {
+		final String host;
+		final int port;
+		final String path;
+		final long start;
+		final long length;
+		final FileChannel target;
+
+		Segment(String host, int port, String path, long start, long length, FileChannel target) {
+			this.host = host;
+			this.port = port;
+			this.path = path;
+			this.start = start;
+			this.length = length;
+			this.target = target;
+		}
+
+		public Long call() throws IOException {
+			Socket control = TransferTuning.connectControl(host, port);
+			TlsChannel tls = null;
+			ByteChannel data = null;
+			ReadableByteChannel source;
+			try {
+				// Unlike the interactive control connection, a segment has no
+				// reason to wait on the server for long
+				control.setSoTimeout(TransferTuning.readTimeout);
+				InputStream in = new BufferedInputStream(control.getInputStream());
+				OutputStream out = control.getOutputStream();
+				expect(in, 220);
+				TlsContext context = FTPClient.dataProtected ? FTPClient.tlsContext : null;
+				String requests = "";
+				if (context != null) {
+					out.write(FTPCommands.AUTH.getBytes(StandardCharsets.US_ASCII));
+					out.flush();
+					expect(in, 234);
+					tls = TlsChannel.open(context, context.clientEngine(host, port), control, false);
+					tls.handshake();
+					in = new BufferedInputStream(Channels.newInputStream(tls));
+					out = Channels.newOutputStream(tls);
+					requests = FTPCommands.PBSZ + FTPCommands.PROT;
+				}
+
+				// The server answers up to the 227 before it waits for the data connection
+				requests += FTPCommands.USER + FTPCommands.PASS + FTPCommands.TYPE + FTPCommands.PASV
+						+ FTPCommands.REST.replace("%s", Long.toString(start))
+						+ FTPCommands.RETR.replace("%s", path);
+				out.write(requests.getBytes(StandardCharsets.US_ASCII));
+				out.flush();
+				if (context != null) {
+					expect(in, 200);
+					expect(in, 200);
+				}
+				expect(in, 331);
+				expect(in, 230);
+				expect(in, 200);
+				Matcher address = PASSIVE_ADDRESS.matcher(expect(in, 227));
+				if (!address.find()) {
+					throw new IOException("Bad passive address");
+				}
+				String dataHost = address.group(1) + "." + address.group(2) + "." + address.group(3) + "." + address.group(4);
+				int dataPort = Integer.parseInt(address.group(5)) * 256 + Integer.parseInt(address.group(6));
+				data = TransferTuning.connectDataChannel(new InetSocketAddress(dataHost, dataPort));
+				if (context != null) {
+					data = TlsChannel.open(context, context.clientEngine(host, port), (SocketChannel) data, true);
+					source = data;
+				} else {
+					source = TransferTuning.timedInput((SocketChannel) data);
+				}
+				expect(in, 350);
+				expect(in, 150);
+
+				// Read the range into its place in the file
+				ByteBuffer buffer = ByteBuffer.allocateDirect(SEGMENT_BUFFER_SIZE);
+				long position = start;
+				long end = start + length;
+				while (position < end) {
+					buffer.clear();
+					buffer.limit((int) Math.min(buffer.capacity(), end - position));
+					if (source.read(buffer) < 0) {
+						throw new IOException("Segment ended at " + position + " of " + end);
+					}
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						position += target.write(buffer, position);
+					}
+				}
+				return length;
+			} finally {
+				if (data != null) {
+					data.close();
+				}
+				if (tls != null) {
+					tls.close();
+				}
+				control.close();
+			}
+		}
+
+		// Read one reply line and check its code
+		private static String expect(InputStream in, int code) throws IOException {
+			StringBuilder line = new StringBuilder();
+			int c;
+			while ((c = in.read()) != -1) {
+				line.append((char) c);
+				if (c == '\n') break;
+			}
+			String reply = line.toString();
+			if (!reply.startsWith(code + " ")) {
+				throw new IOException("Expected " + code + " but got " + reply.trim());
+			}
+			return reply;
+		}
+	}
+}
@@ -0,0 +1,321 @@
+/*
+ * Classes
+ * 	ServerMetrics - Striped counters and histograms for commands, transfers and sessions
+ * 	Histogram - Power-of-two bucket histogram built on LongAdder
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Counters for everything the server does. Every recorder only touches
+ * LongAdders, which spread contended updates over cells, so sessions on
+ * different threads don't fight over a cache line. Reading adds the cells
+ * up, which is slower but only done for STAT, JMX and snapshots.
+ */
+class ServerMetrics implements ServerMetricsMBean {
+	public static final int MAX_VERBS = 64;	// Past this, unknown verbs share one entry
+	public static final String OTHER = "OTHER";
+
+	private final ConcurrentHashMap<Integer, Histogram> commands = new ConcurrentHashMap<Integer, Histogram>();
+	private final Histogram otherCommands = new Histogram();
+	private final LongAdder[] replies = new LongAdder[600];
+
+	private final LongAdder sessions = new LongAdder();
+	private final LongAdder activeSessions = new LongAdder();
+	private final LongAdder transferFailures = new LongAdder();	// RETR and STOR ending in 426 or 451
+	private final LongAdder rangesClosed = new LongAdder();	// Restarted RETRs the client closed early
+
+	private final Histogram retrBytes = new Histogram();	// Bytes per RETR
+	private final Histogram retrNanos = new Histogram();	// Duration of each RETR on the data connection
+	private final Histogram storBytes = new Histogram();
+	private final Histogram storNanos = new Histogram();
+
+	public ServerMetrics() {
+		for (int i = 0; i < replies.length; i++) {
+			replies[i] = new LongAdder();
+		}
+	}
+
+	// A command was handled in nanos and answered with code
+	public void recordCommand(int verb, long nanos, int code) {
+		Histogram histogram = commands.get(verb);
+		if (histogram == null) {
+			if (verb == 0 || commands.size() >= MAX_VERBS) {
+				histogram = otherCommands;
+			} else {
+				Histogram created = new Histogram();
+				histogram = commands.putIfAbsent(verb, created);
+				if (histogram == null) histogram = created;
+			}
+		}
+		histogram.record(nanos);
+		if (code >= 0 && code < replies.length) {
+			replies[code].increment();
+		}
+	}
+
+	public void recordRetrieve(long bytes, long nanos) {
+		retrBytes.record(bytes);
+		retrNanos.record(nanos);
+	}
+
+	public void recordStore(long bytes, long nanos) {
+		storBytes.record(bytes);
+		storNanos.record(nanos);
+	}
+
+	public void recordTransferFailure() {
+		transferFailures.increment();
+	}
+
+	// A RETR after REST whose data connection the client closed, as a
+	// segmented download does once it has its range. Not a failure.
+	public void recordRangeClosed() {
+		rangesClosed.increment();
+	}
+
+	public void sessionOpened() {
+		sessions.increment();
+		activeSessions.increment();
+	}
+
+	public void sessionClosed() {
+		activeSessions.decrement();
+	}
+
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	public long getActiveSessions() {
+		return activeSessions.sum();
+	}
+
+	public long getSessions() {
+		return sessions.sum();
+	}
+
+	public long getCommands() {
+		long total = otherCommands.count();
+		for (Histogram histogram : commands.values()) {
+			total += histogram.count();
+		}
+		return total;
+	}
+
+	public long getTransfers() {
+		return retrBytes.count() + storBytes.count();
+	}
+
+	public long getBytesSent() {
+		return retrBytes.sum();
+	}
+
+	public long getBytesReceived() {
+		return storBytes.sum();
+	}
+
+	public long getDataConnectionFailures() {
+		return replies[425].sum();
+	}
+
+	public long getFileErrors() {
+		return replies[550].sum();
+	}
+
+	public long getTransferFailures() {
+		return transferFailures.sum();
+	}
+
+	public long getRangesClosed() {
+		return rangesClosed.sum();
+	}
+
+	public String[] getReport() {
+		List<String> lines = snapshot().lines();
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	// Name of a packed verb
+	static String verbName(int verb) {
+		StringBuilder name = new StringBuilder(4);
+		for (int shift = 24; shift >= 0; shift -= 8) {
+			char c = (char) ((verb >>> shift) & 0xFF);
+			if (c != 0) name.append(c);
+		}
+		return name.toString();
+	}
+
+	/*
+	 * Numbers as of one moment, safe to keep and compare. Counters that
+	 * change while the snapshot is taken may be a few updates apart.
+	 */
+	public static class Snapshot {
+		public final long sessions;
+		public final long activeSessions;
+		public final long transferFailures;
+		public final long rangesClosed;
+		public final Map<String, Histogram.Snapshot> commands;	// Latency in nanoseconds, by verb
+		public final Map<Integer, Long> replies;	// Replies sent, by code
+		public final Histogram.Snapshot retrBytes;
+		public final Histogram.Snapshot retrNanos;
+		public final Histogram.Snapshot storBytes;
+		public final Histogram.Snapshot storNanos;
+
+		Snapshot(ServerMetrics metrics) {
+			sessions = metrics.sessions.sum();
+			activeSessions = metrics.activeSessions.sum();
+			transferFailures = metrics.transferFailures.sum();
+			rangesClosed = metrics.rangesClosed.sum();
+
+			TreeMap<String, Histogram.Snapshot> commands = new TreeMap<String, Histogram.Snapshot>();
+			for (Map.Entry<Integer, Histogram> entry : metrics.commands.entrySet()) {
+				commands.put(verbName(entry.getKey()), entry.getValue().snapshot());
+			}
+			if (metrics.otherCommands.count() > 0) {
+				commands.put(OTHER, metrics.otherCommands.snapshot());
+			}
+			this.commands = Collections.unmodifiableMap(commands);
+
+			TreeMap<Integer, Long> replies = new TreeMap<Integer, Long>();
+			for (int code = 0; code < metrics.replies.length; code++) {
+				long count = metrics.replies[code].sum();
+				if (count > 0) replies.put(code, count);
+			}
+			this.replies = Collections.unmodifiableMap(replies);
+
+			retrBytes = metrics.retrBytes.snapshot();
+			retrNanos = metrics.retrNanos.snapshot();
+			storBytes = metrics.storBytes.snapshot();
+			storNanos = metrics.storNanos.snapshot();
+		}
+
+		public long replies(int code) {
+			Long count = replies.get(code);
+			return count == null ? 0 : count;
+		}
+
+		public long commands(String verb) {
+			Histogram.Snapshot histogram = commands.get(verb);
+			return histogram == null ? 0 : histogram.count;
+		}
+
+		// Text for STAT, SITE METRICS and JMX, one line each
+		public List<String> lines() {
+			List<String> lines = new ArrayList<String>();
+			lines.add("sessions " + sessions + " active " + activeSessions);
+			lines.add("retr " + retrBytes.count + " bytes " + retrBytes.sum + " " + rate(retrBytes.sum, retrNanos.sum)
+					+ " duration p50 " + millis(retrNanos.percentile(0.5)) + " p99 " + millis(retrNanos.percentile(0.99)));
+			lines.add("stor " + storBytes.count + " bytes " + storBytes.sum + " " + rate(storBytes.sum, storNanos.sum)
+					+ " duration p50 " + millis(storNanos.percentile(0.5)) + " p99 " + millis(storNanos.percentile(0.99)));
+			lines.add("failures 425 " + replies(425) + " 550 " + replies(550) + " transfer " + transferFailures
+					+ " ranges closed " + rangesClosed);
+			for (Map.Entry<String, Histogram.Snapshot> entry : commands.entrySet()) {
+				Histogram.Snapshot latency = entry.getValue();
+				lines.add("command " + entry.getKey() + " count " + latency.count
+						+ " mean " + micros(latency.mean()) + " p50 " + micros(latency.percentile(0.5))
+						+ " p99 " + micros(latency.percentile(0.99)) + " max " + micros(latency.max));
+			}
+			return lines;
+		}
+
+		private static String micros(long nanos) {
+			return TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+		}
+
+		private static String millis(long nanos) {
+			return TimeUnit.NANOSECONDS.toMillis(nanos) + "ms";
+		}
+
+		private static String rate(long bytes, long nanos) {
+			long kilobytes = nanos == 0 ? 0 : (long) (bytes / 1024.0 / (nanos / 1e9));
+			return kilobytes + "KB/s";
+		}
+	}
+}
+
+/*
+ * Counts values into buckets by their highest set bit, so bucket i holds
+ * values in [2^(i-1), 2^i) and bucket 0 holds zero. Percentiles are the upper end of the bucket,
+ * which is within a factor of two and costs one increment to record.
+ */
+class Histogram {
+	public static final int BUCKETS = 64;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	public Histogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public void record(long value) {
+		if (value < 0) value = 0;
+		buckets[BUCKETS - Long.numberOfLeadingZeros(value)].increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	public long count() {
+		long count = 0;
+		for (LongAdder bucket : buckets) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	public long sum() {
+		return sum.sum();
+	}
+
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	public static class Snapshot {
+		public final long[] buckets = new long[BUCKETS];
+		public final long count;
+		public final long sum;
+		public final long max;
+
+		Snapshot(Histogram histogram) {
+			long count = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets[i] = histogram.buckets[i].sum();
+				count += buckets[i];
+			}
+			this.count = count;
+			this.sum = histogram.sum.sum();
+			this.max = histogram.max.get();
+		}
+
+		public long mean() {
+			return count == 0 ? 0 : sum / count;
+		}
+
+		// Upper bound of the bucket holding the q-th value, capped at the max
+		public long percentile(double q) {
+			if (count == 0) return 0;
+			long rank = (long) Math.ceil(q * count);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets[i];
+				if (seen >= rank && buckets[i] > 0) {
+					return Math.min((1L << i) - 1, max);
+				}
+			}
+			return max;
+		}
+	}
+}
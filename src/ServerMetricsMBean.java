@@ -0,0 +1,22 @@
+/*
+ * Classes
+ * 	ServerMetricsMBean - JMX view of the server metrics
+ */
+
+/*
+ * Attributes registered as FTPServer:type=Metrics. JMX only introspects
+ * public interfaces, so this one has a file of its own.
+ */
+public interface ServerMetricsMBean {
+	long getActiveSessions();
+	long getSessions();
+	long getCommands();
+	long getTransfers();
+	long getBytesSent();
+	long getBytesReceived();
+	long getDataConnectionFailures();	// 425 replies
+	long getFileErrors();	// 550 replies
+	long getTransferFailures();	// RETR and STOR cut short with 426 or 451
+	long getRangesClosed();	// Restarted RETRs the client closed early, not failures
+	String[] getReport();
+}
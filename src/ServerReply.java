@@ -0,0 +1,190 @@
+/*
+ * Classes
+ * 	ServerReply - Reply message
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Class that represents the server response. Replies with fixed text are
+ * encoded once into a table, and replies with changing text are built in
+ * a buffer the reply object keeps, so sending a reply allocates nothing.
+ */
+class ServerReply {
+	private static final byte[] LINE_END = {'.', '\r', '\n'};
+	private static final byte[][] MESSAGES = new byte[600][];	// "code text" for each fixed reply
+	private static final boolean[] ERRORS = new boolean[600];
+	
+	static {
+		define(150, "File status okay", false);
+		define(215, "UNIX Type: L8", false);
+		define(220, "COMP 431 FTP server ready", false);
+		define(221, "Goodbye", false);
+		define(230, "Guest login OK", false);
+		define(234, "Proceed with negotiation", false);
+		define(250, "Requested file action completed", false);
+		define(331, "Guest access OK, send password", false);
+		define(421, "Too many connections, try again later", true);
+		define(425, "Can not open data connection", true);
+		define(426, "Connection closed, transfer aborted", true);
+		define(431, "Need some unavailable resource to process security", true);
+		define(450, "Too many transfers, try again later", true);
+		define(451, "Requested action aborted, local error in processing", true);
+		define(500, "Syntax error, command unrecognized", true);
+		define(501, "Syntax error in parameter", true);
+		define(502, "Command not implemented", true);
+		define(503, "Bad sequence of commands", true);
+		define(504, "Command not implemented for that parameter", true);
+		define(521, "Data connection cannot be opened with this PROT setting", true);
+		define(530, "Not logged in", true);
+		define(534, "Request denied for policy reasons", true);
+		define(536, "Requested PROT level not supported by mechanism", true);
+		define(550, "File not found or access denied", true);
+		define(553, "Requested action not taken, file name not allowed", true);
+		define(554, "Requested action not taken, invalid restart offset", true);
+	}
+	
+	private static void define(int code, String text, boolean error) {
+		MESSAGES[code] = (code + " " + text).getBytes(StandardCharsets.ISO_8859_1);
+		ERRORS[code] = error;
+	}
+	
+	private int replyCode;
+	private byte[] message;	// Either a table entry or the buffer
+	private int length;
+	private byte[] buffer = new byte[128];
+	private boolean errorFlag;
+	private boolean value;	// Ends without the period, the text is for clients to parse
+	
+	public ServerReply() {
+		start(0);
+		errorFlag = false;
+	}
+	
+	public boolean getErrorFlag() {
+		return errorFlag;
+	}
+	
+	public void setErrorFlag(boolean errorFlag) {
+		this.errorFlag = errorFlag;
+	}
+	
+	public int getReplyCode() {
+		return replyCode;
+	}
+	
+	public ServerReply set(int replyCode, String replyText) {
+		return start(replyCode).append(replyText);
+	}
+	
+	// Set the reply message based on the code
+	public ServerReply setReplyByCode(int code) {
+		if (code < 0 || code >= MESSAGES.length || MESSAGES[code] == null) {
+			return start(code);
+		}
+		replyCode = code;
+		message = MESSAGES[code];
+		length = message.length;
+		value = false;
+		if (ERRORS[code]) {
+			errorFlag = true;
+		}
+		return this;
+	}
+	
+	// Begin a reply whose text is added with append
+	public ServerReply start(int code) {
+		replyCode = code;
+		message = buffer;
+		length = 0;
+		value = false;
+		append((long) code).append(' ');
+		return this;
+	}
+	
+	// Begin a reply that carries a value, like SIZE's. The line ends right
+	// after it, so "213 3000000" and not "213 3000000." (RFC 3659, 4)
+	public ServerReply startValue(int code) {
+		start(code);
+		value = true;
+		return this;
+	}
+	
+	// Begin a multi-line reply, "code-text"
+	public ServerReply startLines(int code) {
+		replyCode = code;
+		message = buffer;
+		length = 0;
+		value = false;
+		append((long) code).append('-');
+		return this;
+	}
+	
+	// Continue a multi-line reply with an indented line
+	public ServerReply nextLine() {
+		return append("\r\n ");
+	}
+	
+	// The closing "code text" line of a multi-line reply
+	public ServerReply lastLine() {
+		return append("\r\n").append((long) replyCode).append(' ');
+	}
+	
+	public ServerReply append(String text) {
+		ensureCapacity(text.length());
+		for (int i = 0; i < text.length(); i++) {
+			buffer[length++] = (byte) text.charAt(i);
+		}
+		return this;
+	}
+	
+	public ServerReply append(char c) {
+		ensureCapacity(1);
+		buffer[length++] = (byte) c;
+		return this;
+	}
+	
+	public ServerReply append(long number) {
+		if (number < 0) {
+			append('-');
+			number = -number;
+		}
+		int digits = 1;
+		for (long rest = number / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+		ensureCapacity(digits);
+		for (int i = length + digits - 1; i >= length; i--) {
+			buffer[i] = (byte) ('0' + number % 10);
+			number /= 10;
+		}
+		length += digits;
+		return this;
+	}
+	
+	private void ensureCapacity(int extra) {
+		if (length + extra > buffer.length) {
+			byte[] grown = new byte[Math.max(length + extra, buffer.length * 2)];
+			System.arraycopy(buffer, 0, grown, 0, length);
+			buffer = grown;
+			message = buffer;	// Only replies being built grow
+		}
+	}
+	
+	// Hand the encoded reply to the session, which sends it on its next flush
+	public void writeTo(ServerSession session) throws IOException {
+		session.write(message, 0, length);
+		session.write(LINE_END, value ? 1 : 0, value ? 2 : 3);
+	}
+	
+	public String getMessage() {
+		return new String(message, 0, length, StandardCharsets.ISO_8859_1) + (value ? "\r\n" : ".\r\n");
+	}
+	
+	public void printMessage() {
+		System.out.write(message, 0, length);
+		System.out.write(LINE_END, value ? 1 : 0, value ? 2 : 3);
+	}
+}
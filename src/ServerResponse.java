@@ -0,0 +1,62 @@
+/*
+ * Classes
+ * 	ServerResponse - A parsed server reply
+ */
+
+class ServerResponse {
+	private String message;
+	private String replyCode;
+	private String replyText;
+	
+	public boolean errorFlag;
+	
+	public ServerResponse() {
+		this.message = "";
+		this.errorFlag = false;
+	}
+	
+	public int getReplyCode() {
+		return Integer.parseInt(replyCode);
+	}
+	
+	public ServerResponse setReplyCode(String replyCode) {
+		this.replyCode = replyCode;
+		return this;
+	}
+	
+	public ServerResponse setReplyText(String replyText) {
+		this.replyText = replyText;
+		return this;
+	}
+	
+	// Manually set a reply message
+	public ServerResponse setMessage(String message) {
+		this.message = message;
+		return this;
+	}
+	
+	// Set the reply message with a code
+	public ServerResponse setReplyByCode(int code) {
+		String reply;
+		switch (code) {
+		// TODO: finish this stuff
+			case 10: reply = "ERROR -- reply-code";
+					 errorFlag = true;
+					 break;
+			case 11: reply = "ERROR -- reply-text";
+					 errorFlag = true;
+					 break;
+			case 12: reply = "ERROR -- <CRLF>";
+					 errorFlag = true;
+					 break;
+			default: reply = "FTP reply " + replyCode + " accepted. Text is :" + replyText;
+					 break;
+		}
+		message = reply;
+		return this;
+	}
+	
+	public void printMessage() {
+		System.out.println(message);
+	}
+}
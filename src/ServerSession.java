@@ -0,0 +1,80 @@
+/*
+ * Classes
+ * 	ServerSession - State for a single client connection
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLEngine;
+
+/*
+ * State for a single control connection. Nothing in here is shared
+ * with other sessions, so clients never see each other's login or
+ * PORT address. Subclasses decide how the connection is driven.
+ */
+abstract class ServerSession {
+	public static final int REPLY_BUFFER_SIZE = 1024;	// Starting size of the reply buffer
+	
+	public boolean userSet = false;
+	public boolean loggedIn = false;
+	public boolean portSet = false;
+	public String[] hostAddress;	// Address given by the last PORT command
+	public ServerSocketChannel passiveChannel;	// Port leased by the last PASV or EPSV command
+	public InetAddress localAddress;	// Server side of the control connection
+	public InetAddress remoteAddress;	// Client side of the control connection
+	public long restartOffset = -1;	// Byte offset given by the last REST command, -1 for none
+	public boolean compressed = false;	// MODE Z, data is deflated on the way out and inflated on the way in
+	public long allocateSize = 0;	// Upload size given by the last ALLO command
+	public String hashAlgorithm = "SHA-256";	// Chosen by OPTS HASH
+	public final TokenBucket bandwidth = new TokenBucket();	// Shared by the session's downloads
+	public boolean admitted = false;	// Counted by FTPServer.admission until it ends
+	public volatile long queuedSince = 0;	// When the current command was handed to a worker, 0 if it wasn't
+	public long rangeStart = 0;	// First byte given by the last RANG command
+	public long rangeEnd = -1;	// Last byte given by the last RANG command, -1 for none
+	public boolean secured = false;	// AUTH TLS was accepted, the control connection is encrypted
+	public boolean bufferSizeSet = false;	// PBSZ was given, so PROT may follow
+	public boolean protectData = false;	// PROT P, data connections are encrypted
+	
+	public final ServerReply reply = new ServerReply();
+	private final AtomicBoolean ended = new AtomicBoolean();
+	
+	public ServerSession() {
+		FTPServer.metrics.sessionOpened();
+	}
+	
+	// Buffer reply bytes for the client
+	public abstract void write(byte[] bytes, int offset, int length) throws IOException;
+	
+	// Send everything buffered so far
+	public abstract void flush() throws IOException;
+	
+	// Encrypt the connection from here on. Replies buffered so far go out in the clear.
+	public abstract void startTls(SSLEngine engine) throws IOException;
+	
+	// Give a leased passive port back to the pool
+	public void releaseDataPort() {
+		if (passiveChannel != null) {
+			FTPServer.dataPorts.release(passiveChannel);
+			passiveChannel = null;
+			portSet = false;
+		}
+	}
+	
+	// Called once the control connection is gone
+	public void close() {
+		releaseDataPort();
+	}
+	
+	// Count the session as gone, even if a transfer is still finishing. Only the first call counts.
+	public void end() {
+		if (ended.compareAndSet(false, true)) {
+			FTPServer.metrics.sessionClosed();
+			if (admitted) {
+				FTPServer.admission.releaseSession(remoteAddress);
+			}
+		}
+	}
+}
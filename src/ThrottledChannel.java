@@ -0,0 +1,68 @@
+/*
+ * Classes
+ * 	ThrottledChannel - Data connection that waits for tokens before each write
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/*
+ * Passes writes through in slices after taking tokens for each one. Files
+ * still go out with transferTo on the real channel, so throttling doesn't
+ * cost the zero-copy path, or the direct buffer path of a TlsChannel.
+ */
+class ThrottledChannel implements WritableByteChannel {
+	private final Bandwidth bandwidth;
+	private final TokenBucket session;
+	private final WritableByteChannel channel;
+	private boolean open = true;
+
+	ThrottledChannel(Bandwidth bandwidth, TokenBucket session, WritableByteChannel channel) {
+		this.bandwidth = bandwidth;
+		this.session = session;
+		this.channel = channel;
+	}
+
+	public int write(ByteBuffer source) throws IOException {
+		int end = source.limit();
+		int slice = (int) bandwidth.slice(source.remaining());
+		source.limit(source.position() + slice);
+		try {
+			bandwidth.acquire(session, slice);
+			int written = channel.write(source);
+			if (written < slice) {
+				bandwidth.refund(session, slice - written);
+			}
+			return written;
+		} finally {
+			source.limit(end);
+		}
+	}
+
+	// Like source.transferTo(position, count, this), a slice at a time
+	public long transferFrom(FileChannel source, long position, long count) throws IOException {
+		long slice = bandwidth.slice(count);
+		bandwidth.acquire(session, slice);
+		long sent = channel instanceof TlsChannel
+				? ((TlsChannel) channel).transferFrom(source, position, slice)
+				: source.transferTo(position, slice, channel);
+		if (sent < slice) {
+			bandwidth.refund(session, slice - Math.max(0, sent));
+		}
+		return sent;
+	}
+
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	// Ends the transfer, the caller still closes the data connection
+	public void close() {
+		if (open) {
+			open = false;
+			bandwidth.closed();
+		}
+	}
+}
@@ -0,0 +1,391 @@
+/*
+ * Classes
+ * 	TlsChannel - TLS over a control or data connection, driven through an SSLEngine
+ */
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/*
+ * Encrypts writes and decrypts reads on another channel. The handshake
+ * runs as it is needed: in blocking mode the first read or write finishes
+ * it, in non-blocking mode reads move it along and return 0 until the
+ * peer's next flight arrives, and records that couldn't be written are
+ * kept until flush is called again.
+ *
+ * Data connections get large direct buffers. Writes wrap as many records
+ * as fit before one write call, reads decrypt straight into the caller's
+ * buffer when it can hold a whole record, and files are read into a
+ * direct buffer that is encrypted in place of transferTo, so each byte is
+ * copied once on its way through the cipher. Control connections keep
+ * record-sized heap buffers, since there can be thousands of them.
+ *
+ * Reads and writes may run on different threads at the same time.
+ */
+class TlsChannel implements ByteChannel {
+	public static final int BULK_BUFFER_SIZE = 256 * 1024;	// Data connection buffers, many records each
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SSLEngine engine;
+	private final TlsContext context;
+	private final ReadableByteChannel in;
+	private final WritableByteChannel out;
+	private final Closeable connection;
+	private final boolean blocking;
+	private final boolean bulk;
+
+	// All three are kept ready to be written to
+	private ByteBuffer netIn;	// Records read and not decrypted yet
+	private ByteBuffer appIn;	// Decrypted bytes the caller had no room for
+	private ByteBuffer netOut;	// Records not written yet
+	private ByteBuffer fileBuffer;	// File bytes on their way to the cipher
+
+	private final Object readLock = new Object();
+	private final Object writeLock = new Object();
+	private boolean started = false;	// Anything was wrapped or unwrapped
+	private boolean finished = false;	// The first handshake is done
+	private boolean inputClosed = false;	// The peer sent close_notify
+	private boolean open = true;
+
+	public TlsChannel(SSLEngine engine, TlsContext context, ReadableByteChannel in, WritableByteChannel out,
+			Closeable connection, boolean blocking, boolean bulk) throws SSLException {
+		this.engine = engine;
+		this.context = context;
+		this.in = in;
+		this.out = out;
+		this.connection = connection;
+		this.blocking = blocking;
+		this.bulk = bulk;
+		SSLSession session = engine.getSession();
+		int packet = session.getPacketBufferSize();
+		if (bulk) {
+			netIn = ByteBuffer.allocateDirect(Math.max(packet, BULK_BUFFER_SIZE));
+			netOut = ByteBuffer.allocateDirect(Math.max(packet, BULK_BUFFER_SIZE));
+		} else {
+			netIn = ByteBuffer.allocate(packet);
+			netOut = ByteBuffer.allocate(packet);
+		}
+		appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+		engine.beginHandshake();
+	}
+
+	// TLS over a socket channel, blocking or not as the channel is. Records
+	// are already gathered into large writes, and with Nagle the session
+	// ticket that follows a handshake would hold up the first data until
+	// the peer's delayed ACK. Blocking reads go through the socket's stream
+	// so SO_TIMEOUT applies.
+	public static TlsChannel open(TlsContext context, SSLEngine engine, SocketChannel channel, boolean bulk) throws IOException {
+		channel.socket().setTcpNoDelay(true);
+		boolean blocking = channel.isBlocking();
+		return new TlsChannel(engine, context, blocking ? TransferTuning.timedInput(channel) : channel, channel, channel,
+				blocking, bulk);
+	}
+
+	// TLS over a blocking socket, through its streams if it has no channel
+	public static TlsChannel open(TlsContext context, SSLEngine engine, Socket socket, boolean bulk) throws IOException {
+		if (socket.getChannel() != null) {
+			return open(context, engine, socket.getChannel(), bulk);
+		}
+		socket.setTcpNoDelay(true);
+		return new TlsChannel(engine, context, Channels.newChannel(socket.getInputStream()),
+				Channels.newChannel(socket.getOutputStream()), socket, true, bulk);
+	}
+
+	public SSLSession getSession() {
+		return engine.getSession();
+	}
+
+	// Run the whole handshake now. Only for blocking channels.
+	public void handshake() throws IOException {
+		synchronized (readLock) {
+			while (handshaking()) {
+				progressHandshake();
+				if (engine.getHandshakeStatus() != HandshakeStatus.NEED_UNWRAP) continue;
+				netIn.flip();
+				SSLEngineResult result;
+				try {
+					result = engine.unwrap(netIn, appIn);
+				} finally {
+					netIn.compact();
+				}
+				unwrapped(result);
+				switch (result.getStatus()) {
+				case BUFFER_UNDERFLOW:
+					if (readNet() < 0) {
+						throw new EOFException("Connection closed during the TLS handshake");
+					}
+					break;
+				case BUFFER_OVERFLOW:
+					appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+					break;
+				case CLOSED:
+					throw new SSLException("TLS closed during the handshake");
+				default:
+					break;
+				}
+			}
+		}
+	}
+
+	public int read(ByteBuffer dst) throws IOException {
+		synchronized (readLock) {
+			int produced = 0;
+			while (true) {
+				produced += take(dst);
+				if (!dst.hasRemaining() || inputClosed) break;
+				if (!progressHandshake()) break;	// Handshake output is waiting for the socket
+
+				// Straight into the caller's buffer when a whole record fits
+				ByteBuffer target = appIn.position() == 0 && dst.remaining() >= appIn.capacity() ? dst : appIn;
+				netIn.flip();
+				SSLEngineResult result;
+				try {
+					result = engine.unwrap(netIn, target);
+				} finally {
+					netIn.compact();
+				}
+				unwrapped(result);
+				if (target == dst) {
+					produced += result.bytesProduced();
+				}
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					inputClosed = true;
+				} else if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+				} else if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+					// Return what there is rather than wait for more
+					if (produced > 0) break;
+					int read = readNet();
+					if (read < 0) {
+						throw new EOFException("Connection closed without a TLS close_notify");
+					}
+					if (read == 0) break;
+				}
+			}
+			return produced == 0 && inputClosed ? -1 : produced;
+		}
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+		if (blocking && handshaking()) {
+			handshake();
+		}
+		synchronized (writeLock) {
+			if (!open) throw new ClosedChannelException();
+			int packet = engine.getSession().getPacketBufferSize();
+			int consumed = 0;
+			while (src.hasRemaining()) {
+				// Fill the buffer with records and write them in one call
+				if (netOut.remaining() < packet && !flushNet()) break;
+				SSLEngineResult result = engine.wrap(src, netOut);
+				started = true;
+				consumed += result.bytesConsumed();
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					throw new SSLException("TLS connection closed");
+				}
+				if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					if (!flushNet()) break;
+					if (netOut.position() == 0) {
+						netOut = grow(netOut, packet);
+					}
+				} else if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+					break;	// Waiting on the peer's handshake messages
+				}
+				if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+					runTasks();
+				}
+			}
+			flushNet();
+			return consumed;
+		}
+	}
+
+	// Read file bytes into a direct buffer and send them encrypted, like
+	// source.transferTo(position, count, this). Blocking channels only.
+	public long transferFrom(FileChannel source, long position, long count) throws IOException {
+		if (fileBuffer == null) {
+			fileBuffer = ByteBuffer.allocateDirect(BULK_BUFFER_SIZE);
+		}
+		fileBuffer.clear();
+		fileBuffer.limit((int) Math.min(fileBuffer.capacity(), count));
+		int read = source.read(fileBuffer, position);
+		if (read <= 0) return 0;
+		fileBuffer.flip();
+		while (fileBuffer.hasRemaining()) {
+			write(fileBuffer);
+		}
+		return read;
+	}
+
+	// Write out records left over from earlier calls, and handshake messages
+	// that are due. False while some are still waiting for the socket.
+	public boolean flush() throws IOException {
+		return progressHandshake();
+	}
+
+	public boolean hasPendingOutput() {
+		synchronized (writeLock) {
+			return netOut.position() > 0;
+		}
+	}
+
+	// Bytes are buffered that a read may return without the socket
+	public boolean hasBufferedInput() {
+		synchronized (readLock) {
+			return appIn.position() > 0 || netIn.position() > 0;
+		}
+	}
+
+	public boolean isOpen() {
+		synchronized (writeLock) {
+			return open;
+		}
+	}
+
+	// Send close_notify and close the connection
+	public void close() throws IOException {
+		synchronized (writeLock) {
+			if (!open) return;
+			open = false;
+			try {
+				if (started) {
+					engine.closeOutbound();
+					while (!engine.isOutboundDone()) {
+						SSLEngineResult result = engine.wrap(EMPTY, netOut);
+						if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+							if (!flushNet()) break;
+						} else if (result.bytesProduced() == 0) {
+							break;
+						}
+					}
+					flushNet();
+				}
+			} catch (IOException e) {
+				// The peer is gone, there's nobody to tell
+			} finally {
+				connection.close();
+			}
+		}
+	}
+
+	private boolean handshaking() {
+		HandshakeStatus status = engine.getHandshakeStatus();
+		return status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
+	}
+
+	// Send what the handshake has to send before it can hear from the peer
+	// again, the whole flight in one write so Nagle doesn't hold back its
+	// last records. False if the socket didn't take it all.
+	private boolean progressHandshake() throws IOException {
+		synchronized (writeLock) {
+			while (true) {
+				HandshakeStatus status = engine.getHandshakeStatus();
+				if (status == HandshakeStatus.NEED_TASK) {
+					runTasks();
+				} else if (status == HandshakeStatus.NEED_WRAP) {
+					int packet = engine.getSession().getPacketBufferSize();
+					if (netOut.remaining() < packet && !flushNet()) return false;
+					SSLEngineResult result = engine.wrap(EMPTY, netOut);
+					started = true;
+					if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+						if (!flushNet()) return false;
+						if (netOut.position() == 0) {
+							netOut = grow(netOut, packet);
+						}
+					} else if (result.bytesProduced() == 0 && result.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+						throw new SSLException("TLS handshake made no progress");
+					}
+					if (result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+						handshakeFinished();
+					}
+				} else {
+					return flushNet();
+				}
+			}
+		}
+	}
+
+	private void unwrapped(SSLEngineResult result) {
+		started = true;
+		if (result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+			handshakeFinished();
+		}
+	}
+
+	// Count the first handshake, later ones only hand out session tickets
+	private void handshakeFinished() {
+		if (!finished) {
+			finished = true;
+			if (context != null) {
+				context.finished(engine);
+			}
+		}
+	}
+
+	// Key exchange and certificate checks, run on the calling thread
+	private void runTasks() {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+
+	// Move decrypted bytes the caller had no room for into dst
+	private int take(ByteBuffer dst) {
+		if (appIn.position() == 0) return 0;
+		appIn.flip();
+		int count = Math.min(appIn.remaining(), dst.remaining());
+		ByteBuffer slice = appIn.duplicate();
+		slice.limit(appIn.position() + count);
+		dst.put(slice);
+		appIn.position(appIn.position() + count);
+		appIn.compact();
+		return count;
+	}
+
+	private int readNet() throws IOException {
+		if (!netIn.hasRemaining()) {
+			netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+		}
+		return in.read(netIn);
+	}
+
+	private boolean flushNet() throws IOException {
+		if (netOut.position() == 0) return true;
+		netOut.flip();
+		try {
+			while (netOut.hasRemaining()) {
+				if (out.write(netOut) == 0 && !blocking) return false;
+			}
+		} finally {
+			netOut.compact();
+		}
+		return true;
+	}
+
+	// A buffer with room for extra more bytes after what this one holds
+	private ByteBuffer grow(ByteBuffer buffer, int extra) {
+		ByteBuffer grown = bulk ? ByteBuffer.allocateDirect(buffer.position() + extra)
+				: ByteBuffer.allocate(buffer.position() + extra);
+		buffer.flip();
+		grown.put(buffer);
+		return grown;
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Classes
+ * 	TlsContext - Keys, trust and session caches for AUTH TLS, on either side
+ */
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedKeyManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+/*
+ * One SSLContext per program, so every connection shares its session
+ * cache. The server resumes any session it has handed out. The client
+ * opens data connections with the host and port of the control
+ * connection, which is what its cache is keyed by, so a data connection
+ * offers the control connection's session and skips the key exchange and
+ * the certificate.
+ *
+ * That is also how a resumed handshake is told from a full one. Only a
+ * full handshake picks the server's certificate, and only a full one has
+ * the client check it. The key and trust managers are wrapped to note the
+ * engines that did either. Session IDs and creation times can't tell: a
+ * TLS 1.3 resumption gets a new session ID, and the creation time it
+ * inherits is an implementation detail.
+ */
+class TlsContext {
+	public final SSLContext context;
+	public final LongAdder handshakes = new LongAdder();	// Completed handshakes, resumed ones included
+	public final LongAdder resumed = new LongAdder();
+
+	// Engines whose handshake went through the certificate. Weak, so an
+	// engine whose handshake failed afterwards isn't kept.
+	private final Set<SSLEngine> authenticated = Collections.synchronizedSet(
+			Collections.newSetFromMap(new WeakHashMap<SSLEngine, Boolean>()));
+
+	private TlsContext(KeyManager[] keys, TrustManager[] trust) throws GeneralSecurityException {
+		for (int i = 0; keys != null && i < keys.length; i++) {
+			if (keys[i] instanceof X509ExtendedKeyManager) {
+				keys[i] = new ServerKeys((X509ExtendedKeyManager) keys[i]);
+			}
+		}
+		for (int i = 0; trust != null && i < trust.length; i++) {
+			if (trust[i] instanceof X509ExtendedTrustManager) {
+				trust[i] = new ServerTrust((X509ExtendedTrustManager) trust[i]);
+			}
+		}
+		this.context = SSLContext.getInstance("TLS");
+		context.init(keys, trust, null);
+	}
+
+	// Server side, with the key and certificate from a keystore
+	public static TlsContext server(String keyStore, String password) throws IOException, GeneralSecurityException {
+		KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keys.init(load(keyStore, password), password.toCharArray());
+		return new TlsContext(keys.getKeyManagers(), null);
+	}
+
+	// Client side, trusting the certificates in a keystore, or the JRE's when it is null
+	public static TlsContext client(String trustStore, String password) throws IOException, GeneralSecurityException {
+		TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trust.init(trustStore == null ? null : load(trustStore, password));
+		return new TlsContext(null, trust.getTrustManagers());
+	}
+
+	private static KeyStore load(String path, String password) throws IOException, GeneralSecurityException {
+		KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+		InputStream in = new FileInputStream(path);
+		try {
+			store.load(in, password.toCharArray());
+		} finally {
+			in.close();
+		}
+		return store;
+	}
+
+	public SSLEngine serverEngine() {
+		SSLEngine engine = context.createSSLEngine();
+		engine.setUseClientMode(false);
+		return engine;
+	}
+
+	// Engine for a connection to the server at host and port. Data connections
+	// pass the control connection's port to resume its session.
+	public SSLEngine clientEngine(String host, int port) {
+		SSLEngine engine = context.createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		SSLParameters parameters = engine.getSSLParameters();
+		parameters.setEndpointIdentificationAlgorithm("HTTPS");	// The certificate has to name the host
+		engine.setSSLParameters(parameters);
+		return engine;
+	}
+
+	// A handshake that never got to the certificate was resumed
+	void finished(SSLEngine engine) {
+		handshakes.increment();
+		if (!authenticated.remove(engine)) {
+			resumed.increment();
+		}
+	}
+
+	/*
+	 * The server's keys, noting each engine that picks the certificate
+	 */
+	private class ServerKeys extends X509ExtendedKeyManager {
+		private final X509ExtendedKeyManager keys;
+
+		ServerKeys(X509ExtendedKeyManager keys) {
+			this.keys = keys;
+		}
+
+		public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+			String alias = keys.chooseEngineServerAlias(keyType, issuers, engine);
+			if (alias != null && engine != null) {
+				authenticated.add(engine);
+			}
+			return alias;
+		}
+
+		public String chooseEngineClientAlias(String[] keyTypes, Principal[] issuers, SSLEngine engine) {
+			return keys.chooseEngineClientAlias(keyTypes, issuers, engine);
+		}
+
+		public String[] getClientAliases(String keyType, Principal[] issuers) {
+			return keys.getClientAliases(keyType, issuers);
+		}
+
+		public String chooseClientAlias(String[] keyTypes, Principal[] issuers, Socket socket) {
+			return keys.chooseClientAlias(keyTypes, issuers, socket);
+		}
+
+		public String[] getServerAliases(String keyType, Principal[] issuers) {
+			return keys.getServerAliases(keyType, issuers);
+		}
+
+		public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+			return keys.chooseServerAlias(keyType, issuers, socket);
+		}
+
+		public X509Certificate[] getCertificateChain(String alias) {
+			return keys.getCertificateChain(alias);
+		}
+
+		public PrivateKey getPrivateKey(String alias) {
+			return keys.getPrivateKey(alias);
+		}
+	}
+
+	/*
+	 * The client's trust, noting each engine that checks the server's certificate
+	 */
+	private class ServerTrust extends X509ExtendedTrustManager {
+		private final X509ExtendedTrustManager trust;
+
+		ServerTrust(X509ExtendedTrustManager trust) {
+			this.trust = trust;
+		}
+
+		public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+			trust.checkServerTrusted(chain, authType, engine);
+			if (engine != null) {
+				authenticated.add(engine);
+			}
+		}
+
+		public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+			trust.checkServerTrusted(chain, authType, socket);
+		}
+
+		public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+			trust.checkServerTrusted(chain, authType);
+		}
+
+		public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+			trust.checkClientTrusted(chain, authType, engine);
+		}
+
+		public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+			trust.checkClientTrusted(chain, authType, socket);
+		}
+
+		public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+			trust.checkClientTrusted(chain, authType);
+		}
+
+		public X509Certificate[] getAcceptedIssuers() {
+			return trust.getAcceptedIssuers();
+		}
+	}
+}
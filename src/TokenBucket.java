@@ -0,0 +1,60 @@
+/*
+ * Classes
+ * 	TokenBucket - Bytes allowed per second, handed out in arrival order
+ */
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Tokens are taken even when there aren't enough, and the bucket goes into
+ * debt. Each taker sleeps until its share of the debt is paid off, so
+ * takers are served in the order they came, without a queue. The rate is
+ * passed in on every call so a new limit applies right away.
+ */
+class TokenBucket {
+	public static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(50);	// Idle time that can be made up at once
+
+	private double tokens = 0;
+	private long updated = System.nanoTime();
+
+	// Take the bytes at the given rate, 0 for none, and sleep off any debt.
+	// Returns the nanoseconds slept.
+	public long take(long bytes, long rate) throws IOException {
+		if (rate <= 0) return 0;	// No lock when there's no limit
+		long wait = reserve(bytes, rate);
+		if (wait <= 0) return 0;
+		try {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while throttled");
+		}
+		return wait;
+	}
+
+	// Nanoseconds until the bytes may be sent
+	public synchronized long reserve(long bytes, long rate) {
+		if (rate <= 0) return 0;
+		refill(rate);
+		tokens -= bytes;
+		return tokens >= 0 ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+	}
+
+	public synchronized void refund(long bytes, long rate) {
+		if (rate > 0) {
+			refill(rate);
+			tokens = Math.min(tokens + bytes, burst(rate));
+		}
+	}
+
+	private void refill(long rate) {
+		long now = System.nanoTime();
+		tokens = Math.min(burst(rate), tokens + (double) (now - updated) * rate / TimeUnit.SECONDS.toNanos(1));
+		updated = now;
+	}
+
+	private static double burst(long rate) {
+		return (double) rate * BURST_NANOS / TimeUnit.SECONDS.toNanos(1);
+	}
+}
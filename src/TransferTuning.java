@@ -0,0 +1,215 @@
+/*
+ * Classes
+ * 	TransferTuning - Socket options, timeouts and copy buffer sizes for the client and the server
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+
+/*
+ * One place for the socket settings both programs use, read from the same
+ * command line options on each side.
+ *
+ * Control connections turn Nagle off. Replies and pipelined requests are
+ * already gathered into one write, so holding back a short write until the
+ * last one is acknowledged only adds a delayed ACK, about 40 ms, to each
+ * round trip. Data connections keep Nagle on for bulk sends.
+ *
+ * SO_SNDBUF and SO_RCVBUF are left to the kernel, which grows them as the
+ * connection speeds up, unless an option sets them. A receive buffer only
+ * widens the TCP window when it is set before the handshake, so it goes
+ * on listening sockets and on sockets before they connect.
+ *
+ * The client's downloads copy through a user space buffer sized from the
+ * transfer and the throughput seen so far: about 10 ms worth of bytes,
+ * between 8 KB and 1 MB, and never much more than the whole transfer.
+ * Smaller buffers cost a system call per few KB on a fast link. Larger
+ * ones only use memory once the socket buffers are the limit, as
+ * TransferBufferBenchmark shows. The server sends with transferTo and
+ * receives into a fixed buffer per thread, so it has no copy to size.
+ *
+ * A read that waits longer than the read timeout fails, and so does a
+ * server control connection idle for longer than the idle timeout. Reads
+ * through a blocking SocketChannel ignore SO_TIMEOUT, so sockets that have
+ * one are read through timedInput.
+ */
+class TransferTuning {
+	public static final int MIN_BUFFER_SIZE = 8 * 1024;
+	public static final int MAX_BUFFER_SIZE = 1024 * 1024;
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;	// Before any throughput was measured
+	public static final long BUFFER_NANOS = 10 * 1000 * 1000;	// Time the buffer should hold at the measured rate
+	public static final long MIN_MEASURED_BYTES = 256 * 1024;	// Shorter transfers don't say much about the link
+
+	public static int connectTimeout = 10 * 1000;	// Milliseconds, 0 waits for the OS
+	public static int readTimeout = 120 * 1000;	// Milliseconds without a byte on a stream, 0 for none
+	public static int idleTimeout = 300 * 1000;	// Milliseconds without a command on a server control connection
+	public static int sendBufferSize = 0;	// SO_SNDBUF of data connections, 0 for the kernel default
+	public static int receiveBufferSize = 0;	// SO_RCVBUF of data connections
+	public static boolean controlNoDelay = true;	// TCP_NODELAY on control connections
+
+	private static volatile double throughput = 0;	// Bytes per second, moving average
+
+	// Read a tuning option at args[i]. Returns the index of its last word,
+	// or -1 if it isn't one.
+	// [-sndbuf bytes] [-rcvbuf bytes] [-ctimeout ms] [-timeout ms] [-idle ms] [-nodelay on|off]
+	public static int parseOption(String[] args, int i) {
+		if (i + 1 >= args.length) return -1;
+		if (args[i].equals("-sndbuf")) {
+			sendBufferSize = Math.max(0, Integer.parseInt(args[i + 1]));
+		} else if (args[i].equals("-rcvbuf")) {
+			receiveBufferSize = Math.max(0, Integer.parseInt(args[i + 1]));
+		} else if (args[i].equals("-ctimeout")) {
+			connectTimeout = Math.max(0, Integer.parseInt(args[i + 1]));
+		} else if (args[i].equals("-timeout")) {
+			readTimeout = Math.max(0, Integer.parseInt(args[i + 1]));
+		} else if (args[i].equals("-idle")) {
+			idleTimeout = Math.max(0, Integer.parseInt(args[i + 1]));
+		} else if (args[i].equals("-nodelay")) {
+			controlNoDelay = !args[i + 1].equalsIgnoreCase("off");
+		} else {
+			return -1;
+		}
+		return i + 1;
+	}
+
+	// Open a control connection
+	public static Socket connectControl(String host, int port) throws IOException {
+		Socket socket = new Socket();
+		try {
+			configureControl(socket);
+			socket.connect(new InetSocketAddress(host, port), connectTimeout);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	public static void configureControl(Socket socket) throws SocketException {
+		socket.setTcpNoDelay(controlNoDelay);
+		socket.setKeepAlive(true);
+	}
+
+	// Open a data connection, with the buffers set before the handshake
+	public static Socket connectData(String host, int port) throws IOException {
+		Socket socket = new Socket();
+		try {
+			configureData(socket);
+			socket.connect(new InetSocketAddress(host, port), connectTimeout);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	// The same for callers that use the channel
+	public static SocketChannel connectDataChannel(InetSocketAddress address) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			configureData(channel.socket());
+			channel.socket().connect(address, connectTimeout);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	// Reads through a channel ignore SO_TIMEOUT, streams honor it
+	public static void configureData(Socket socket) throws SocketException {
+		if (sendBufferSize > 0) {
+			socket.setSendBufferSize(sendBufferSize);
+		}
+		if (receiveBufferSize > 0) {
+			socket.setReceiveBufferSize(receiveBufferSize);
+		}
+		socket.setSoTimeout(readTimeout);
+	}
+
+	// Reads from a blocking socket channel that fail after SO_TIMEOUT
+	public static ReadableByteChannel timedInput(SocketChannel channel) throws IOException {
+		return new TimedInput(channel.socket().getInputStream());
+	}
+
+	// Sockets accepted by the listener inherit its receive buffer
+	public static void configureListener(ServerSocket listener) throws SocketException {
+		if (receiveBufferSize > 0) {
+			listener.setReceiveBufferSize(receiveBufferSize);
+		}
+	}
+
+	// Copy buffer for a transfer of the given size, -1 if it isn't known
+	public static int bufferSize(long size) {
+		double rate = throughput;
+		long bytes = rate == 0 ? DEFAULT_BUFFER_SIZE : (long) (rate * BUFFER_NANOS / 1e9);
+		if (size >= 0) {
+			bytes = Math.min(bytes, size);
+		}
+		bytes = Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, bytes));
+		return Integer.highestOneBit((int) bytes - 1) << 1;	// Round up to a power of two
+	}
+
+	// Fold a finished transfer into the measured throughput
+	public static void recordTransfer(long bytes, long nanos) {
+		if (bytes < MIN_MEASURED_BYTES || nanos <= 0) return;
+		double rate = bytes * 1e9 / nanos;
+		double previous = throughput;
+		throughput = previous == 0 ? rate : previous * 0.75 + rate * 0.25;
+	}
+
+	public static double throughput() {
+		return throughput;
+	}
+
+	/*
+	 * A socket's input stream as a channel. Unlike Channels.newChannel it
+	 * reads straight into heap buffers, and fills direct ones through an
+	 * array as large as the read asks for, up to MAX_BUFFER_SIZE.
+	 */
+	private static class TimedInput implements ReadableByteChannel {
+		private final InputStream in;
+		private byte[] bytes = new byte[0];
+		private boolean open = true;
+
+		TimedInput(InputStream in) {
+			this.in = in;
+		}
+
+		public int read(ByteBuffer target) throws IOException {
+			int length = target.remaining();
+			if (length == 0) return 0;
+			if (target.hasArray()) {
+				int read = in.read(target.array(), target.arrayOffset() + target.position(), length);
+				if (read > 0) {
+					target.position(target.position() + read);
+				}
+				return read;
+			}
+			if (bytes.length < Math.min(length, MAX_BUFFER_SIZE)) {
+				bytes = new byte[Math.min(length, MAX_BUFFER_SIZE)];
+			}
+			int read = in.read(bytes, 0, Math.min(length, bytes.length));
+			if (read > 0) {
+				target.put(bytes, 0, read);
+			}
+			return read;
+		}
+
+		public boolean isOpen() {
+			return open;
+		}
+
+		// The stream belongs to the socket, which its owner closes
+		public void close() {
+			open = false;
+		}
+	}
+}
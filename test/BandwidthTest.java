@@ -0,0 +1,130 @@
+/*
+ * Classes
+ * 	BandwidthTest - Throttled transfers keep to the global and per-session limits
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/*
+ * Sends through ThrottledChannels into a channel that throws the bytes
+ * away, so the tokens are all that hold a transfer back, and measures the
+ * rate each transfer got. Each case takes about a second. The buckets
+ * start empty and allow a burst of 50 ms, hence the tolerance.
+ */
+public class BandwidthTest {
+	private static final long RATE = 2 * 1024 * 1024;	// Bytes per second
+	private static final double TOLERANCE = 0.15;
+
+	@Test
+	public void sessionLimitHoldsATransfer() throws Exception {
+		double[] rates = send(new Bandwidth(0, RATE), RATE, 1);
+		assertRate("session", RATE, rates[0]);
+	}
+
+	@Test
+	public void sessionLimitHoldsEachTransfer() throws Exception {
+		// Each session gets its own bucket, so two transfers send twice as much
+		double[] rates = send(new Bandwidth(0, RATE), RATE, 2);
+		assertRate("first session", RATE, rates[0]);
+		assertRate("second session", RATE, rates[1]);
+	}
+
+	@Test
+	public void globalLimitIsSplitBetweenTransfers() throws Exception {
+		double[] rates = send(new Bandwidth(RATE, 0), RATE / 2, 2);
+		assertRate("total", RATE, rates[0] + rates[1]);
+		assertRate("first transfer", RATE / 2, rates[0]);
+		assertRate("second transfer", RATE / 2, rates[1]);
+	}
+
+	@Test
+	public void lowerLimitWins() throws Exception {
+		// Two sessions capped at a quarter each leave half the global rate unused
+		double[] rates = send(new Bandwidth(RATE, RATE / 4), RATE / 4, 2);
+		assertRate("first session", RATE / 4, rates[0]);
+		assertRate("second session", RATE / 4, rates[1]);
+	}
+
+	@Test
+	public void noLimitsPassEverythingThrough() throws Exception {
+		Bandwidth unlimited = new Bandwidth(0, 0);
+		assertEquals(1L << 30, unlimited.slice(1L << 30));
+		assertTrue(send(unlimited, RATE, 1)[0] > 10 * RATE);
+	}
+
+	private static void assertRate(String what, double expected, double actual) {
+		assertTrue(what + " sent " + (long) actual + " bytes/s, expected " + (long) expected,
+				Math.abs(actual - expected) <= expected * TOLERANCE);
+	}
+
+	// Start the transfers together, each from its own session, and return
+	// the bytes per second each one achieved
+	private static double[] send(final Bandwidth bandwidth, final long bytes, int transfers) throws Exception {
+		final double[] rates = new double[transfers];
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[transfers];
+		final Exception[] failure = new Exception[1];
+		for (int i = 0; i < transfers; i++) {
+			final int transfer = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					ThrottledChannel channel = new ThrottledChannel(bandwidth, new TokenBucket(), new Sink());
+					ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+					try {
+						start.await();
+						long began = System.nanoTime();
+						long sent = 0;
+						while (sent < bytes) {
+							buffer.clear();
+							buffer.limit((int) Math.min(buffer.capacity(), bytes - sent));
+							while (buffer.hasRemaining()) {
+								sent += channel.write(buffer);
+							}
+						}
+						rates[transfer] = sent * (double) TimeUnit.SECONDS.toNanos(1) / (System.nanoTime() - began);
+					} catch (Exception e) {
+						failure[0] = e;
+					} finally {
+						channel.close();
+					}
+				}
+			}, "transfer-" + i);
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		return rates;
+	}
+
+	/*
+	 * Takes every byte at once, like a socket that never fills up
+	 */
+	private static class Sink implements WritableByteChannel {
+		public int write(ByteBuffer source) {
+			int count = source.remaining();
+			source.position(source.limit());
+			return count;
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() throws IOException {
+		}
+	}
+}
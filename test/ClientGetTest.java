@@ -0,0 +1,146 @@
+/*
+ * Classes
+ * 	ClientGetTest - A GET the server aborts after 150 is kept as a partial file
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * Points the client at a scripted server on loopback that won't give the
+ * size of the file, so only the final reply tells a whole transfer from a
+ * broken one. The server sends part of the file after 150, closes the data
+ * connection and answers the way FTPServer does when a send fails.
+ */
+public class ClientGetTest {
+	private static final String PATH = "aborted.bin";
+	private static final int SENT = 1000;	// Bytes sent before the transfer breaks
+
+	private ServerSocket listener;
+	private int fileCount;
+	private int getsTransferred;
+
+	@Before
+	public void listen() throws IOException {
+		listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		listener.setSoTimeout(10000);
+
+		// A free port for the client's data listener
+		ServerSocket free = new ServerSocket(0);
+		FTPCommands.portNumber = free.getLocalPort();
+		free.close();
+
+		// Whatever the client completes goes past the files kept in retr_files
+		fileCount = ClientFileManager.fileCount;
+		ClientFileManager.fileCount = 1000;
+		getsTransferred = FTPClient.getsTransferred;
+	}
+
+	@After
+	public void cleanUp() throws IOException {
+		if (FTPClient.clientSocket != null) {
+			FTPClient.clientSocket.close();
+		}
+		listener.close();
+		ClientFileManager.partialFile(PATH).delete();
+		ClientFileManager.fileCount = fileCount;
+	}
+
+	@Test
+	public void keepsTransfersAbortedWith426() throws Exception {
+		assertAbortedGet("426 Connection closed; transfer aborted.");
+	}
+
+	@Test
+	public void keepsTransfersAbortedWith451() throws Exception {
+		assertAbortedGet("451 Requested action aborted: local error in processing.");
+	}
+
+	private void assertAbortedGet(final String finalReply) throws Exception {
+		final Exception[] failure = new Exception[1];
+		Thread server = new Thread(new Runnable() {
+			public void run() {
+				try {
+					serve(finalReply);
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		}, "scripted-server");
+		server.start();
+
+		ClientReply reply = new ClientReply();
+		assertTrue(FTPClient.processConnectRequest("127.0.0.1", listener.getLocalPort(), reply));
+		assertTrue(FTPClient.onConnect(reply));
+		assertFalse(FTPClient.onGet(PATH, reply));
+		server.join(10000);
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+
+		// The bytes that came are kept for a later REST, nothing was completed
+		assertEquals(SENT, ClientFileManager.partialFile(PATH).length());
+		assertEquals(1000, ClientFileManager.fileCount);
+		assertEquals(getsTransferred, FTPClient.getsTransferred);
+	}
+
+	// Answer one control connection, breaking the RETR after 150
+	private void serve(String finalReply) throws IOException {
+		Socket control = listener.accept();
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(control.getInputStream(), StandardCharsets.US_ASCII));
+			OutputStream out = control.getOutputStream();
+			send(out, "220 Service ready for new user.");
+			int dataPort = -1;
+			String line;
+			while ((line = in.readLine()) != null) {
+				String verb = line.split(" ")[0];
+				if (verb.equals("USER")) {
+					send(out, "331 User name okay, need password.");
+				} else if (verb.equals("PASS")) {
+					send(out, "230 User logged in, proceed.");
+				} else if (verb.equals("SYST")) {
+					send(out, "215 UNIX Type: L8");
+				} else if (verb.equals("TYPE")) {
+					send(out, "200 Command okay.");
+				} else if (verb.equals("PORT")) {
+					String[] fields = line.substring(5).split(",");
+					dataPort = Integer.parseInt(fields[4]) * 256 + Integer.parseInt(fields[5]);
+					send(out, "200 Command okay.");
+				} else if (verb.equals("RETR")) {
+					send(out, "150 File status okay; about to open data connection.");
+					Socket data = new Socket(InetAddress.getLoopbackAddress(), dataPort);
+					data.getOutputStream().write(new byte[SENT]);
+					data.close();
+					send(out, finalReply);
+					return;
+				} else {
+					// SIZE and MDTM, so the client can't check the length it got
+					send(out, "550 Requested action not taken.");
+				}
+			}
+		} finally {
+			control.close();
+		}
+	}
+
+	private static void send(OutputStream out, String reply) throws IOException {
+		out.write((reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+	}
+}
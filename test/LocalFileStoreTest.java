@@ -0,0 +1,104 @@
+/*
+ * Classes
+ * 	LocalFileStoreTest - Paths and links that lead out of the served root are refused
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * Builds a root next to a directory it must not reach, under target/,
+ * with links out of the root and one that stays inside it.
+ */
+public class LocalFileStoreTest {
+	private Path root;
+	private LocalFileStore store;
+
+	@Before
+	public void createTree() throws IOException {
+		File target = new File("target");
+		target.mkdirs();
+		Path base = Files.createTempDirectory(target.toPath(), "store-test").toAbsolutePath();
+		root = Files.createDirectory(base.resolve("root"));
+		Path outside = Files.createDirectory(base.resolve("outside"));
+		Files.write(outside.resolve("secret.txt"), "secret".getBytes(StandardCharsets.US_ASCII));
+		Files.write(root.resolve("file.txt"), "served".getBytes(StandardCharsets.US_ASCII));
+		Files.createDirectory(root.resolve("up"));
+
+		Files.createSymbolicLink(root.resolve("out"), outside);
+		Files.createSymbolicLink(root.resolve("secret.txt"), outside.resolve("secret.txt"));
+		Files.createSymbolicLink(root.resolve("broken.txt"), outside.resolve("missing.txt"));
+		Files.createSymbolicLink(root.resolve("alias.txt"), root.resolve("file.txt"));
+		store = new LocalFileStore(root.toFile());
+	}
+
+	@Test
+	public void refusesPathsThatClimbOut() {
+		assertNull(store.file("../outside/secret.txt"));
+		assertNull(store.file("up/../../outside/secret.txt"));
+		assertNull(store.upload("../outside/new.txt"));
+		assertEquals(FileIndex.MISSING, store.stat("../outside/secret.txt"));
+
+		// "/" is the root, not the top of the disk
+		assertEquals(root.resolve("file.txt").toFile(), store.file("/file.txt"));
+	}
+
+	@Test
+	public void refusesLinksThatLeadOut() throws IOException {
+		assertNull(store.file("secret.txt"));
+		assertNull(store.file("out"));
+		assertNull(store.file("out/secret.txt"));
+		assertEquals(FileIndex.MISSING, store.stat("secret.txt"));
+		assertEquals(FileIndex.MISSING, store.stat("out/secret.txt"));
+		try {
+			store.contents("out/secret.txt");
+			assertTrue("Read through a link out of the root", false);
+		} catch (FileNotFoundException expected) {
+		}
+
+		// Neither may an upload go through one, even to a file not there yet
+		assertNull(store.upload("out/new.txt"));
+		assertNull(store.upload("broken.txt"));
+		assertFalse(Files.exists(root.resolve("../outside/missing.txt")));
+	}
+
+	@Test
+	public void followsLinksInsideTheRoot() throws IOException {
+		assertNotNull(store.file("alias.txt"));
+		assertEquals(6, store.stat("alias.txt").size);
+		assertNotNull(store.upload("up/new.txt"));
+	}
+
+	@Test
+	public void listsOnlyWhatItServes() throws IOException {
+		Map<String, FileIndex.Entry> entries = store.list("/");
+		assertEquals("[alias.txt, file.txt, up]", entries.keySet().toString());
+	}
+
+	@Test
+	public void indexLeavesOutLinksThatLeadOut() throws IOException {
+		FileIndex index = FileIndex.open(root.toFile());
+		try {
+			assertEquals(FileIndex.MISSING, index.lookup("secret.txt"));
+			assertEquals(FileIndex.MISSING, index.lookup("out"));
+			assertEquals(FileIndex.MISSING, index.lookup("out/secret.txt"));
+			assertEquals(6, index.lookup("alias.txt").size);
+		} finally {
+			index.close();
+		}
+	}
+}
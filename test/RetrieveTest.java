@@ -0,0 +1,263 @@
+/*
+ * Classes
+ * 	RetrieveTest - RETR over loopback returns exactly the bytes on disk
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/*
+ * Starts the server in this JVM and fetches files it serves from a
+ * temporary directory under target/. The sizes cover an empty file, reads
+ * shorter than a transfer buffer, files on both sides of the largest one
+ * the file cache keeps, files sent in many transferTo calls, and files on
+ * both sides of the mapping threshold.
+ * Each file is fetched whole and from REST offsets up to its end. Data
+ * connections go to a PORT address opened here.
+ */
+public class RetrieveTest {
+	private static final int CACHE_SIZE = 1024 * 1024;	// Largest cached file
+	private static final int MAPPED_SIZE = 4 * 1024 * 1024;	// Smallest mapped file
+	private static final int[] SIZES = {0, 1, 1000, 64 * 1024, 64 * 1024 + 1, CACHE_SIZE, CACHE_SIZE + 1, 1234567,
+			MAPPED_SIZE - 1, MAPPED_SIZE, 6000000};
+
+	private static File directory;
+	private static int port;
+
+	private Socket control;
+	private BufferedReader in;
+	private OutputStream out;
+
+	@BeforeClass
+	public static void startServer() throws Exception {
+		File target = new File("target");
+		target.mkdirs();
+		directory = Files.createTempDirectory(target.toPath(), "ftp-test").toFile();
+		directory.deleteOnExit();
+		Random random = new Random(431);
+		for (int size : SIZES) {
+			byte[] contents = new byte[size];
+			random.nextBytes(contents);
+			File file = new File(directory, name(size));
+			Files.write(file.toPath(), contents);
+			file.deleteOnExit();
+		}
+
+		final String[] args = serverArguments();
+		Thread server = new Thread(new Runnable() {
+			public void run() {
+				try {
+					FTPServer.main(args);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}, "ftp-server");
+		server.setDaemon(true);
+		server.start();
+
+		// Port 0 binds any free port, which is known once the socket is bound
+		long deadline = System.currentTimeMillis() + 10000;
+		while (FTPServer.welcomeSocket == null || !FTPServer.welcomeSocket.isBound()) {
+			assertTrue("Server did not start", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		port = FTPServer.welcomeSocket.getLocalPort();
+	}
+
+	// Without the index every lookup goes to the disk, the path that can
+	// miss a file only after the data connection is open
+	private static String[] serverArguments() {
+		return new String[] {"0", "-cache", Integer.toString(CACHE_SIZE), "-mmap", Integer.toString(MAPPED_SIZE),
+				"-index", "off"};
+	}
+
+	// Served path of a test file
+	private static String name(int size) {
+		return "file-" + size + ".bin";
+	}
+
+	private static String path(int size) {
+		return "target/" + directory.getName() + "/" + name(size);
+	}
+
+	@Before
+	public void logIn() throws IOException {
+		control = new Socket(InetAddress.getLoopbackAddress(), port);
+		in = new BufferedReader(new InputStreamReader(control.getInputStream(), StandardCharsets.US_ASCII));
+		out = control.getOutputStream();
+		assertEquals(220, reply());
+		assertEquals(331, command("USER anonymous"));
+		assertEquals(230, command("PASS guest@"));
+		assertEquals(200, command("TYPE I"));
+	}
+
+	@After
+	public void logOut() throws IOException {
+		command("QUIT");
+		control.close();
+	}
+
+	@Test
+	public void retrievesWholeFiles() throws IOException {
+		for (int size : SIZES) {
+			// The second time small files come from the cache
+			for (int i = 0; i < 2; i++) {
+				assertArrayEquals(name(size), contents(size, 0), retrieve(path(size)));
+			}
+		}
+	}
+
+	@Test
+	public void retrievesFromRestartOffsets() throws IOException {
+		for (int size : SIZES) {
+			for (long offset : new long[] {1, size / 2, size - 1, size}) {
+				if (offset <= 0 || offset > size) continue;
+				assertArrayEquals(name(size) + " from " + offset, contents(size, offset),
+						retrieve(path(size), "REST " + offset));
+			}
+		}
+	}
+
+	@Test
+	public void refusesRestartPastTheEnd() throws IOException {
+		int size = 1000;
+		ServerSocket listener = port();
+		try {
+			assertEquals(350, command("REST " + (size + 1)));
+			assertEquals(554, command("RETR " + path(size)));
+		} finally {
+			listener.close();
+		}
+
+		// The offset was used up, the next RETR starts at the beginning
+		assertArrayEquals(contents(size, 0), retrieve(path(size)));
+	}
+
+	@Test
+	public void refusesMissingFilesBeforeTheDataConnection() throws IOException {
+		ServerSocket listener = port();
+		try {
+			assertEquals(550, command("RETR " + path(1) + ".missing"));
+			listener.setSoTimeout(200);
+			try {
+				listener.accept().close();
+				fail("Data connection opened for a missing file");
+			} catch (SocketTimeoutException expected) {
+			}
+		} finally {
+			listener.close();
+		}
+	}
+
+	@Test
+	public void countsClosedRangesApartFromFailures() throws IOException {
+		long failures = FTPServer.metrics.getTransferFailures();
+		long closed = FTPServer.metrics.getRangesClosed();
+
+		// What a segment of a split download does: take its bytes, then close
+		for (long offset : new long[] {0, 1000}) {
+			ServerSocket listener = port();
+			try {
+				assertEquals(350, command("REST " + offset));
+				assertEquals(150, command("RETR " + path(6000000)));
+				Socket data = listener.accept();
+				byte[] range = new byte[1000];
+				DataInputStream stream = new DataInputStream(data.getInputStream());
+				stream.readFully(range);
+				data.close();
+				assertArrayEquals(Arrays.copyOf(contents(6000000, offset), range.length), range);
+				assertEquals(426, reply());
+			} finally {
+				listener.close();
+			}
+		}
+		assertEquals(closed + 2, FTPServer.metrics.getRangesClosed());
+		assertEquals(failures, FTPServer.metrics.getTransferFailures());
+	}
+
+	// The bytes of a test file after offset, as written in startServer
+	private static byte[] contents(int size, long offset) throws IOException {
+		byte[] contents = Files.readAllBytes(new File(directory, name(size)).toPath());
+		return Arrays.copyOfRange(contents, (int) offset, contents.length);
+	}
+
+	// RETR to a PORT address, after the commands that set up the transfer
+	private byte[] retrieve(String path, String... setup) throws IOException {
+		ServerSocket listener = port();
+		try {
+			for (String command : setup) {
+				assertEquals(command, 350, command(command));
+			}
+			assertEquals(150, command("RETR " + path));
+			Socket data = listener.accept();
+			try {
+				ByteArrayOutputStream received = new ByteArrayOutputStream();
+				InputStream stream = data.getInputStream();
+				byte[] buffer = new byte[64 * 1024];
+				int read;
+				while ((read = stream.read(buffer)) != -1) {
+					received.write(buffer, 0, read);
+				}
+				assertEquals(250, reply());
+				return received.toByteArray();
+			} finally {
+				data.close();
+			}
+		} finally {
+			listener.close();
+		}
+	}
+
+	// Listen on loopback and send PORT for it
+	private ServerSocket port() throws IOException {
+		ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		listener.setSoTimeout(10000);
+		int local = listener.getLocalPort();
+		assertEquals(200, command("PORT 127,0,0,1," + local / 256 + "," + local % 256));
+		return listener;
+	}
+
+	private int command(String command) throws IOException {
+		out.write((command + "\r\n").getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+		return reply();
+	}
+
+	// Code of the next reply, skipping the lines of a multi-line one
+	private int reply() throws IOException {
+		String line = in.readLine();
+		while (line != null && line.length() > 3 && line.charAt(3) == '-') {
+			String code = line.substring(0, 3);
+			do {
+				line = in.readLine();
+			} while (line != null && !line.startsWith(code + " "));
+		}
+		assertTrue("Connection closed", line != null);
+		return Integer.parseInt(line.substring(0, 3));
+	}
+}
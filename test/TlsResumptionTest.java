@@ -0,0 +1,131 @@
+/*
+ * Classes
+ * 	TlsResumptionTest - A second connection resumes the TLS session, and is counted as resumed
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import javax.net.ssl.SSLEngine;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/*
+ * Connects TlsChannels over loopback, the client side with the host and
+ * port it would use for the control connection, and reads the counts
+ * both TlsContexts keep. The key is made with keytool under target/.
+ */
+public class TlsResumptionTest {
+	private static final String PASSWORD = "secret";
+	private static final int CONTROL_PORT = 2121;	// Only keys the client's session cache
+
+	private static File keyStore;
+	private static ServerSocket listener;
+
+	@BeforeClass
+	public static void createKey() throws Exception {
+		File target = new File("target");
+		target.mkdirs();
+		File directory = Files.createTempDirectory(target.toPath(), "tls-test").toFile();
+		directory.deleteOnExit();
+		keyStore = new File(directory, "server.p12");
+		keyStore.deleteOnExit();
+		Process keytool = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/keytool").getPath(),
+				"-genkeypair", "-alias", "server", "-keyalg", "EC", "-dname", "CN=localhost", "-ext", "san=dns:localhost",
+				"-validity", "1", "-storetype", "PKCS12", "-keystore", keyStore.getPath(),
+				"-storepass", PASSWORD, "-keypass", PASSWORD).inheritIO().start();
+		assertEquals("keytool", 0, keytool.waitFor());
+		listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		listener.setSoTimeout(10000);
+	}
+
+	@AfterClass
+	public static void close() throws IOException {
+		listener.close();
+	}
+
+	@Test
+	public void secondConnectionResumes() throws Exception {
+		assertResumes(null);
+	}
+
+	@Test
+	public void secondConnectionResumesWithTls12() throws Exception {
+		assertResumes("TLSv1.2");
+	}
+
+	@Test
+	public void newClientDoesNotResume() throws Exception {
+		TlsContext server = TlsContext.server(keyStore.getPath(), PASSWORD);
+		for (int i = 0; i < 2; i++) {
+			connect(server, TlsContext.client(keyStore.getPath(), PASSWORD), null);
+		}
+		assertEquals(2, server.handshakes.sum());
+		assertEquals(0, server.resumed.sum());
+	}
+
+	private void assertResumes(String protocol) throws Exception {
+		TlsContext server = TlsContext.server(keyStore.getPath(), PASSWORD);
+		TlsContext client = TlsContext.client(keyStore.getPath(), PASSWORD);
+		connect(server, client, protocol);
+		assertEquals(0, server.resumed.sum());
+		assertEquals(0, client.resumed.sum());
+
+		connect(server, client, protocol);
+		assertEquals(2, server.handshakes.sum());
+		assertEquals(1, server.resumed.sum());
+		assertEquals(2, client.handshakes.sum());
+		assertEquals(1, client.resumed.sum());
+	}
+
+	// One connection that sends a byte each way, so the client also reads
+	// the session ticket a TLS 1.3 server sends after the handshake
+	private void connect(final TlsContext server, TlsContext client, final String protocol) throws Exception {
+		final Exception[] failure = new Exception[1];
+		Thread accept = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Socket socket = listener.accept();
+					try {
+						SSLEngine engine = server.serverEngine();
+						if (protocol != null) {
+							engine.setEnabledProtocols(new String[] {protocol});
+						}
+						TlsChannel channel = TlsChannel.open(server, engine, socket, false);
+						ByteBuffer buffer = ByteBuffer.allocate(1);
+						channel.read(buffer);
+						buffer.flip();
+						channel.write(buffer);
+					} finally {
+						socket.close();
+					}
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		}, "tls-server");
+		accept.start();
+
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+		try {
+			TlsChannel channel = TlsChannel.open(client, client.clientEngine("localhost", CONTROL_PORT), socket, false);
+			channel.write(ByteBuffer.wrap(new byte[] {1}));
+			assertEquals(1, channel.read(ByteBuffer.allocate(1)));
+		} finally {
+			socket.close();
+		}
+		accept.join(10000);
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+	}
+}